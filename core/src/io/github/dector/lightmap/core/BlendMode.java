@@ -0,0 +1,13 @@
+package io.github.dector.lightmap.core;
+
+/**
+ * How {@link LightLayer} is mixed with layers below it.
+ *
+ * @author dector
+ */
+public enum BlendMode {
+
+	ADD,
+	MAX,
+	MULTIPLY
+}
@@ -0,0 +1,300 @@
+package io.github.dector.lightmap.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Light values and colors of colored maps, packed into one <code>int</code> per tile:
+ * <code>0xIIRRGGBB</code>, where <code>II</code> is light value from 0 to 255
+ * and the rest is color (see {@link PackedColor}). All four channels saturate.
+ *
+ * Lights are stamped with precounted kernels: values and colors of all tiles around light
+ * are counted once and cached in {@link Light}.
+ * Kernels of fixed-point buffers are counted from {@link FixedLightBuffer#falloffTable(int)}
+ * with integer math, so colors are the same on every JVM too.
+ *
+ * @author dector
+ */
+class ColoredLightBuffer extends LightBuffer {
+
+	private static final float TO_FLOAT = 1f / 0xFF;
+
+	private final boolean fixedPoint;
+
+	/** Column is <code>null</code> when it's spilled or cleared after spilling */
+	private final int[][] values;
+	private final ColumnPages pages;
+
+	ColoredLightBuffer(int width, int height, boolean fixedPoint) {
+		super(width, height);
+
+		this.fixedPoint = fixedPoint;
+
+		values = new int[width][height];
+		pages = new ColumnPages(width, height * 4);
+	}
+
+	@Override
+	void clear() {
+		for (int i = 0; i < width; i++) {
+			int[] column = values[i];
+
+			if (column == null) {
+				pages.release(i);
+				continue;
+			}
+
+			for (int j = 0; j < height; j++) {
+				column[j] = 0;
+			}
+		}
+	}
+
+	@Override
+	void clear(int fromX, int fromY, int toX, int toY) {
+		for (int i = fromX; i <= toX; i++) {
+			int[] column = column(i);
+
+			for (int j = fromY; j <= toY; j++) {
+				column[j] = 0;
+			}
+		}
+	}
+
+	/**
+	 * Marks column as used and takes it back if it was spilled.
+	 */
+	private int[] column(int x) {
+		int[] column = values[x];
+
+		if (column == null) {
+			column = new int[height];
+
+			if (pages.isSpilled(x)) {
+				ByteBuffer bytes = pages.take(x);
+
+				for (int j = 0; j < height; j++) {
+					column[j] = bytes.getInt(j * 4);
+				}
+			}
+
+			values[x] = column;
+		}
+
+		pages.used(x);
+
+		return column;
+	}
+
+	@Override
+	void stamp(int x, int y, Light light) {
+		stamp(x, y, light, 1);
+	}
+
+	@Override
+	void stamp(int x, int y, Light light, int count) {
+		int r = light.outerRadius;
+
+		if (r < 0) return;
+
+		int[] kernel = fixedPoint ? fixedColorKernel(light) : colorKernel(light);
+		int size = 2 * r + 1;
+
+		int fromX 	= Math.max(x - r, clipFromX);
+		int toX 	= Math.min(x + r, clipToX);
+		int fromY 	= Math.max(y - r, clipFromY);
+		int toY 	= Math.min(y + r, clipToY);
+
+		for (int i = fromX; i <= toX; i++) {
+			int[] column = column(i);
+			int kernelOffset = (i - x + r) * size + r - y;
+
+			for (int j = fromY; j <= toY; j++) {
+				int c = kernel[kernelOffset + j];
+
+				if (c != 0) {
+					if (count > 1) {
+						c = PackedColor.times(c, count);
+					}
+
+					column[j] = PackedColor.add(column[j], c);
+				}
+			}
+		}
+	}
+
+	@Override
+	void read(int fromX, int fromY, int toX, int toY, float[] out) {
+		int k = 0;
+
+		for (int x = fromX; x < toX; x++) {
+			int[] column = column(x);
+
+			for (int y = fromY; y < toY; y++) {
+				out[k++] = (column[y] >>> 24) * TO_FLOAT;
+			}
+		}
+	}
+
+	@Override
+	void readColors(int fromX, int fromY, int toX, int toY, int[] out) {
+		int k = 0;
+
+		for (int x = fromX; x < toX; x++) {
+			int[] column = column(x);
+
+			for (int y = fromY; y < toY; y++) {
+				out[k++] = column[y] & 0xFFFFFF;
+			}
+		}
+	}
+
+	@Override
+	long getMemoryUsage() {
+		long bytes = MemoryFootprint.arrayBytes(width, 4) + pages.getMemoryUsage();
+
+		for (int i = 0; i < width; i++) {
+			if (values[i] != null) {
+				bytes += MemoryFootprint.arrayBytes(height, 4);
+			}
+		}
+
+		return bytes;
+	}
+
+	@Override
+	void setTick(int tick) {
+		pages.setTick(tick);
+	}
+
+	@Override
+	int getColumnLastUse(int x) {
+		return (values[x] != null) ? pages.lastUse(x) : -1;
+	}
+
+	@Override
+	long spillColumn(int x, SpillStore store) {
+		int[] column = values[x];
+
+		if (column == null) return 0;
+
+		boolean empty = true;
+		for (int j = 0; j < height && empty; j++) {
+			empty = column[j] == 0;
+		}
+
+		// Empty column is just dropped
+		if (! empty) {
+			ByteBuffer bytes = pages.spillBuffer();
+
+			for (int j = 0; j < height; j++) {
+				bytes.putInt(j * 4, column[j]);
+			}
+
+			pages.spill(x, store);
+		}
+
+		values[x] = null;
+
+		return MemoryFootprint.arrayBytes(height, 4);
+	}
+
+	@Override
+	int getSpilledColumnsCount() {
+		return pages.getSpilledCount();
+	}
+
+	@Override
+	void restoreColumns() {
+		for (int i = 0; i < width; i++) {
+			if (pages.isSpilled(i)) {
+				column(i);
+			}
+		}
+	}
+
+	/**
+	 * Uses the same falloff and spot cone as {@link FloatLightBuffer}.
+	 */
+	private static int[] colorKernel(Light light) {
+		int[] kernel = light.colorKernel;
+
+		if (kernel != null) return kernel;
+
+		int inR = light.innerRadius;
+		int outR = light.outerRadius;
+		int size = 2 * outR + 1;
+
+		boolean[] spotMask = light.spotMask();
+
+		kernel = new int[size * size];
+
+		for (int dx = -outR; dx <= outR; dx++) {
+			for (int dy = -outR; dy <= outR; dy++) {
+				if (spotMask != null && ! spotMask[(dx + outR) * size + dy + outR]) continue;
+
+				float dd = (float) Math.sqrt(dx * dx + dy * dy);
+				float value;
+
+				if (dd <= inR) {
+					value = 1;
+				} else if (dd < outR) {
+					value = (float) Math.pow(1 - dd / outR, 1.4f);
+				} else {
+					continue;
+				}
+
+				kernel[(dx + outR) * size + dy + outR] = (PackedColor.scale(0xFF, value) << 24)
+						| PackedColor.scale(light.color, value);
+			}
+		}
+
+		light.colorKernel = kernel;
+
+		return kernel;
+	}
+
+	/**
+	 * Uses the same falloff and spot cone as {@link FixedLightBuffer}.
+	 */
+	private static int[] fixedColorKernel(Light light) {
+		int[] kernel = light.fixedColorKernel;
+
+		if (kernel != null) return kernel;
+
+		int inR = light.innerRadius;
+		int outR = light.outerRadius;
+		int size = 2 * outR + 1;
+
+		int[] falloff = FixedLightBuffer.falloffTable(outR);
+		int outRR = outR * outR;
+		int inRR = (inR >= 0) ? inR * inR : -1;
+
+		boolean[] spotMask = light.spotMask();
+
+		kernel = new int[size * size];
+
+		for (int dx = -outR; dx <= outR; dx++) {
+			for (int dy = -outR; dy <= outR; dy++) {
+				if (spotMask != null && ! spotMask[(dx + outR) * size + dy + outR]) continue;
+
+				int dd = dx * dx + dy * dy;
+				int value;
+
+				if (dd <= inRR) {
+					value = FixedLightBuffer.ONE;
+				} else if (dd <= outRR) {
+					value = falloff[dd];
+				} else {
+					continue;
+				}
+
+				kernel[(dx + outR) * size + dy + outR] = (PackedColor.scaleFixed(0xFF, value) << 24)
+						| PackedColor.scaleFixed(light.color, value);
+			}
+		}
+
+		light.fixedColorKernel = kernel;
+
+		return kernel;
+	}
+}
@@ -0,0 +1,98 @@
+package io.github.dector.lightmap.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Bookkeeping of buffer columns for {@link LightMap#setMemoryBudget(long)}:
+ * when each column was used last time and where spilled columns are kept.
+ * Buffer converts its columns to bytes and back itself.
+ *
+ * @author dector
+ */
+final class ColumnPages {
+
+	/** Step, when column was stamped or read last time */
+	private final int[] lastUse;
+	/** Handle in {@link #store} + 1, 0 if column isn't spilled */
+	private final int[] handles;
+	private int spilledCount;
+
+	private SpillStore store;
+	private int tick;
+
+	private final byte[] bytes;
+	private final ByteBuffer buffer;
+
+	ColumnPages(int columns, int columnBytes) {
+		lastUse = new int[columns];
+		handles = new int[columns];
+
+		bytes = new byte[columnBytes];
+		buffer = ByteBuffer.wrap(bytes);
+	}
+
+	void setTick(int tick) {
+		this.tick = tick;
+	}
+
+	void used(int x) {
+		lastUse[x] = tick;
+	}
+
+	int lastUse(int x) {
+		return lastUse[x];
+	}
+
+	boolean isSpilled(int x) {
+		return handles[x] != 0;
+	}
+
+	int getSpilledCount() {
+		return spilledCount;
+	}
+
+	/**
+	 * @return buffer to fill with column, then call {@link #spill(int, SpillStore)}
+	 */
+	ByteBuffer spillBuffer() {
+		buffer.clear();
+		return buffer;
+	}
+
+	void spill(int x, SpillStore store) {
+		this.store = store;
+
+		handles[x] = store.put(bytes) + 1;
+		spilledCount++;
+	}
+
+	/**
+	 * @return buffer with column bytes, column isn't spilled anymore
+	 */
+	ByteBuffer take(int x) {
+		store.take(handles[x] - 1, bytes);
+
+		handles[x] = 0;
+		spilledCount--;
+
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Forgets spilled column, e.g. when buffer is cleared.
+	 */
+	void release(int x) {
+		if (handles[x] == 0) return;
+
+		store.free(handles[x] - 1);
+
+		handles[x] = 0;
+		spilledCount--;
+	}
+
+	long getMemoryUsage() {
+		return MemoryFootprint.arrayBytes(lastUse.length, 4) + MemoryFootprint.arrayBytes(handles.length, 4)
+				+ MemoryFootprint.arrayBytes(bytes.length, 1);
+	}
+}
@@ -0,0 +1,171 @@
+package io.github.dector.lightmap.core;
+
+import java.util.Arrays;
+
+/**
+ * Set of map chunks, which light values should be combined again.
+ *
+ * @author dector
+ */
+class DirtyChunks {
+
+	static final int CHUNK_SHIFT = 4;
+	static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+
+	private final int width;
+	private final int height;
+	private final int chunksX;
+	private final int chunksY;
+
+	private final boolean[] dirty;
+	private final int[] list;
+	private int size;
+
+	private long[] sortKeys;
+
+	DirtyChunks(int width, int height) {
+		this.width = width;
+		this.height = height;
+
+		chunksX = (width + CHUNK_SIZE - 1) >> CHUNK_SHIFT;
+		chunksY = (height + CHUNK_SIZE - 1) >> CHUNK_SHIFT;
+
+		dirty = new boolean[chunksX * chunksY];
+		list = new int[chunksX * chunksY];
+	}
+
+	long getMemoryUsage() {
+		return MemoryFootprint.arrayBytes(dirty.length, 1) + MemoryFootprint.arrayBytes(list.length, 4)
+				+ ((sortKeys != null) ? MemoryFootprint.arrayBytes(sortKeys.length, 8) : 0);
+	}
+
+	/**
+	 * @return all chunks of map
+	 */
+	int getChunksCount() {
+		return dirty.length;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	int size() {
+		return size;
+	}
+
+	int get(int index) {
+		return list[index];
+	}
+
+	int fromX(int chunk) {
+		return (chunk % chunksX) << CHUNK_SHIFT;
+	}
+
+	int fromY(int chunk) {
+		return (chunk / chunksX) << CHUNK_SHIFT;
+	}
+
+	/** Exclusive */
+	int toX(int chunk) {
+		return Math.min(fromX(chunk) + CHUNK_SIZE, width);
+	}
+
+	/** Exclusive */
+	int toY(int chunk) {
+		return Math.min(fromY(chunk) + CHUNK_SIZE, height);
+	}
+
+	/**
+	 * Marks chunks, which intersect rectangle (inclusive bounds, may be out of map).
+	 */
+	void mark(int fromX, int fromY, int toX, int toY) {
+		fromX = Math.max(fromX, 0);
+		fromY = Math.max(fromY, 0);
+		toX = Math.min(toX, width - 1);
+		toY = Math.min(toY, height - 1);
+
+		if (fromX > toX || fromY > toY) return;
+
+		for (int cy = fromY >> CHUNK_SHIFT; cy <= toY >> CHUNK_SHIFT; cy++) {
+			for (int cx = fromX >> CHUNK_SHIFT; cx <= toX >> CHUNK_SHIFT; cx++) {
+				int chunk = cy * chunksX + cx;
+
+				if (! dirty[chunk]) {
+					dirty[chunk] = true;
+					list[size++] = chunk;
+				}
+			}
+		}
+	}
+
+	void markAll() {
+		mark(0, 0, width - 1, height - 1);
+	}
+
+	/**
+	 * Marks all chunks of other set (of the same map).
+	 */
+	void markAll(DirtyChunks other) {
+		for (int i = 0; i < other.size; i++) {
+			int chunk = other.list[i];
+
+			if (! dirty[chunk]) {
+				dirty[chunk] = true;
+				list[size++] = chunk;
+			}
+		}
+	}
+
+	/**
+	 * Unmarks first <code>count</code> chunks from list.
+	 */
+	void removeFirst(int count) {
+		for (int i = 0; i < count; i++) {
+			dirty[list[i]] = false;
+		}
+
+		size -= count;
+		System.arraycopy(list, count, list, 0, size);
+	}
+
+	/**
+	 * Orders list, so chunks closest to any of points go first.
+	 */
+	void sortByDistance(Position[] points, int pointsCount) {
+		if (sortKeys == null) {
+			sortKeys = new long[list.length];
+		}
+
+		for (int i = 0; i < size; i++) {
+			int chunk = list[i];
+			int cx = chunk % chunksX;
+			int cy = chunk / chunksX;
+
+			long dist = Long.MAX_VALUE;
+
+			for (int p = 0; p < pointsCount; p++) {
+				long dx = cx - (points[p].x >> CHUNK_SHIFT);
+				long dy = cy - (points[p].y >> CHUNK_SHIFT);
+
+				dist = Math.min(dist, dx * dx + dy * dy);
+			}
+
+			sortKeys[i] = (Math.min(dist, Integer.MAX_VALUE) << 32) | chunk;
+		}
+
+		Arrays.sort(sortKeys, 0, size);
+
+		for (int i = 0; i < size; i++) {
+			list[i] = (int) sortKeys[i];
+		}
+	}
+
+	void clear() {
+		for (int i = 0; i < size; i++) {
+			dirty[list[i]] = false;
+		}
+
+		size = 0;
+	}
+}
@@ -0,0 +1,250 @@
+package io.github.dector.lightmap.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Integer light values with {@link #ONE} as full light.
+ * Falloff is taken from precounted tables and values are accumulated with saturation,
+ * so result doesn't depend on JVM or order of lights.
+ *
+ * @author dector
+ */
+class FixedLightBuffer extends LightBuffer {
+
+	static final int SHIFT = 16;
+	static final int ONE = 1 << SHIFT;
+
+	private static final float TO_FLOAT = 1f / ONE;
+
+	/** Copied on write, so tables are read without locking */
+	private static volatile int[][] falloffTables = new int[0][];
+
+	/** Column is <code>null</code> when it's spilled or cleared after spilling */
+	private final int[][] values;
+	private final ColumnPages pages;
+
+	FixedLightBuffer(int width, int height) {
+		super(width, height);
+
+		values = new int[width][height];
+		pages = new ColumnPages(width, height * 4);
+	}
+
+	@Override
+	void clear() {
+		for (int i = 0; i < width; i++) {
+			int[] column = values[i];
+
+			if (column == null) {
+				pages.release(i);
+				continue;
+			}
+
+			for (int j = 0; j < height; j++) {
+				column[j] = 0;
+			}
+		}
+	}
+
+	@Override
+	void clear(int fromX, int fromY, int toX, int toY) {
+		for (int i = fromX; i <= toX; i++) {
+			int[] column = column(i);
+
+			for (int j = fromY; j <= toY; j++) {
+				column[j] = 0;
+			}
+		}
+	}
+
+	/**
+	 * Marks column as used and takes it back if it was spilled.
+	 */
+	private int[] column(int x) {
+		int[] column = values[x];
+
+		if (column == null) {
+			column = new int[height];
+
+			if (pages.isSpilled(x)) {
+				ByteBuffer bytes = pages.take(x);
+
+				for (int j = 0; j < height; j++) {
+					column[j] = bytes.getInt(j * 4);
+				}
+			}
+
+			values[x] = column;
+		}
+
+		pages.used(x);
+
+		return column;
+	}
+
+	@Override
+	void stamp(int x, int y, Light l) {
+		stamp(x, y, l, 1);
+	}
+
+	@Override
+	void stamp(int x, int y, Light l, int count) {
+		int inR = l.innerRadius;
+		int outR = l.outerRadius;
+
+		if (outR < 0) return;
+
+		int[] falloff = falloffTable(outR);
+		int outRR = outR * outR;
+		int inRR = (inR >= 0) ? inR * inR : -1;
+
+		int fromX 	= Math.max(x - outR, clipFromX);
+		int toX 	= Math.min(x + outR, clipToX);
+		int fromY 	= Math.max(y - outR, clipFromY);
+		int toY 	= Math.min(y + outR, clipToY);
+
+		boolean[] spotMask = l.spotMask();
+		int maskSize = 2 * outR + 1;
+
+		for (int i = fromX; i <= toX; i++) {
+			int[] column = column(i);
+			int dx = x - i;
+			int maskOffset = (i - x + outR) * maskSize + outR - y;
+
+			for (int j = fromY; j <= toY; j++) {
+				if (spotMask != null && ! spotMask[maskOffset + j]) continue;
+
+				int dy = y - j;
+				int dd = dx * dx + dy * dy;
+
+				int v;
+				if (dd <= inRR) {
+					v = ONE;
+				} else if (dd <= outRR) {
+					long w = (long) falloff[dd] * count;
+					v = (w < ONE) ? (int) w : ONE;
+				} else {
+					continue;
+				}
+
+				v += column[j];
+				column[j] = (v < ONE) ? v : ONE;
+			}
+		}
+	}
+
+	@Override
+	void read(int fromX, int fromY, int toX, int toY, float[] out) {
+		int k = 0;
+
+		for (int x = fromX; x < toX; x++) {
+			int[] column = column(x);
+
+			for (int y = fromY; y < toY; y++) {
+				out[k++] = column[y] * TO_FLOAT;
+			}
+		}
+	}
+
+	@Override
+	long getMemoryUsage() {
+		long bytes = MemoryFootprint.arrayBytes(width, 4) + pages.getMemoryUsage();
+
+		for (int i = 0; i < width; i++) {
+			if (values[i] != null) {
+				bytes += MemoryFootprint.arrayBytes(height, 4);
+			}
+		}
+
+		return bytes;
+	}
+
+	@Override
+	void setTick(int tick) {
+		pages.setTick(tick);
+	}
+
+	@Override
+	int getColumnLastUse(int x) {
+		return (values[x] != null) ? pages.lastUse(x) : -1;
+	}
+
+	@Override
+	long spillColumn(int x, SpillStore store) {
+		int[] column = values[x];
+
+		if (column == null) return 0;
+
+		boolean empty = true;
+		for (int j = 0; j < height && empty; j++) {
+			empty = column[j] == 0;
+		}
+
+		// Empty column is just dropped
+		if (! empty) {
+			ByteBuffer bytes = pages.spillBuffer();
+
+			for (int j = 0; j < height; j++) {
+				bytes.putInt(j * 4, column[j]);
+			}
+
+			pages.spill(x, store);
+		}
+
+		values[x] = null;
+
+		return MemoryFootprint.arrayBytes(height, 4);
+	}
+
+	@Override
+	int getSpilledColumnsCount() {
+		return pages.getSpilledCount();
+	}
+
+	@Override
+	void restoreColumns() {
+		for (int i = 0; i < width; i++) {
+			if (pages.isSpilled(i)) {
+				column(i);
+			}
+		}
+	}
+
+	/**
+	 * Returns falloff values indexed by squared distance.
+	 * Tables are counted with {@link StrictMath}, so they are the same on every JVM.
+	 */
+	static int[] falloffTable(int radius) {
+		int[][] tables = falloffTables;
+
+		if (radius < tables.length && tables[radius] != null) return tables[radius];
+
+		return newFalloffTable(radius);
+	}
+
+	private static synchronized int[] newFalloffTable(int radius) {
+		int[][] tables = falloffTables;
+
+		// Other thread could count it while we were waiting
+		if (radius < tables.length && tables[radius] != null) return tables[radius];
+
+		int[] table = new int[radius * radius + 1];
+
+		for (int dd = 1; dd < table.length; dd++) {
+			double d = StrictMath.sqrt(dd);
+			table[dd] = (int) StrictMath.floor(ONE * StrictMath.pow(1 - d / radius, 1.4) + 0.5);
+		}
+
+		if (radius > 0) {
+			table[0] = ONE;
+		}
+
+		int[][] newTables = new int[Math.max(tables.length, radius + 1)][];
+		System.arraycopy(tables, 0, newTables, 0, tables.length);
+		newTables[radius] = table;
+
+		falloffTables = newTables;
+
+		return table;
+	}
+}
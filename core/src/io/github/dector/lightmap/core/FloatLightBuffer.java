@@ -0,0 +1,348 @@
+package io.github.dector.lightmap.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Lights with big radius may be counted approximately (see {@link #setMaxError(float)}):
+ * falloff is taken from table, linear between samples, and tiles,
+ * where light is weaker than max error, are skipped.
+ *
+ * @author dector
+ */
+class FloatLightBuffer extends LightBuffer {
+
+	/** Smaller lights are always counted exactly */
+	static final int APPROXIMATE_MIN_RADIUS = 8;
+
+	/** Column is <code>null</code> when it's spilled or cleared after spilling */
+	private final float[][] values;
+	private final ColumnPages pages;
+
+	private float maxError;
+	/** Indexed by radius, counted on first use */
+	private ApproximateFalloff[] falloffs = new ApproximateFalloff[0];
+
+	FloatLightBuffer(int width, int height) {
+		super(width, height);
+
+		values = new float[width][height];
+		pages = new ColumnPages(width, height * 4);
+	}
+
+	@Override
+	void clear() {
+		for (int i = 0; i < width; i++) {
+			float[] column = values[i];
+
+			if (column == null) {
+				pages.release(i);
+				continue;
+			}
+
+			for (int j = 0; j < height; j++) {
+				column[j] = 0;
+			}
+		}
+	}
+
+	@Override
+	void clear(int fromX, int fromY, int toX, int toY) {
+		for (int i = fromX; i <= toX; i++) {
+			float[] column = column(i);
+
+			for (int j = fromY; j <= toY; j++) {
+				column[j] = 0;
+			}
+		}
+	}
+
+	/**
+	 * Marks column as used and takes it back if it was spilled.
+	 */
+	private float[] column(int x) {
+		float[] column = values[x];
+
+		if (column == null) {
+			column = new float[height];
+
+			if (pages.isSpilled(x)) {
+				ByteBuffer bytes = pages.take(x);
+
+				for (int j = 0; j < height; j++) {
+					column[j] = bytes.getFloat(j * 4);
+				}
+			}
+
+			values[x] = column;
+		}
+
+		pages.used(x);
+
+		return column;
+	}
+
+	@Override
+	void setMaxError(float maxError) {
+		if (this.maxError == maxError) return;
+
+		this.maxError = maxError;
+
+		falloffs = new ApproximateFalloff[0];
+	}
+
+	@Override
+	void stamp(int x, int y, Light l) {
+		stamp(x, y, l, 1);
+	}
+
+	@Override
+	void stamp(int x, int y, Light l, int count) {
+		int inR = l.innerRadius;
+		int outR = l.outerRadius;
+
+		if (maxError > 0 && outR >= APPROXIMATE_MIN_RADIUS) {
+			stampApproximately(x, y, l, count, falloff(outR));
+			return;
+		}
+
+		int fromX 	= Math.max(x - outR, clipFromX);
+		int toX 	= Math.min(x + outR, clipToX);
+		int fromY 	= Math.max(y - outR, clipFromY);
+		int toY 	= Math.min(y + outR, clipToY);
+
+		boolean[] spotMask = l.spotMask();
+		int maskSize = 2 * outR + 1;
+
+		for (int i = fromX; i <= toX; i++) {
+			float[] column = column(i);
+			int maskOffset = (i - x + outR) * maskSize + outR - y;
+
+			for (int j = fromY; j <= toY; j++) {
+				if (spotMask != null && ! spotMask[maskOffset + j]) continue;
+
+				int dx = x - i;
+				int dy = y - j;
+
+				float dd = (float) Math.sqrt(dx * dx + dy * dy);
+
+				if (dd <= inR) {
+					column[j] = 1;
+				} else if (dd < outR) {
+					float lightVal = (float) Math.pow(1 - dd / outR, 1.4f);
+					column[j] += lightVal * count;
+				}
+			}
+		}
+	}
+
+	private void stampApproximately(int x, int y, Light l, int count, ApproximateFalloff falloff) {
+		int inR = l.innerRadius;
+		int outR = l.outerRadius;
+		int inRR = (inR >= 0) ? inR * inR : -1;
+
+		// Weak tail of light is skipped, but inner part is never cut
+		int r = Math.min(outR, Math.max(falloff.radius, inR));
+
+		int fromX 	= Math.max(x - r, clipFromX);
+		int toX 	= Math.min(x + r, clipToX);
+		int fromY 	= Math.max(y - r, clipFromY);
+		int toY 	= Math.min(y + r, clipToY);
+
+		float[] samples = falloff.samples;
+		int shift = falloff.shift;
+		int fractionMask = (1 << shift) - 1;
+		float toFraction = 1f / (1 << shift);
+		int cutoff = falloff.cutoff;
+
+		boolean[] spotMask = l.spotMask();
+		int maskSize = 2 * outR + 1;
+
+		for (int i = fromX; i <= toX; i++) {
+			float[] column = column(i);
+			int dx = x - i;
+			int maskOffset = (i - x + outR) * maskSize + outR - y;
+
+			for (int j = fromY; j <= toY; j++) {
+				if (spotMask != null && ! spotMask[maskOffset + j]) continue;
+
+				int dy = y - j;
+				int dd = dx * dx + dy * dy;
+
+				if (dd <= inRR) {
+					column[j] = 1;
+				} else if (dd < cutoff) {
+					int k = dd >> shift;
+					float a = samples[k];
+					column[j] += (a + (samples[k + 1] - a) * ((dd & fractionMask) * toFraction)) * count;
+				}
+			}
+		}
+	}
+
+	private ApproximateFalloff falloff(int radius) {
+		if (radius >= falloffs.length) {
+			ApproximateFalloff[] newFalloffs = new ApproximateFalloff[radius + 1];
+			System.arraycopy(falloffs, 0, newFalloffs, 0, falloffs.length);
+			falloffs = newFalloffs;
+		}
+
+		if (falloffs[radius] == null) {
+			falloffs[radius] = new ApproximateFalloff(radius, maxError);
+		}
+
+		return falloffs[radius];
+	}
+
+	/**
+	 * Exact falloff, the same as in {@link #stamp(int, int, Light)}.
+	 */
+	private static float exactFalloff(int dd, int radius) {
+		if (dd >= radius * radius) return 0;
+
+		float d = (float) Math.sqrt(dd);
+		return (float) Math.pow(1 - d / radius, 1.4f);
+	}
+
+	/**
+	 * Falloff samples by squared distance, so no square roots are needed.
+	 * Step between samples is the biggest power of two, which keeps error within bound
+	 * (checked for each squared distance).
+	 */
+	private static class ApproximateFalloff {
+
+		final float[] samples;
+		/** Step between samples is <code>1 &lt;&lt; shift</code> */
+		final int shift;
+		/** Squared distance, from which light is weaker than max error */
+		final int cutoff;
+		/** Radius of tiles within cutoff */
+		final int radius;
+
+		ApproximateFalloff(int radius, float maxError) {
+			int rr = radius * radius;
+
+			int cut = 0;
+			while (cut < rr && exactFalloff(cut, radius) >= maxError) {
+				cut++;
+			}
+
+			// Rough estimate, halved until error fits
+			int sh = 31 - Integer.numberOfLeadingZeros((int) Math.max(1, Math.pow(maxError * radius / 0.35f, 2)));
+			float[] table;
+
+			while (true) {
+				table = new float[(cut >> sh) + 2];
+
+				for (int k = 0; k < table.length; k++) {
+					table[k] = exactFalloff(k << sh, radius);
+				}
+
+				if (sh == 0 || fits(table, sh, cut, radius, maxError)) break;
+
+				sh--;
+			}
+
+			samples = table;
+			shift = sh;
+			cutoff = cut;
+			this.radius = (int) Math.ceil(Math.sqrt(cut));
+		}
+
+		private static boolean fits(float[] table, int shift, int cutoff, int radius, float maxError) {
+			float toFraction = 1f / (1 << shift);
+
+			for (int dd = 0; dd < cutoff; dd++) {
+				int k = dd >> shift;
+				float v = table[k] + (table[k + 1] - table[k]) * ((dd & ((1 << shift) - 1)) * toFraction);
+
+				// A bit of space for rounding of sums
+				if (Math.abs(v - exactFalloff(dd, radius)) > maxError * 0.99f) return false;
+			}
+
+			return true;
+		}
+	}
+
+	@Override
+	void read(int fromX, int fromY, int toX, int toY, float[] out) {
+		int k = 0;
+
+		for (int x = fromX; x < toX; x++) {
+			float[] column = column(x);
+
+			for (int y = fromY; y < toY; y++) {
+				out[k++] = column[y];
+			}
+		}
+	}
+
+	@Override
+	long getMemoryUsage() {
+		long bytes = MemoryFootprint.arrayBytes(width, 4) + pages.getMemoryUsage();
+
+		for (int i = 0; i < width; i++) {
+			if (values[i] != null) {
+				bytes += MemoryFootprint.arrayBytes(height, 4);
+			}
+		}
+
+		for (ApproximateFalloff falloff : falloffs) {
+			if (falloff != null) {
+				bytes += MemoryFootprint.arrayBytes(falloff.samples.length, 4);
+			}
+		}
+
+		return bytes;
+	}
+
+	@Override
+	void setTick(int tick) {
+		pages.setTick(tick);
+	}
+
+	@Override
+	int getColumnLastUse(int x) {
+		return (values[x] != null) ? pages.lastUse(x) : -1;
+	}
+
+	@Override
+	long spillColumn(int x, SpillStore store) {
+		float[] column = values[x];
+
+		if (column == null) return 0;
+
+		boolean empty = true;
+		for (int j = 0; j < height && empty; j++) {
+			empty = column[j] == 0;
+		}
+
+		// Empty column is just dropped
+		if (! empty) {
+			ByteBuffer bytes = pages.spillBuffer();
+
+			for (int j = 0; j < height; j++) {
+				bytes.putFloat(j * 4, column[j]);
+			}
+
+			pages.spill(x, store);
+		}
+
+		values[x] = null;
+
+		return MemoryFootprint.arrayBytes(height, 4);
+	}
+
+	@Override
+	int getSpilledColumnsCount() {
+		return pages.getSpilledCount();
+	}
+
+	@Override
+	void restoreColumns() {
+		for (int i = 0; i < width; i++) {
+			if (pages.isSpilled(i)) {
+				column(i);
+			}
+		}
+	}
+}
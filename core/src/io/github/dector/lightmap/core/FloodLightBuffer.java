@@ -0,0 +1,292 @@
+package io.github.dector.lightmap.core;
+
+/**
+ * Light spreads from tile to tile and loses {@link #STRAIGHT_COST} per straight step
+ * and {@link #DIAGONAL_COST} per diagonal one. Opaque tiles stop it.
+ * Each tile keeps the strongest light level, which reached it.
+ *
+ * Adding and removing lights and walls is incremental: only tiles,
+ * which level actually changes, are visited (queue-based flood fill with removal wave).
+ *
+ * Light source level is its outer radius, so light reaches the same distance as in other engines.
+ * Tiles, which are more than {@link #FULL_LIGHT_DISTANCE} tiles away from light edge, are fully lit.
+ * Inner radius and spot light cone are ignored.
+ *
+ * @author dector
+ */
+class FloodLightBuffer extends LightBuffer {
+
+	static final int STRAIGHT_COST = 10;
+	static final int DIAGONAL_COST = 14;
+
+	static final int FULL_LIGHT_DISTANCE = 3;
+
+	private static final int FULL_LEVEL = FULL_LIGHT_DISTANCE * STRAIGHT_COST;
+	private static final float[] LEVEL_VALUES = new float[FULL_LEVEL + 1];
+
+	static {
+		for (int l = 0; l <= FULL_LEVEL; l++) {
+			LEVEL_VALUES[l] = (float) Math.pow((float) l / FULL_LEVEL, 1.4f);
+		}
+	}
+
+	private static final int[] NEIGHBOUR_DX = { 1, -1, 0, 0, 1, 1, -1, -1 };
+	private static final int[] NEIGHBOUR_DY = { 0, 0, 1, -1, 1, -1, 1, -1 };
+	private static final int[] NEIGHBOUR_COST = {
+			STRAIGHT_COST, STRAIGHT_COST, STRAIGHT_COST, STRAIGHT_COST,
+			DIAGONAL_COST, DIAGONAL_COST, DIAGONAL_COST, DIAGONAL_COST };
+
+	private final boolean[][] opaque;
+
+	/** Indexed by <code>x * height + y</code> */
+	private final int[] levels;
+
+	// Light sources, linked in lists per tile
+	private final int[] tileSources;
+	private int[] sourceLevel;
+	private int[] sourceNext;
+	private int freeSource = -1;
+	private int sourcesCount;
+
+	private final IntQueue propagateQueue = new IntQueue();
+	private final IntQueue removeQueue = new IntQueue();
+	private final IntQueue reseedQueue = new IntQueue();
+
+	FloodLightBuffer(int width, int height, boolean[][] opaque) {
+		super(width, height);
+
+		this.opaque = opaque;
+
+		levels = new int[width * height];
+		tileSources = new int[width * height];
+
+		sourceLevel = new int[16];
+		sourceNext = new int[16];
+
+		clear();
+	}
+
+	@Override
+	void clear() {
+		for (int i = 0; i < levels.length; i++) {
+			levels[i] = 0;
+			tileSources[i] = -1;
+		}
+
+		freeSource = -1;
+		sourcesCount = 0;
+	}
+
+	@Override
+	void stamp(int x, int y, Light light) {
+		int level = light.outerRadius * STRAIGHT_COST;
+
+		if (level <= 0 || ! isInside(x, y)) return;
+
+		int tile = x * height + y;
+		int source = allocSource();
+		sourceLevel[source] = level;
+		sourceNext[source] = tileSources[tile];
+		tileSources[tile] = source;
+
+		if (! opaque[x][y] && level > levels[tile]) {
+			levels[tile] = level;
+			propagateQueue.push(tile);
+			propagate();
+		}
+	}
+
+	@Override
+	void unstamp(int x, int y, Light light) {
+		int level = light.outerRadius * STRAIGHT_COST;
+
+		if (level <= 0 || ! isInside(x, y)) return;
+
+		int tile = x * height + y;
+		int prev = -1;
+		int source = tileSources[tile];
+
+		while (source >= 0 && sourceLevel[source] != level) {
+			prev = source;
+			source = sourceNext[source];
+		}
+
+		if (source < 0) return;
+
+		if (prev >= 0) {
+			sourceNext[prev] = sourceNext[source];
+		} else {
+			tileSources[tile] = sourceNext[source];
+		}
+
+		sourceNext[source] = freeSource;
+		freeSource = source;
+
+		darken(tile);
+	}
+
+	@Override
+	void opacityChanged(int x, int y) {
+		int tile = x * height + y;
+
+		if (opaque[x][y]) {
+			darken(tile);
+		} else {
+			seedSources(tile);
+
+			for (int n = 0; n < NEIGHBOUR_DX.length; n++) {
+				int nx = x + NEIGHBOUR_DX[n];
+				int ny = y + NEIGHBOUR_DY[n];
+
+				if (isInside(nx, ny) && levels[nx * height + ny] > 0) {
+					propagateQueue.push(nx * height + ny);
+				}
+			}
+
+			propagate();
+		}
+	}
+
+	/**
+	 * Opaque tiles are map's, so they aren't counted.
+	 */
+	@Override
+	long getMemoryUsage() {
+		return MemoryFootprint.arrayBytes(levels.length, 4) + MemoryFootprint.arrayBytes(tileSources.length, 4)
+				+ MemoryFootprint.arrayBytes(sourceLevel.length, 4) + MemoryFootprint.arrayBytes(sourceNext.length, 4)
+				+ propagateQueue.getMemoryUsage() + removeQueue.getMemoryUsage() + reseedQueue.getMemoryUsage();
+	}
+
+	@Override
+	void read(int fromX, int fromY, int toX, int toY, float[] out) {
+		int k = 0;
+
+		for (int x = fromX; x < toX; x++) {
+			int offset = x * height;
+
+			for (int y = fromY; y < toY; y++) {
+				out[k++] = levelValue(levels[offset + y]);
+			}
+		}
+	}
+
+	private static float levelValue(int level) {
+		return (level < FULL_LEVEL) ? LEVEL_VALUES[level] : 1;
+	}
+
+	/**
+	 * Removes light, which passed through tile, and fills the hole
+	 * with light from other sources.
+	 */
+	private void darken(int tile) {
+		if (levels[tile] > 0) {
+			removeQueue.push(tile);
+			removeQueue.push(levels[tile]);
+			levels[tile] = 0;
+		}
+
+		reseedQueue.push(tile);
+
+		while (! removeQueue.isEmpty()) {
+			int t = removeQueue.pop();
+			int level = removeQueue.pop();
+
+			int x = t / height;
+			int y = t % height;
+
+			for (int n = 0; n < NEIGHBOUR_DX.length; n++) {
+				int nx = x + NEIGHBOUR_DX[n];
+				int ny = y + NEIGHBOUR_DY[n];
+
+				if (! isInside(nx, ny)) continue;
+
+				int neighbour = nx * height + ny;
+				int neighbourLevel = levels[neighbour];
+
+				if (neighbourLevel == 0) continue;
+
+				if (neighbourLevel < level) {
+					levels[neighbour] = 0;
+					removeQueue.push(neighbour);
+					removeQueue.push(neighbourLevel);
+
+					if (tileSources[neighbour] >= 0) {
+						reseedQueue.push(neighbour);
+					}
+				} else {
+					propagateQueue.push(neighbour);
+				}
+			}
+		}
+
+		while (! reseedQueue.isEmpty()) {
+			seedSources(reseedQueue.pop());
+		}
+
+		propagate();
+	}
+
+	private void seedSources(int tile) {
+		if (opaque[tile / height][tile % height]) return;
+
+		for (int s = tileSources[tile]; s >= 0; s = sourceNext[s]) {
+			if (sourceLevel[s] > levels[tile]) {
+				levels[tile] = sourceLevel[s];
+				propagateQueue.push(tile);
+			}
+		}
+	}
+
+	private void propagate() {
+		while (! propagateQueue.isEmpty()) {
+			int t = propagateQueue.pop();
+			int level = levels[t];
+
+			int x = t / height;
+			int y = t % height;
+
+			for (int n = 0; n < NEIGHBOUR_DX.length; n++) {
+				int newLevel = level - NEIGHBOUR_COST[n];
+
+				if (newLevel <= 0) continue;
+
+				int nx = x + NEIGHBOUR_DX[n];
+				int ny = y + NEIGHBOUR_DY[n];
+
+				if (! isInside(nx, ny) || opaque[nx][ny]) continue;
+
+				int neighbour = nx * height + ny;
+
+				if (newLevel > levels[neighbour]) {
+					levels[neighbour] = newLevel;
+					propagateQueue.push(neighbour);
+				}
+			}
+		}
+	}
+
+	private boolean isInside(int x, int y) {
+		return 0 <= x && x < width && 0 <= y && y < height;
+	}
+
+	private int allocSource() {
+		if (freeSource >= 0) {
+			int s = freeSource;
+			freeSource = sourceNext[s];
+			return s;
+		}
+
+		if (sourcesCount == sourceLevel.length) {
+			sourceLevel = grow(sourceLevel);
+			sourceNext = grow(sourceNext);
+		}
+
+		return sourcesCount++;
+	}
+
+	private static int[] grow(int[] a) {
+		int[] b = new int[a.length * 2];
+		System.arraycopy(a, 0, b, 0, a.length);
+		return b;
+	}
+}
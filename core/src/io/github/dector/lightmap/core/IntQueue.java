@@ -0,0 +1,44 @@
+package io.github.dector.lightmap.core;
+
+/**
+ * Growable FIFO queue of ints.
+ *
+ * @author dector
+ */
+class IntQueue {
+
+	private int[] items = new int[64];
+	private int head;
+	private int size;
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	void push(int value) {
+		if (size == items.length) {
+			int[] newItems = new int[items.length * 2];
+
+			for (int i = 0; i < size; i++) {
+				newItems[i] = items[(head + i) & (items.length - 1)];
+			}
+
+			items = newItems;
+			head = 0;
+		}
+
+		items[(head + size) & (items.length - 1)] = value;
+		size++;
+	}
+
+	long getMemoryUsage() {
+		return MemoryFootprint.arrayBytes(items.length, 4);
+	}
+
+	int pop() {
+		int value = items[head];
+		head = (head + 1) & (items.length - 1);
+		size--;
+		return value;
+	}
+}
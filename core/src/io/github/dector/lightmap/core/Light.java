@@ -1,22 +1,80 @@
 package io.github.dector.lightmap.core;
 
 /**
+ * Color is packed as <code>0xRRGGBB</code> and matters only for colored maps
+ * (see {@link LightMap#LightMap(int, int, LightEngine, boolean)}).
+ *
+ * Spot light (e.g. flashlight) shines only inside cone around its direction.
+ * Direction is rounded to one of {@link #DIRECTIONS} steps, lights for each step
+ * and their footprints are counted once and cached, so rotating light
+ * with {@link #rotatedTo(float)} doesn't allocate or count any trigonometry.
+ *
  * @author dector
  */
 public class Light {
 
 	public static final int RADIUS_OFF = -1;
 
+	public static final int WHITE = 0xFFFFFF;
+
+	public static final float FULL_CIRCLE = (float) (2 * Math.PI);
+
+	/** Number of spot light directions */
+	public static final int DIRECTIONS = 64;
+
 	public final int outerRadius;
 	public final int innerRadius;
+	public final int color;
+
+	/** Angle of spot light cone in radians, {@link #FULL_CIRCLE} for omnidirectional light */
+	public final float coneAngle;
+	/** Index of direction, from 0 (to positive x) to {@link #DIRECTIONS} counter-clockwise */
+	public final int direction;
+
+	/** Packed colors for each tile around light, counted on first use */
+	volatile int[] colorKernel;
+	/** The same for {@link LightEngine#FIXED_POINT} engine */
+	volatile int[] fixedColorKernel;
+
+	/** Tiles around spot light, which are inside cone. Counted on first use */
+	private volatile boolean[] spotMask;
+
+	/** The same spot light in all directions, shared between them */
+	private final Light[] rotations;
 
 	public Light(int outerRadius) {
 		this(RADIUS_OFF, outerRadius);
 	}
 
 	public Light(int innerRadius, int outerRadius) {
+		this(innerRadius, outerRadius, WHITE);
+	}
+
+	public Light(int innerRadius, int outerRadius, int color) {
+		this(innerRadius, outerRadius, color, FULL_CIRCLE, 0);
+	}
+
+	/**
+	 * @param coneAngle in radians
+	 * @param direction in radians, counter-clockwise from positive x
+	 */
+	public Light(int innerRadius, int outerRadius, int color, float coneAngle, float direction) {
+		this(innerRadius, outerRadius, color, coneAngle, directionIndex(direction), null);
+	}
+
+	private Light(int innerRadius, int outerRadius, int color, float coneAngle, int direction, Light[] rotations) {
 		this.innerRadius = (innerRadius >= RADIUS_OFF) ? innerRadius : RADIUS_OFF;
 		this.outerRadius = (outerRadius >= RADIUS_OFF) ? outerRadius : RADIUS_OFF;
+		this.color = color & WHITE;
+		this.coneAngle = Math.min(Math.max(coneAngle, 0), FULL_CIRCLE);
+		this.direction = isSpot() ? direction : 0;
+
+		if (isSpot()) {
+			this.rotations = (rotations != null) ? rotations : new Light[DIRECTIONS];
+			this.rotations[this.direction] = this;
+		} else {
+			this.rotations = null;
+		}
 	}
 
 	public static Light lightSquare(int radius) {
@@ -27,8 +85,86 @@ public class Light {
 		return new Light(radius, radius);
 	}
 
+	/**
+	 * @param coneAngle in radians
+	 * @param direction in radians, counter-clockwise from positive x
+	 */
+	public static Light spot(int radius, float coneAngle, float direction) {
+		return new Light(RADIUS_OFF, radius, WHITE, coneAngle, direction);
+	}
+
 	public final boolean isOn() {
 		return outerRadius > RADIUS_OFF
 				|| innerRadius > RADIUS_OFF;
 	}
+
+	public final boolean isSpot() {
+		return coneAngle < FULL_CIRCLE;
+	}
+
+	/**
+	 * @return direction in radians (rounded to one of {@link #DIRECTIONS})
+	 */
+	public float getDirection() {
+		return direction * FULL_CIRCLE / DIRECTIONS;
+	}
+
+	/**
+	 * Returns the same spot light turned to direction (in radians).
+	 * Lights for each direction are created once and reused.
+	 * Omnidirectional light returns itself.
+	 */
+	public Light rotatedTo(float direction) {
+		if (! isSpot()) return this;
+
+		int index = directionIndex(direction);
+		Light light = rotations[index];
+
+		if (light == null) {
+			light = new Light(innerRadius, outerRadius, color, coneAngle, index, rotations);
+		}
+
+		return light;
+	}
+
+	/**
+	 * Tells whether tile at offset from light is inside cone.
+	 * Indexed by <code>(dx + outerRadius) * (2 * outerRadius + 1) + dy + outerRadius</code>.
+	 *
+	 * @return <code>null</code> for omnidirectional light
+	 */
+	boolean[] spotMask() {
+		if (! isSpot() || outerRadius < 0) return null;
+
+		boolean[] mask = spotMask;
+
+		if (mask != null) return mask;
+
+		int r = outerRadius;
+		int size = 2 * r + 1;
+		double center = direction * StrictMath.PI * 2 / DIRECTIONS;
+		double halfCone = coneAngle / 2 + 1e-6;
+
+		mask = new boolean[size * size];
+
+		for (int dx = -r; dx <= r; dx++) {
+			for (int dy = -r; dy <= r; dy++) {
+				double diff = StrictMath.atan2(dy, dx) - center;
+
+				// To [-PI, PI]
+				diff -= StrictMath.floor((diff + StrictMath.PI) / (2 * StrictMath.PI)) * 2 * StrictMath.PI;
+
+				mask[(dx + r) * size + dy + r] = (dx == 0 && dy == 0) || Math.abs(diff) <= halfCone;
+			}
+		}
+
+		spotMask = mask;
+
+		return mask;
+	}
+
+	private static int directionIndex(float direction) {
+		int index = Math.round(direction / FULL_CIRCLE * DIRECTIONS) % DIRECTIONS;
+		return (index < 0) ? index + DIRECTIONS : index;
+	}
 }
@@ -0,0 +1,132 @@
+package io.github.dector.lightmap.core;
+
+/**
+ * Accumulates light values of one layer. Representation depends on {@link LightEngine}.
+ *
+ * @author dector
+ */
+abstract class LightBuffer {
+
+	protected final int width;
+	protected final int height;
+
+	/** Stamps are limited to this rectangle (inclusive bounds), see {@link #clip(int, int, int, int)} */
+	protected int clipFromX;
+	protected int clipFromY;
+	protected int clipToX;
+	protected int clipToY;
+
+	LightBuffer(int width, int height) {
+		this.width = width;
+		this.height = height;
+
+		clipToX = width - 1;
+		clipToY = height - 1;
+	}
+
+	abstract void clear();
+
+	abstract void stamp(int x, int y, Light light);
+
+	/**
+	 * Stamps <code>count</code> equal lights at the same tile (e.g. merged distant lights).
+	 */
+	void stamp(int x, int y, Light light, int count) {
+		for (int i = 0; i < count; i++) {
+			stamp(x, y, light);
+		}
+	}
+
+	/**
+	 * Supported by buffers of incremental engines only.
+	 */
+	void unstamp(int x, int y, Light light) {
+		throw new UnsupportedOperationException();
+	}
+
+	void opacityChanged(int x, int y) {}
+
+	/**
+	 * Clears rectangle (inclusive bounds, within buffer) and limits next stamps to it,
+	 * so it can be recounted from lights, which reach it. Call {@link #unclip()} then.
+	 * Supported by buffers of not incremental engines only.
+	 */
+	void clip(int fromX, int fromY, int toX, int toY) {
+		clear(fromX, fromY, toX, toY);
+
+		clipFromX = fromX;
+		clipFromY = fromY;
+		clipToX = toX;
+		clipToY = toY;
+	}
+
+	void unclip() {
+		clipFromX = 0;
+		clipFromY = 0;
+		clipToX = width - 1;
+		clipToY = height - 1;
+	}
+
+	/**
+	 * Clears rectangle (inclusive bounds).
+	 */
+	void clear(int fromX, int fromY, int toX, int toY) {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Allows to count lights approximately, but not worse than <code>maxError</code> for each light.
+	 * Ignored by buffers, which have no approximate mode.
+	 */
+	void setMaxError(float maxError) {}
+
+	/**
+	 * Stores light values of rectangle (exclusive bounds) into <code>out</code> column by column.
+	 */
+	abstract void read(int fromX, int fromY, int toX, int toY, float[] out);
+
+	/**
+	 * Stores packed colors of rectangle like {@link #read(int, int, int, int, float[])}.
+	 * Supported by buffers of colored maps only.
+	 */
+	void readColors(int fromX, int fromY, int toX, int toY, int[] out) {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * @return bytes taken in heap, spilled columns excluded
+	 */
+	abstract long getMemoryUsage();
+
+	// Paging of columns, supported by buffers, which keep each column in its own array
+
+	/**
+	 * Sets current step: columns stamped or read from now on are used at this step.
+	 */
+	void setTick(int tick) {}
+
+	/**
+	 * @return step, when column was used last time, or <code>-1</code> if it can't be spilled
+	 */
+	int getColumnLastUse(int x) {
+		return -1;
+	}
+
+	/**
+	 * Moves column to store. Column is taken back on next stamp or read.
+	 *
+	 * @return freed bytes
+	 */
+	long spillColumn(int x, SpillStore store) {
+		return 0;
+	}
+
+	int getSpilledColumnsCount() {
+		return 0;
+	}
+
+	/**
+	 * Takes all spilled columns back.
+	 */
+	void restoreColumns() {}
+}
@@ -0,0 +1,381 @@
+package io.github.dector.lightmap.core;
+
+import java.util.Arrays;
+
+/**
+ * Ring of recent {@link LightMap} checkpoints.
+ *
+ * Light values and walls are saved copy-on-write: chunk is copied into the newest checkpoint
+ * just before it's combined for the first time after that checkpoint, wall is logged when it changes.
+ * Light changes are logged too and undone by map.
+ * Restoring puts saved chunks back from the newest checkpoint to the wanted one,
+ * so both taking and restoring cost is proportional to changes.
+ *
+ * @author dector
+ */
+final class LightCheckpoints {
+
+	static final class Checkpoint {
+
+		int id;
+
+		// Light values and walls before changes made after this checkpoint
+
+		int chunksCount;
+		int[] chunks = new int[16];
+		float[][] chunkValues = new float[16][];
+		int[][] chunkColors = new int[16][];
+
+		/** <code>tile &lt;&lt; 1 | old value</code> in order of changes */
+		int[] walls = new int[16];
+		int wallsCount;
+
+		/**
+		 * Lights before changes, in order of changes: light of layer at position
+		 * or dynamic light with id (layer is <code>null</code> then).
+		 * Old light is <code>null</code> if there was no light.
+		 */
+		LightLayer[] lightLayers = new LightLayer[16];
+		int[] lightXs = new int[16];
+		int[] lightYs = new int[16];
+		int[] lightIds = new int[16];
+		Light[] oldLights = new Light[16];
+		int lightsCount;
+
+		// State at checkpoint
+
+		int layersCount;
+		float[] ambientValues = new float[0];
+
+		int lastDynamicId;
+		int nextDynamicId;
+
+		/** Chunks, which weren't combined with current lights at checkpoint */
+		int[] dirtyChunks = new int[0];
+		int dirtyChunksCount;
+
+		void setLayersCount(int count) {
+			if (ambientValues.length < count) {
+				ambientValues = new float[count];
+			}
+
+			layersCount = count;
+		}
+
+		void saveDirtyChunks(DirtyChunks dirty) {
+			if (dirtyChunks.length < dirtyChunksCount + dirty.size()) {
+				dirtyChunks = Arrays.copyOf(dirtyChunks, dirtyChunksCount + dirty.size());
+			}
+
+			for (int i = 0; i < dirty.size(); i++) {
+				dirtyChunks[dirtyChunksCount++] = dirty.get(i);
+			}
+		}
+	}
+
+	private final int width;
+	private final int height;
+	private final boolean colored;
+	private final DirtyChunks chunks;
+	private final int chunkArea = DirtyChunks.CHUNK_SIZE * DirtyChunks.CHUNK_SIZE;
+
+	private Checkpoint[] ring;
+	/** Index of the oldest checkpoint */
+	private int first;
+	private int count;
+	private int nextId;
+
+	/** Id of checkpoint, which saved chunk last time */
+	private final int[] chunkSavedBy;
+
+	private float[][] valuesPool = new float[16][];
+	private int[][] colorsPool = new int[16][];
+	private int poolSize;
+
+	LightCheckpoints(int width, int height, boolean colored, DirtyChunks chunks, int capacity) {
+		this.width = width;
+		this.height = height;
+		this.colored = colored;
+		this.chunks = chunks;
+
+		ring = new Checkpoint[capacity];
+
+		chunkSavedBy = new int[chunks.getChunksCount()];
+		Arrays.fill(chunkSavedBy, -1);
+	}
+
+	int getCapacity() {
+		return ring.length;
+	}
+
+	void setCapacity(int capacity) {
+		while (count > capacity) {
+			forgetOldest();
+		}
+
+		Checkpoint[] newRing = new Checkpoint[capacity];
+
+		for (int i = 0; i < count; i++) {
+			newRing[i] = ring[(first + i) % ring.length];
+		}
+
+		ring = newRing;
+		first = 0;
+	}
+
+	/**
+	 * @return <code>null</code> if there are no checkpoints
+	 */
+	Checkpoint newest() {
+		return (count > 0) ? ring[(first + count - 1) % ring.length] : null;
+	}
+
+	/**
+	 * @return <code>null</code> if checkpoint is forgotten
+	 */
+	Checkpoint get(int id) {
+		// Ids aren't consecutive after restore, ring is short anyway
+		for (int i = 0; i < count; i++) {
+			Checkpoint checkpoint = ring[(first + i) % ring.length];
+
+			if (checkpoint.id == id) return checkpoint;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Starts new checkpoint, its state should be filled by caller.
+	 */
+	Checkpoint add() {
+		if (count == ring.length) {
+			forgetOldest();
+		}
+
+		int index = (first + count) % ring.length;
+		Checkpoint checkpoint = ring[index];
+
+		if (checkpoint == null) {
+			checkpoint = ring[index] = new Checkpoint();
+		}
+
+		checkpoint.id = nextId++;
+		checkpoint.dirtyChunksCount = 0;
+		count++;
+
+		return checkpoint;
+	}
+
+	void clear() {
+		while (count > 0) {
+			forgetOldest();
+		}
+	}
+
+	/**
+	 * Call before combined values of chunk are changed.
+	 */
+	void chunkChanging(int chunk, float[][] lightValues, int[] colorValues) {
+		Checkpoint checkpoint = newest();
+
+		if (checkpoint == null || chunkSavedBy[chunk] == checkpoint.id) return;
+
+		chunkSavedBy[chunk] = checkpoint.id;
+
+		int n = checkpoint.chunksCount;
+
+		if (n == checkpoint.chunks.length) {
+			checkpoint.chunks = Arrays.copyOf(checkpoint.chunks, n * 2);
+			checkpoint.chunkValues = Arrays.copyOf(checkpoint.chunkValues, n * 2);
+			checkpoint.chunkColors = Arrays.copyOf(checkpoint.chunkColors, n * 2);
+		}
+
+		float[] values = (poolSize > 0) ? valuesPool[poolSize - 1] : new float[chunkArea];
+		int[] colors = (poolSize > 0) ? colorsPool[poolSize - 1] : (colored ? new int[chunkArea] : null);
+
+		if (poolSize > 0) {
+			valuesPool[--poolSize] = null;
+			colorsPool[poolSize] = null;
+		}
+
+		int k = 0;
+		for (int x = chunks.fromX(chunk); x < chunks.toX(chunk); x++) {
+			float[] column = lightValues[x];
+
+			for (int y = chunks.fromY(chunk); y < chunks.toY(chunk); y++) {
+				values[k] = column[y];
+
+				if (colored) {
+					colors[k] = colorValues[y * width + x];
+				}
+
+				k++;
+			}
+		}
+
+		checkpoint.chunks[n] = chunk;
+		checkpoint.chunkValues[n] = values;
+		checkpoint.chunkColors[n] = colors;
+		checkpoint.chunksCount = n + 1;
+	}
+
+	/**
+	 * Call before light of layer is added, replaced or removed.
+	 */
+	void lightChanging(LightLayer layer, int x, int y, Light old) {
+		logLight(layer, x, y, -1, old);
+	}
+
+	/**
+	 * Call before dynamic light with id is added, moved, turned or removed.
+	 *
+	 * @param old <code>null</code> if light is added
+	 */
+	void dynamicLightChanging(int id, int x, int y, Light old) {
+		logLight(null, x, y, id, old);
+	}
+
+	private void logLight(LightLayer layer, int x, int y, int id, Light old) {
+		Checkpoint checkpoint = newest();
+
+		if (checkpoint == null) return;
+
+		int n = checkpoint.lightsCount;
+
+		if (n == checkpoint.oldLights.length) {
+			checkpoint.lightLayers = Arrays.copyOf(checkpoint.lightLayers, n * 2);
+			checkpoint.lightXs = Arrays.copyOf(checkpoint.lightXs, n * 2);
+			checkpoint.lightYs = Arrays.copyOf(checkpoint.lightYs, n * 2);
+			checkpoint.lightIds = Arrays.copyOf(checkpoint.lightIds, n * 2);
+			checkpoint.oldLights = Arrays.copyOf(checkpoint.oldLights, n * 2);
+		}
+
+		checkpoint.lightLayers[n] = layer;
+		checkpoint.lightXs[n] = x;
+		checkpoint.lightYs[n] = y;
+		checkpoint.lightIds[n] = id;
+		checkpoint.oldLights[n] = old;
+		checkpoint.lightsCount = n + 1;
+	}
+
+	/**
+	 * Call before wall is changed.
+	 */
+	void wallChanging(int x, int y, boolean old) {
+		Checkpoint checkpoint = newest();
+
+		if (checkpoint == null) return;
+
+		if (checkpoint.wallsCount == checkpoint.walls.length) {
+			checkpoint.walls = Arrays.copyOf(checkpoint.walls, checkpoint.wallsCount * 2);
+		}
+
+		checkpoint.walls[checkpoint.wallsCount++] = ((x * height + y) << 1) | (old ? 1 : 0);
+	}
+
+	/**
+	 * Puts back light values of the newest checkpoint. Its walls and lights should be undone by caller,
+	 * then checkpoint should be forgotten by {@link #forgetNewest()} or kept by {@link #releaseNewest()}.
+	 */
+	Checkpoint restoreNewest(float[][] lightValues, int[] colorValues, LightSummary summary) {
+		Checkpoint checkpoint = newest();
+
+		for (int i = checkpoint.chunksCount - 1; i >= 0; i--) {
+			int chunk = checkpoint.chunks[i];
+			float[] values = checkpoint.chunkValues[i];
+			int[] colors = checkpoint.chunkColors[i];
+
+			int fromX = chunks.fromX(chunk);
+			int fromY = chunks.fromY(chunk);
+			int toX = chunks.toX(chunk);
+			int toY = chunks.toY(chunk);
+
+			int k = 0;
+			for (int x = fromX; x < toX; x++) {
+				float[] column = lightValues[x];
+
+				for (int y = fromY; y < toY; y++) {
+					column[y] = values[k];
+
+					if (colored) {
+						colorValues[y * width + x] = colors[k];
+					}
+
+					k++;
+				}
+			}
+
+			summary.invalidate(fromX, fromY, toX, toY);
+			chunkSavedBy[chunk] = -1;
+		}
+
+		return checkpoint;
+	}
+
+	/**
+	 * Drops changes of restored newest checkpoint, it's kept for next changes.
+	 */
+	void releaseNewest() {
+		releaseChanges(newest());
+	}
+
+	void forgetNewest() {
+		Checkpoint checkpoint = newest();
+
+		releaseChanges(checkpoint);
+		count--;
+	}
+
+	long getMemoryUsage() {
+		long bytes = MemoryFootprint.arrayBytes(ring.length, 4) + MemoryFootprint.arrayBytes(chunkSavedBy.length, 4)
+				+ MemoryFootprint.arrayBytes(valuesPool.length, 4) + MemoryFootprint.arrayBytes(colorsPool.length, 4);
+		long chunkBytes = MemoryFootprint.arrayBytes(chunkArea, 4) * (colored ? 2 : 1);
+
+		bytes += poolSize * chunkBytes;
+
+		for (int i = 0; i < count; i++) {
+			Checkpoint checkpoint = ring[(first + i) % ring.length];
+
+			bytes += checkpoint.chunksCount * chunkBytes + MemoryFootprint.arrayBytes(checkpoint.walls.length, 4)
+					+ MemoryFootprint.arrayBytes(checkpoint.oldLights.length, 4) * 5
+					+ MemoryFootprint.arrayBytes(checkpoint.ambientValues.length, 4)
+					+ MemoryFootprint.arrayBytes(checkpoint.dirtyChunks.length, 4);
+		}
+
+		return bytes;
+	}
+
+	private void forgetOldest() {
+		Checkpoint checkpoint = ring[first];
+
+		releaseChanges(checkpoint);
+
+		first = (first + 1) % ring.length;
+		count--;
+	}
+
+	/**
+	 * Returns saved chunks to pool.
+	 */
+	private void releaseChanges(Checkpoint checkpoint) {
+		for (int i = 0; i < checkpoint.chunksCount; i++) {
+			if (poolSize == valuesPool.length) {
+				valuesPool = Arrays.copyOf(valuesPool, poolSize * 2);
+				colorsPool = Arrays.copyOf(colorsPool, poolSize * 2);
+			}
+
+			valuesPool[poolSize] = checkpoint.chunkValues[i];
+			colorsPool[poolSize++] = checkpoint.chunkColors[i];
+
+			checkpoint.chunkValues[i] = null;
+			checkpoint.chunkColors[i] = null;
+		}
+
+		Arrays.fill(checkpoint.lightLayers, 0, checkpoint.lightsCount, null);
+		Arrays.fill(checkpoint.oldLights, 0, checkpoint.lightsCount, null);
+
+		checkpoint.chunksCount = 0;
+		checkpoint.wallsCount = 0;
+		checkpoint.lightsCount = 0;
+	}
+}
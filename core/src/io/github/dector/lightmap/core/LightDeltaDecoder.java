@@ -0,0 +1,111 @@
+package io.github.dector.lightmap.core;
+
+import static io.github.dector.lightmap.core.LightDeltaEncoder.CHUNK_SHIFT;
+import static io.github.dector.lightmap.core.LightDeltaEncoder.CHUNK_SIZE;
+import static io.github.dector.lightmap.core.LightDeltaEncoder.LEVELS;
+
+/**
+ * Client side of {@link LightDeltaEncoder}. Applies deltas to local light values.
+ *
+ * @author dector
+ */
+public class LightDeltaDecoder {
+
+	private final int width;
+	private final int height;
+	private final int chunksX;
+
+	private final float[][] lightValues;
+
+	private byte[] data;
+	private int offset;
+
+	public LightDeltaDecoder(int width, int height) {
+		this.width = width;
+		this.height = height;
+
+		chunksX = (width + CHUNK_SIZE - 1) >> CHUNK_SHIFT;
+
+		lightValues = new float[width][height];
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public float getLightValueAt(int x, int y) {
+		return lightValues[x][y];
+	}
+
+	public float[][] getLightValues() {
+		return lightValues;
+	}
+
+	public void apply(byte[] delta) {
+		apply(delta, 0);
+	}
+
+	/**
+	 * @return offset right after applied delta
+	 */
+	public int apply(byte[] delta, int offset) {
+		this.data = delta;
+		this.offset = offset;
+
+		int changedChunks = readVarint();
+
+		int chunk = -1;
+		for (int c = 0; c < changedChunks; c++) {
+			chunk += readVarint() + 1;
+			readChunk(chunk);
+		}
+
+		this.data = null;
+
+		return this.offset;
+	}
+
+	private void readChunk(int chunk) {
+		int fromX = (chunk % chunksX) << CHUNK_SHIFT;
+		int fromY = (chunk / chunksX) << CHUNK_SHIFT;
+		int toX = Math.min(fromX + CHUNK_SIZE, width);
+		int toY = Math.min(fromY + CHUNK_SIZE, height);
+
+		int rowHeight = toY - fromY;
+		int n = (toX - fromX) * rowHeight;
+		int pos = 0;
+
+		while (pos < n) {
+			pos += readVarint();
+
+			if (pos >= n) break;
+
+			int changed = readVarint();
+
+			for (int k = pos; k < pos + changed; k++) {
+				int value = data[offset++] & 0xFF;
+				lightValues[fromX + k / rowHeight][fromY + k % rowHeight] = (float) value / LEVELS;
+			}
+
+			pos += changed;
+		}
+	}
+
+	private int readVarint() {
+		int value = 0;
+		int shift = 0;
+
+		while (true) {
+			int b = data[offset++];
+			value |= (b & 0x7F) << shift;
+
+			if ((b & 0x80) == 0) return value;
+
+			shift += 7;
+		}
+	}
+}
@@ -0,0 +1,162 @@
+package io.github.dector.lightmap.core;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Encodes changes of light values between frames for sending them to clients.
+ * Decode them with {@link LightDeltaDecoder}.
+ *
+ * Values are quantized to {@link #LEVELS} levels. Only changed chunks of
+ * {@link #CHUNK_SIZE}x{@link #CHUNK_SIZE} tiles are written.
+ * Tiles of chunk are run-length encoded as pairs of unchanged run and changed run lengths,
+ * followed by new values of changed tiles. All numbers are varints.
+ *
+ * Each encoder keeps state of its client, so use one encoder per client.
+ *
+ * @author dector
+ */
+public class LightDeltaEncoder {
+
+	public static final int CHUNK_SHIFT = 4;
+	public static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+
+	public static final int LEVELS = 255;
+
+	private final int width;
+	private final int height;
+	private final int chunksX;
+	private final int chunksY;
+
+	/** Values known by client */
+	private final byte[] sent;
+	private final byte[] current;
+	private final int[] changedChunks;
+
+	private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+	public LightDeltaEncoder(int width, int height) {
+		this.width = width;
+		this.height = height;
+
+		chunksX = (width + CHUNK_SIZE - 1) >> CHUNK_SHIFT;
+		chunksY = (height + CHUNK_SIZE - 1) >> CHUNK_SHIFT;
+
+		sent = new byte[width * height];
+		current = new byte[CHUNK_SIZE * CHUNK_SIZE];
+		changedChunks = new int[chunksX * chunksY];
+	}
+
+	/**
+	 * Forgets client state, so next delta will contain all non-dark tiles.
+	 */
+	public void reset() {
+		for (int i = 0; i < sent.length; i++) {
+			sent[i] = 0;
+		}
+	}
+
+	public byte[] encode(LightMap map) {
+		return encode(map.getLightValues());
+	}
+
+	public byte[] encode(float[][] values) {
+		out.reset();
+
+		int changedCount = 0;
+		for (int c = 0; c < chunksX * chunksY; c++) {
+			if (isChunkChanged(values, c)) {
+				changedChunks[changedCount++] = c;
+			}
+		}
+
+		writeVarint(changedCount);
+
+		int lastChunk = -1;
+		for (int i = 0; i < changedCount; i++) {
+			int c = changedChunks[i];
+
+			writeVarint(c - lastChunk - 1);
+			writeChunk(values, c);
+
+			lastChunk = c;
+		}
+
+		return out.toByteArray();
+	}
+
+	static int quantize(float value) {
+		return (int) (value * LEVELS + 0.5f);
+	}
+
+	private boolean isChunkChanged(float[][] values, int chunk) {
+		int fromX = (chunk % chunksX) << CHUNK_SHIFT;
+		int fromY = (chunk / chunksX) << CHUNK_SHIFT;
+		int toX = Math.min(fromX + CHUNK_SIZE, width);
+		int toY = Math.min(fromY + CHUNK_SIZE, height);
+
+		for (int i = fromX; i < toX; i++) {
+			for (int j = fromY; j < toY; j++) {
+				if ((byte) quantize(values[i][j]) != sent[i * height + j]) return true;
+			}
+		}
+
+		return false;
+	}
+
+	private void writeChunk(float[][] values, int chunk) {
+		int fromX = (chunk % chunksX) << CHUNK_SHIFT;
+		int fromY = (chunk / chunksX) << CHUNK_SHIFT;
+		int toX = Math.min(fromX + CHUNK_SIZE, width);
+		int toY = Math.min(fromY + CHUNK_SIZE, height);
+
+		// Collect tiles in the same order decoder walks them
+		int n = 0;
+		for (int i = fromX; i < toX; i++) {
+			for (int j = fromY; j < toY; j++) {
+				current[n++] = (byte) quantize(values[i][j]);
+			}
+		}
+
+		int pos = 0;
+		int rowHeight = toY - fromY;
+
+		while (pos < n) {
+			int skip = 0;
+			while (pos + skip < n && current[pos + skip] == sent[sentIndex(fromX, fromY, rowHeight, pos + skip)]) {
+				skip++;
+			}
+
+			writeVarint(skip);
+			pos += skip;
+
+			if (pos >= n) break;
+
+			int changed = 0;
+			while (pos + changed < n && current[pos + changed] != sent[sentIndex(fromX, fromY, rowHeight, pos + changed)]) {
+				changed++;
+			}
+
+			writeVarint(changed);
+
+			for (int k = pos; k < pos + changed; k++) {
+				out.write(current[k]);
+				sent[sentIndex(fromX, fromY, rowHeight, k)] = current[k];
+			}
+
+			pos += changed;
+		}
+	}
+
+	private int sentIndex(int fromX, int fromY, int rowHeight, int pos) {
+		return (fromX + pos / rowHeight) * height + fromY + pos % rowHeight;
+	}
+
+	private void writeVarint(int value) {
+		while ((value & ~0x7F) != 0) {
+			out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+
+		out.write(value);
+	}
+}
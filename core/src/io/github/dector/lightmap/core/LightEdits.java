@@ -0,0 +1,342 @@
+package io.github.dector.lightmap.core;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Thread-safe queue of {@link LightMap} changes. Any thread can submit changes without locks,
+ * map applies them at the beginning of {@link LightMap#step()}.
+ *
+ * Changes are coalesced before applying: only the last move of dynamic light counts,
+ * light added and removed during the same step is not applied at all,
+ * and only the last change of static light at each position counts.
+ *
+ * Based on intrusive multi-producer single-consumer queue:
+ * producers just swap the tail, the only consumer is stepping thread.
+ *
+ * @author dector
+ */
+public class LightEdits {
+
+	private static final int ADD_LIGHT = 1;
+	private static final int REMOVE_LIGHT = 2;
+	private static final int ADD_DYNAMIC = 3;
+	private static final int MOVE_DYNAMIC = 4;
+	private static final int REMOVE_DYNAMIC = 5;
+	private static final int SET_OPAQUE = 6;
+	private static final int SET_AMBIENT = 7;
+
+	/** Pending dynamic light was added and removed during one step */
+	private static final int CANCELLED = 8;
+
+	/** Marks pending removal of static light */
+	private static final Light REMOVED = new Light(Light.RADIUS_OFF);
+
+	private final LightMap map;
+
+	private final AtomicReference<Edit> tail;
+	private Edit head;
+
+	// Coalesced changes. Used by stepping thread only
+
+	private LightLayer[] touchedLayers = new LightLayer[4];
+	private LightStore[] pendingLights = new LightStore[4];
+	private int touchedLayersCount;
+
+	private int[] dynamicOps = new int[16];
+	private int[] dynamicX = new int[16];
+	private int[] dynamicY = new int[16];
+	private Light[] dynamicLights = new Light[16];
+	private int[] touchedDynamic = new int[16];
+	private int touchedDynamicCount;
+
+	LightEdits(LightMap map) {
+		this.map = map;
+
+		head = new Edit();
+		tail = new AtomicReference<Edit>(head);
+	}
+
+	public void addStaticLight(Light light, int x, int y) {
+		addLight(map.getStaticLayer(), light, x, y);
+	}
+
+	public void removeStaticLightAt(int x, int y) {
+		removeLight(map.getStaticLayer(), x, y);
+	}
+
+	public void addLight(LightLayer layer, Light light, int x, int y) {
+		Edit e = new Edit(ADD_LIGHT);
+		e.layer = layer;
+		e.light = light;
+		e.x = x;
+		e.y = y;
+		offer(e);
+	}
+
+	public void removeLight(LightLayer layer, int x, int y) {
+		Edit e = new Edit(REMOVE_LIGHT);
+		e.layer = layer;
+		e.x = x;
+		e.y = y;
+		offer(e);
+	}
+
+	/**
+	 * @return id of new light, which can be used right away
+	 */
+	public int addDynamicLight(Light light, int x, int y) {
+		Edit e = new Edit(ADD_DYNAMIC);
+		e.id = map.reserveDynamicLightId();
+		e.light = light;
+		e.x = x;
+		e.y = y;
+		offer(e);
+
+		return e.id;
+	}
+
+	public void setDynamicLightTo(int id, int x, int y) {
+		Edit e = new Edit(MOVE_DYNAMIC);
+		e.id = id;
+		e.x = x;
+		e.y = y;
+		offer(e);
+	}
+
+	public void removeDynamicLight(int id) {
+		Edit e = new Edit(REMOVE_DYNAMIC);
+		e.id = id;
+		offer(e);
+	}
+
+	public void setOpaque(int x, int y, boolean opaque) {
+		Edit e = new Edit(SET_OPAQUE);
+		e.x = x;
+		e.y = y;
+		e.id = opaque ? 1 : 0;
+		offer(e);
+	}
+
+	public void setAmbientValue(LightLayer layer, float value) {
+		Edit e = new Edit(SET_AMBIENT);
+		e.layer = layer;
+		e.value = value;
+		offer(e);
+	}
+
+	private void offer(Edit e) {
+		Edit prev = tail.getAndSet(e);
+		prev.next = e;
+	}
+
+	/**
+	 * Drains queue and applies coalesced changes to map. Called from stepping thread only.
+	 *
+	 * @return <code>false</code> if time budget of {@link LightMap#step(long)} ran out,
+	 * the rest of changes will be applied at next call
+	 */
+	boolean apply() {
+		Edit e;
+
+		while ((e = poll()) != null) {
+			switch (e.type) {
+				case ADD_LIGHT:
+					pendingLight(e.layer, e.x, e.y, e.light);
+					break;
+				case REMOVE_LIGHT:
+					pendingLight(e.layer, e.x, e.y, REMOVED);
+					break;
+				case ADD_DYNAMIC:
+					pendingDynamic(e.id, ADD_DYNAMIC, e.light, e.x, e.y);
+					break;
+				case MOVE_DYNAMIC:
+					pendingDynamic(e.id, MOVE_DYNAMIC, null, e.x, e.y);
+					break;
+				case REMOVE_DYNAMIC:
+					pendingDynamic(e.id, REMOVE_DYNAMIC, null, 0, 0);
+					break;
+				case SET_OPAQUE:
+					map.setOpaque(e.x, e.y, e.id != 0);
+					break;
+				case SET_AMBIENT:
+					map.setAmbientValue(e.layer, e.value);
+					break;
+			}
+		}
+
+		return applyPendingLights() && applyPendingDynamic();
+	}
+
+	/**
+	 * @return <code>true</code> if there is nothing to apply
+	 */
+	boolean isEmpty() {
+		return head.next == null && touchedLayersCount == 0 && touchedDynamicCount == 0;
+	}
+
+	private Edit poll() {
+		Edit next = head.next;
+
+		if (next == null) return null;
+
+		head.layer = null;
+		head.light = null;
+		head = next;
+
+		return next;
+	}
+
+	private void pendingLight(LightLayer layer, int x, int y, Light light) {
+		int i = 0;
+
+		while (i < touchedLayersCount && touchedLayers[i] != layer) {
+			i++;
+		}
+
+		if (i == touchedLayersCount) {
+			if (i == touchedLayers.length) {
+				LightLayer[] layers = new LightLayer[i * 2];
+				LightStore[] stores = new LightStore[i * 2];
+				System.arraycopy(touchedLayers, 0, layers, 0, i);
+				System.arraycopy(pendingLights, 0, stores, 0, i);
+				touchedLayers = layers;
+				pendingLights = stores;
+			}
+
+			if (pendingLights[i] == null) {
+				pendingLights[i] = new LightStore();
+			}
+
+			touchedLayers[i] = layer;
+			touchedLayersCount++;
+		}
+
+		pendingLights[i].put(x, y, light);
+	}
+
+	private boolean applyPendingLights() {
+		while (touchedLayersCount > 0) {
+			LightLayer layer = touchedLayers[touchedLayersCount - 1];
+			LightStore pending = pendingLights[touchedLayersCount - 1];
+
+			while (pending.size() > 0) {
+				int k = pending.size() - 1;
+				int x = pending.x(k);
+				int y = pending.y(k);
+				Light light = pending.remove(x, y);
+
+				if (light == REMOVED) {
+					map.removeLight(layer, x, y);
+				} else {
+					map.addLight(layer, light, x, y);
+				}
+
+				if (map.isOutOfBudget()) return false;
+			}
+
+			touchedLayers[--touchedLayersCount] = null;
+		}
+
+		return true;
+	}
+
+	private void pendingDynamic(int id, int op, Light light, int x, int y) {
+		if (id < 0) return;
+
+		if (id >= dynamicOps.length) {
+			growDynamic(id + 1);
+		}
+
+		int pendingOp = dynamicOps[id];
+
+		// Removed light stays removed
+		if (op == MOVE_DYNAMIC && (pendingOp == REMOVE_DYNAMIC || pendingOp == CANCELLED)) return;
+
+		if (pendingOp == 0) {
+			touchedDynamic[touchedDynamicCount++] = id;
+		}
+
+		if (op == ADD_DYNAMIC) {
+			dynamicLights[id] = light;
+		}
+
+		if (op == MOVE_DYNAMIC && pendingOp == ADD_DYNAMIC) {
+			// Light isn't placed yet, just move it
+			op = pendingOp;
+		} else if (op == REMOVE_DYNAMIC && pendingOp == ADD_DYNAMIC) {
+			op = CANCELLED;
+		}
+
+		dynamicOps[id] = op;
+		dynamicX[id] = x;
+		dynamicY[id] = y;
+	}
+
+	private boolean applyPendingDynamic() {
+		while (touchedDynamicCount > 0) {
+			int id = touchedDynamic[--touchedDynamicCount];
+
+			switch (dynamicOps[id]) {
+				case ADD_DYNAMIC:
+					map.placeDynamicLight(id, dynamicLights[id], dynamicX[id], dynamicY[id]);
+					break;
+				case MOVE_DYNAMIC:
+					map.setDynamicLightTo(id, dynamicX[id], dynamicY[id]);
+					break;
+				case REMOVE_DYNAMIC:
+					map.removeDynamicLight(id);
+					break;
+			}
+
+			dynamicOps[id] = 0;
+			dynamicLights[id] = null;
+
+			if (map.isOutOfBudget()) return false;
+		}
+
+		return true;
+	}
+
+	private void growDynamic(int minCapacity) {
+		int capacity = Math.max(dynamicOps.length * 2, minCapacity);
+
+		int[] ops = new int[capacity];
+		int[] xs = new int[capacity];
+		int[] ys = new int[capacity];
+		Light[] lights = new Light[capacity];
+		int[] touched = new int[capacity];
+
+		System.arraycopy(dynamicOps, 0, ops, 0, dynamicOps.length);
+		System.arraycopy(dynamicX, 0, xs, 0, dynamicX.length);
+		System.arraycopy(dynamicY, 0, ys, 0, dynamicY.length);
+		System.arraycopy(dynamicLights, 0, lights, 0, dynamicLights.length);
+		System.arraycopy(touchedDynamic, 0, touched, 0, touchedDynamicCount);
+
+		dynamicOps = ops;
+		dynamicX = xs;
+		dynamicY = ys;
+		dynamicLights = lights;
+		touchedDynamic = touched;
+	}
+
+	private static class Edit {
+
+		volatile Edit next;
+
+		final int type;
+		LightLayer layer;
+		Light light;
+		int id;
+		int x;
+		int y;
+		float value;
+
+		Edit() {
+			this(0);
+		}
+
+		Edit(int type) {
+			this.type = type;
+		}
+	}
+}
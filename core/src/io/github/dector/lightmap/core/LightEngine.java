@@ -0,0 +1,58 @@
+package io.github.dector.lightmap.core;
+
+/**
+ * Math used by {@link LightMap} to count light values.
+ *
+ * @author dector
+ */
+public enum LightEngine {
+
+	/**
+	 * Float math. Default one. Lights shine through walls.
+	 */
+	FLOAT(false) {
+		@Override
+		LightBuffer createBuffer(int width, int height, boolean[][] opaque) {
+			return new FloatLightBuffer(width, height);
+		}
+	},
+
+	/**
+	 * Integer fixed-point math with table falloff.
+	 * Gives identical results on every JVM, so maps can be stepped in lockstep
+	 * and only light changes need to be sent over network.
+	 */
+	FIXED_POINT(false) {
+		@Override
+		LightBuffer createBuffer(int width, int height, boolean[][] opaque) {
+			return new FixedLightBuffer(width, height);
+		}
+	},
+
+	/**
+	 * Light spreads from tile to tile and is stopped by opaque tiles.
+	 * Adding, moving and removing lights and walls relights only tiles, which values change.
+	 * Fits dense indoor maps with a lot of walls.
+	 */
+	FLOOD_FILL(true) {
+		@Override
+		LightBuffer createBuffer(int width, int height, boolean[][] opaque) {
+			return new FloodLightBuffer(width, height, opaque);
+		}
+	};
+
+	private final boolean incremental;
+
+	LightEngine(boolean incremental) {
+		this.incremental = incremental;
+	}
+
+	/**
+	 * Incremental engines apply light changes right away and recount only changed tiles.
+	 */
+	public boolean isIncremental() {
+		return incremental;
+	}
+
+	abstract LightBuffer createBuffer(int width, int height, boolean[][] opaque);
+}
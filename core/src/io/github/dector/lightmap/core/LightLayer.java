@@ -0,0 +1,81 @@
+package io.github.dector.lightmap.core;
+
+/**
+ * Named layer of {@link LightMap}. Layers are blended in order they were added.
+ *
+ * Ordinary layer keeps its own lights and light values.
+ * Ambient layer has no lights, just one value for the whole map (e.g. daylight),
+ * so changing it doesn't touch any grid.
+ *
+ * Change layers via {@link LightMap} methods.
+ *
+ * @author dector
+ */
+public class LightLayer {
+
+	private final String name;
+	private final BlendMode blendMode;
+
+	LightBuffer buffer;
+	final LightStore lights;
+
+	float ambientValue;
+
+	/** Lights changed since last recount started, layer should be fully recounted */
+	boolean dirty;
+
+	/** Chunks of changes, which will be shown by next recount */
+	DirtyChunks changedChunks;
+	/** Chunks of changes, which will be shown by unfinished recount */
+	DirtyChunks recountChunks;
+
+	/** Recount is split between steps: lights are stamped into spare buffer, which replaces layer buffer then */
+	boolean recounting;
+	/** Kept for next recount */
+	LightBuffer spareBuffer;
+	/** Lights already stamped by unfinished recount */
+	int recounted;
+
+	/** Lights of unfinished recount, as they were when it started */
+	int[] recountXs = new int[0];
+	int[] recountYs = new int[0];
+	Light[] recountLights = new Light[0];
+	int recountCount;
+
+	LightLayer(String name, BlendMode blendMode, LightBuffer buffer) {
+		this.name = name;
+		this.blendMode = blendMode;
+		this.buffer = buffer;
+
+		lights = new LightStore();
+	}
+
+	LightLayer(String name, BlendMode blendMode, float ambientValue) {
+		this.name = name;
+		this.blendMode = blendMode;
+		this.ambientValue = ambientValue;
+
+		buffer = null;
+		lights = null;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public BlendMode getBlendMode() {
+		return blendMode;
+	}
+
+	public boolean isAmbient() {
+		return buffer == null;
+	}
+
+	public float getAmbientValue() {
+		return ambientValue;
+	}
+
+	public int getLightsCount() {
+		return (lights != null) ? lights.size() : 0;
+	}
+}
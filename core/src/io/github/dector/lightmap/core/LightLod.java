@@ -0,0 +1,148 @@
+package io.github.dector.lightmap.core;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Level of detail for static lights. Lights far from all focus points are merged:
+ * lights with the same radius and color in one grid cell are stamped once
+ * at the cell center, weighted by their count.
+ *
+ * Falloff changes by {@link #FALLOFF_SLOPE} / radius per tile at most, and cell size is chosen
+ * so no light moves farther than <code>maxError * radius / FALLOFF_SLOPE</code>.
+ * So value of each merged light differs from exact one by <code>maxError</code> at most.
+ *
+ * Spot lights and lights with inner radius are never merged.
+ *
+ * @author dector
+ */
+class LightLod {
+
+	/** Max slope of falloff (at light center) is this value divided by radius */
+	private static final float FALLOFF_SLOPE = 1.4f;
+
+	private static final int CELL_BITS = 14;
+	private static final int CELL_MASK = (1 << CELL_BITS) - 1;
+	private static final int MAX_MERGED_RADIUS = (1 << 12) - 1;
+
+	final int distance;
+	final float maxError;
+
+	/** Merged lights by radius and color. Shared by background rebuilds */
+	private final ConcurrentHashMap<Long, Light> proxies = new ConcurrentHashMap<Long, Light>();
+
+	LightLod(int distance, float maxError) {
+		this.distance = distance;
+		this.maxError = maxError;
+	}
+
+	/**
+	 * Stamps lights, which are closer than {@link #distance} to any focus point, one by one
+	 * and merges the rest.
+	 *
+	 * @param keys scratch array, at least <code>count</code> long
+	 * @return number of stamps
+	 */
+	int stamp(LightBuffer buffer, int count, int[] xs, int[] ys, Light[] lights,
+			  int[] focusX, int[] focusY, int focusCount, long[] keys) {
+		int keysCount = 0;
+		int stamps = 0;
+
+		for (int i = 0; i < count; i++) {
+			Light light = lights[i];
+			int x = xs[i];
+			int y = ys[i];
+			int half = cellHalfSize(light);
+
+			if (half > 0 && ! isNear(x, y, focusX, focusY, focusCount)) {
+				int size = 2 * half + 1;
+				int cx = floorDiv(x, size);
+				int cy = floorDiv(y, size);
+
+				if ((cx & ~CELL_MASK) == 0 && (cy & ~CELL_MASK) == 0) {
+					keys[keysCount++] = ((long) light.outerRadius << 52) | ((long) light.color << 28)
+							| (cy << CELL_BITS) | cx;
+					continue;
+				}
+			}
+
+			buffer.stamp(x, y, light);
+			stamps++;
+		}
+
+		Arrays.sort(keys, 0, keysCount);
+
+		for (int i = 0; i < keysCount; ) {
+			long key = keys[i];
+			int n = 1;
+
+			while (i + n < keysCount && keys[i + n] == key) {
+				n++;
+			}
+
+			int radius = (int) (key >>> 52);
+			int color = (int) (key >>> 28) & Light.WHITE;
+			int cx = (int) key & CELL_MASK;
+			int cy = (int) (key >>> CELL_BITS) & CELL_MASK;
+
+			Light proxy = proxy(radius, color);
+			int half = cellHalfSize(proxy);
+			int size = 2 * half + 1;
+
+			buffer.stamp(cx * size + half, cy * size + half, proxy, n);
+			stamps++;
+
+			i += n;
+		}
+
+		return stamps;
+	}
+
+	/**
+	 * @return half of merge cell size (without center tile), 0 if light can't be merged
+	 */
+	private int cellHalfSize(Light light) {
+		int r = light.outerRadius;
+
+		if (light.isSpot() || light.innerRadius >= 0 || r <= 0 || r > MAX_MERGED_RADIUS) return 0;
+
+		float maxShift = maxError * r / FALLOFF_SLOPE;
+
+		// Farthest tile of cell is half * sqrt(2) away from center
+		return (int) (maxShift / Math.sqrt(2));
+	}
+
+	private boolean isNear(int x, int y, int[] focusX, int[] focusY, int focusCount) {
+		long dd = (long) distance * distance;
+
+		for (int i = 0; i < focusCount; i++) {
+			long dx = x - focusX[i];
+			long dy = y - focusY[i];
+
+			if (dx * dx + dy * dy <= dd) return true;
+		}
+
+		return false;
+	}
+
+	private Light proxy(int radius, int color) {
+		Long key = ((long) radius << 24) | color;
+		Light proxy = proxies.get(key);
+
+		if (proxy == null) {
+			proxy = new Light(Light.RADIUS_OFF, radius, color);
+			Light existing = proxies.putIfAbsent(key, proxy);
+
+			if (existing != null) {
+				proxy = existing;
+			}
+		}
+
+		return proxy;
+	}
+
+	private static int floorDiv(int a, int b) {
+		int q = a / b;
+		return (a % b < 0) ? q - 1 : q;
+	}
+}
@@ -1,7 +1,14 @@
 package io.github.dector.lightmap.core;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Hear-and-soul of this library. Usage is simple.
@@ -31,7 +38,38 @@ import java.util.Map;
  * 	map.step();		// Update dynamic lights
  * </code>
  *
- * You can change static lights in runtime, but it's not recommended yet
+ * You can change static lights in runtime, but it's not recommended yet.
+ * For big maps set executor with {@link #setStaticRebuildExecutor(ExecutorService)}:
+ * static lights will be recounted in background and {@link #step()} will use
+ * previous static layer until new one is ready.
+ *
+ * Light values are counted with {@link LightEngine#FLOAT} math by default.
+ * Use {@link LightEngine#FIXED_POINT} when all clients should get bit-identical results
+ * and {@link LightEngine#FLOOD_FILL} for maps with walls (see {@link #setOpaque(int, int, boolean)}).
+ *
+ * Colored map (see {@link #LightMap(int, int, LightEngine, boolean)}) also counts
+ * packed color of each tile, use {@link #getColorValues()} to upload them as texture.
+ *
+ * Static and dynamic lights live in two default layers. Add more layers
+ * (e.g. ambient daylight or effects) with {@link #addLayer(String, BlendMode)}
+ * and {@link #addAmbientLayer(String, BlendMode, float)}.
+ * Only map chunks changed since previous step are combined again.
+ *
+ * Big changes (e.g. loading region) can be spread over several frames
+ * with {@link #step(long)}: it stops when time budget runs out
+ * and combines chunks closest to focus points (see {@link #addFocusPoint(Position)}) first.
+ *
+ * LightMap isn't thread-safe. Other threads can submit changes via {@link #getEdits()},
+ * they will be applied at the beginning of next {@link #step()}.
+ *
+ * Once warmed up, {@link #step()} and queries don't allocate memory.
+ * Use {@link #forEachStaticLight(LightVisitor)} and methods with primitive coordinates
+ * or output {@link Position} to keep it so.
+ *
+ * Memory taken by map is reported by {@link #getMemoryFootprint()}
+ * and can be limited with {@link #setMemoryBudget(long)}.
+ *
+ * Map can be rolled back to one of recent checkpoints (see {@link #checkpoint()}), e.g. by rollback netcode.
  *
  * @author dector
  */
@@ -39,30 +77,143 @@ public class LightMap {
 
 	public static final boolean MEASURE_UPDATE = true;
 
-	private Map<Position, Light> staticLights;
-	private Map<Integer, Pair<Position, Light>> dynamicLights;
+	public static final String STATIC_LAYER = "static";
+	public static final String DYNAMIC_LAYER = "dynamic";
+
+	/** Size of chunks for {@link #getStaticLightsVersion(int, int)} */
+	public static final int CHUNK_SIZE = DirtyChunks.CHUNK_SIZE;
+
+	/** Enough for 8-tick rollback */
+	public static final int DEFAULT_MAX_CHECKPOINTS = 8;
+
+	private static final long UNLIMITED_BUDGET = Long.MAX_VALUE;
+
+	private final LightEngine engine;
+	private final boolean colored;
+	private float maxLightError;
+
+	private LightLayer[] layers;
+	private int layersCount;
+
+	private LightLayer staticLayer;
+	private LightLayer dynamicLayer;
+
+	private int[] dynamicLightsX;
+	private int[] dynamicLightsY;
+	private Light[] dynamicLights;
+	/** All used ids are less than this one */
 	private int lastDynamicId = 0;
+	private int dynamicLightsCount;
+	private final AtomicInteger nextDynamicId = new AtomicInteger();
+
+	private final LightEdits edits;
 
-	private float[][] staticLightsValues;
-	private float[][] dynamicLightsValues;
 	private float[][] lightValues;
+	private LightSummary lightSummary;
+	private DirtyChunks dirtyChunks;
+	/** Per chunk, changed with each static light change */
+	private int[] staticLightsVersions;
+	private int chunksX;
+	private boolean[][] opaque;
+	private int maxLightRadius;
+
+	private float[] combineValues;
+	private float[] layerValues;
+
+	/** Row by row, RGBA8888 */
+	private int[] colorValues;
+	private int[] combineColors;
+	private int[] layerColors;
+
+	private Position[] focusPoints = new Position[2];
+	private int focusPointsCount;
+
+	private long stepStartTime;
+	private long stepBudget = UNLIMITED_BUDGET;
 
 	private int width;
 	private int height;
 
-	private boolean staticDirty;
-	private boolean dynamicDirty;
+	private ExecutorService staticRebuildExecutor;
+	private Future<LightBuffer> staticRebuild;
+	private FutureTask<Void> staticRebuildDone;
+	private LightBuffer staticShadowBuffer;
+
+	private LightLod staticLod;
+	/** Focus points, for which static lights were merged last time */
+	private int[] lodFocusX = new int[0];
+	private int[] lodFocusY = new int[0];
+	private int lodFocusCount;
+	private volatile int stampedStaticLights;
+	/** Scratch arrays of static layer recount with merging */
+	private int[] lodXs = new int[0];
+	private int[] lodYs = new int[0];
+	private Light[] lodLights = new Light[0];
+	private long[] lodKeys = new long[0];
+
+	private LightMapStats stats;
+
+	private long memoryBudget;
+	private SpillStore spillStore;
+	/** Number of current step, columns are spilled by it */
+	private int tick;
+	private long[] coldColumns = new long[0];
+	private MemoryFootprint memoryFootprint;
+
+	private LightCheckpoints checkpoints;
+	private int maxCheckpoints = DEFAULT_MAX_CHECKPOINTS;
 
 	public LightMap(int width, int height) {
+		this(width, height, LightEngine.FLOAT);
+	}
+
+	public LightMap(int width, int height, LightEngine engine) {
+		this(width, height, engine, false);
+	}
+
+	/**
+	 * @param colored count colors of lights too. Layers keep light value and color in one <code>int</code> per tile,
+	 *                so their light values are counted with 8 bits. Not supported by incremental engines
+	 */
+	public LightMap(int width, int height, LightEngine engine, boolean colored) {
+		if (colored && engine.isIncremental())
+			throw new IllegalArgumentException("Colored lights are not supported by " + engine + " engine");
+
 		this.width = width;
 		this.height = height;
+		this.engine = engine;
+		this.colored = colored;
 
 		lightValues = new float[width][height];
-		staticLightsValues = new float[width][height];
-		dynamicLightsValues = new float[width][height];
+		opaque = new boolean[width][height];
+		lightSummary = new LightSummary(width, height);
+		dirtyChunks = new DirtyChunks(width, height);
+
+		chunksX = (width + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		staticLightsVersions = new int[chunksX * ((height + CHUNK_SIZE - 1) / CHUNK_SIZE)];
+
+		combineValues = new float[DirtyChunks.CHUNK_SIZE * DirtyChunks.CHUNK_SIZE];
+		layerValues = new float[DirtyChunks.CHUNK_SIZE * DirtyChunks.CHUNK_SIZE];
+
+		if (colored) {
+			colorValues = new int[width * height];
+			combineColors = new int[DirtyChunks.CHUNK_SIZE * DirtyChunks.CHUNK_SIZE];
+			layerColors = new int[DirtyChunks.CHUNK_SIZE * DirtyChunks.CHUNK_SIZE];
+
+			for (int i = 0; i < colorValues.length; i++) {
+				colorValues[i] = PackedColor.toRgba8888(0);
+			}
+		}
+
+		layers = new LightLayer[4];
+		staticLayer = addLayer(STATIC_LAYER, BlendMode.ADD);
+		dynamicLayer = addLayer(DYNAMIC_LAYER, BlendMode.ADD);
 
-		staticLights = new HashMap<Position, Light>();
-		dynamicLights = new HashMap<Integer, Pair<Position, Light>>();
+		dynamicLightsX = new int[16];
+		dynamicLightsY = new int[16];
+		dynamicLights = new Light[16];
+
+		edits = new LightEdits(this);
 	}
 
 	public int getWidth() {
@@ -73,6 +224,10 @@ public class LightMap {
 		return height;
 	}
 
+	public LightEngine getEngine() {
+		return engine;
+	}
+
 	public float getLightValueAt(int x, int y) {
 		return lightValues[x][y];
 	}
@@ -81,208 +236,1881 @@ public class LightMap {
 		return lightValues;
 	}
 
-	public void addStaticLight(Light light, int x, int y) {
-		addStaticLight(light, new Position(x, y));
+	public boolean isColored() {
+		return colored;
 	}
 
-	public void addStaticLight(Light light, Position pos) {
-		staticLights.put(pos, light);
+	/**
+	 * @return color in RGBA8888 format
+	 */
+	public int getColorAt(int x, int y) {
+		return colorValues[y * width + x];
+	}
 
-		markStaticDirty();
+	/**
+	 * Colors of all tiles row by row (<code>y * width + x</code>) in RGBA8888 format,
+	 * e.g. for libGDX <code>Pixmap</code>. Don't change it.
+	 *
+	 * @return <code>null</code> if map isn't colored
+	 */
+	public int[] getColorValues() {
+		return colorValues;
 	}
 
-	public int addDynamicLight(Light light, Position pos) {
-		Pair<Position, Light> pair = new Pair<Position, Light>(pos, light);
-		dynamicLights.put(lastDynamicId, pair);
+	/**
+	 * Batch version of {@link #getLightValueAt(int, int)}.
+	 * Light value for <code>xs[i]:ys[i]</code> will be stored in <code>out[i]</code>.
+	 */
+	public void getLightValuesAt(int[] xs, int[] ys, float[] out) {
+		getLightValuesAt(xs, ys, out, xs.length);
+	}
 
-		markDynamicDirty();
+	public void getLightValuesAt(int[] xs, int[] ys, float[] out, int count) {
+		float[][] values = lightValues;
 
-		return lastDynamicId++;
+		for (int i = 0; i < count; i++) {
+			out[i] = values[xs[i]][ys[i]];
+		}
 	}
 
-	public void removeStaticLightAt(Position p) {
-		staticLights.remove(p);
+	/**
+	 * Returns darkest tile in circle or <code>null</code> if center is out of map.
+	 * From equally dark tiles the nearest one is returned.
+	 */
+	public Position findDarkestWithin(int x, int y, int radius) {
+		Position p = new Position();
+		return findDarkestWithin(x, y, radius, p) ? p : null;
+	}
+
+	/**
+	 * Stores darkest tile in circle into <code>out</code>.
+	 *
+	 * @return <code>false</code> if center is out of map
+	 */
+	public boolean findDarkestWithin(int x, int y, int radius, Position out) {
+		return lightSummary.find(lightValues, x, y, radius, true, out);
+	}
+
+	public Position findBrightestWithin(int x, int y, int radius) {
+		Position p = new Position();
+		return findBrightestWithin(x, y, radius, p) ? p : null;
+	}
+
+	public boolean findBrightestWithin(int x, int y, int radius, Position out) {
+		return lightSummary.find(lightValues, x, y, radius, false, out);
+	}
+
+	/**
+	 * Counts tiles in rectangle with light value not less than <code>threshold</code>.
+	 */
+	public int countLitTiles(int x, int y, int w, int h, float threshold) {
+		return lightSummary.countLit(lightValues, x, y, w, h, threshold);
+	}
+
+	// Layers
+
+	/**
+	 * Adds layer on top of existing ones. Forgets all checkpoints.
+	 */
+	public LightLayer addLayer(String name, BlendMode blendMode) {
+		return addLayer(new LightLayer(name, blendMode, createBuffer()));
+	}
+
+	/**
+	 * Adds layer with one value for the whole map on top of existing ones. Forgets all checkpoints.
+	 */
+	public LightLayer addAmbientLayer(String name, BlendMode blendMode, float value) {
+		return addLayer(new LightLayer(name, blendMode, value));
+	}
+
+	private LightLayer addLayer(LightLayer layer) {
+		if (getLayer(layer.getName()) != null)
+			throw new IllegalArgumentException("Layer " + layer.getName() + " already exists");
+
+		if (layersCount == layers.length) {
+			LightLayer[] newLayers = new LightLayer[layers.length * 2];
+			System.arraycopy(layers, 0, newLayers, 0, layersCount);
+			layers = newLayers;
+		}
+
+		if (! layer.isAmbient()) {
+			layer.changedChunks = new DirtyChunks(width, height);
+			layer.recountChunks = new DirtyChunks(width, height);
+		}
+
+		layers[layersCount++] = layer;
+
+		dirtyChunks.markAll();
+
+		if (checkpoints != null) {
+			checkpoints.clear();
+		}
+
+		return layer;
+	}
+
+	public LightLayer getLayer(String name) {
+		for (int i = 0; i < layersCount; i++) {
+			if (layers[i].getName().equals(name)) {
+				return layers[i];
+			}
+		}
+
+		return null;
+	}
+
+	public int getLayersCount() {
+		return layersCount;
+	}
+
+	public LightLayer getLayer(int index) {
+		return layers[index];
+	}
+
+	public LightLayer getStaticLayer() {
+		return staticLayer;
+	}
+
+	public LightLayer getDynamicLayer() {
+		return dynamicLayer;
+	}
+
+	/**
+	 * Changes value of ambient layer. Costs nothing, but combining whole map at next step.
+	 */
+	public void setAmbientValue(LightLayer layer, float value) {
+		if (! layer.isAmbient())
+			throw new IllegalArgumentException("Layer " + layer.getName() + " is not ambient");
+
+		if (layer.ambientValue == value) return;
+
+		layer.ambientValue = value;
+
+		dirtyChunks.markAll();
+	}
+
+	public void addLight(LightLayer layer, Light light, int x, int y) {
+		Light old = layer.lights.put(x, y, light);
+
+		if (checkpoints != null) {
+			checkpoints.lightChanging(layer, x, y, old);
+		}
+
+		if (old != null) {
+			markLightChanged(layer, x, y, old, false);
+		}
+
+		markLightChanged(layer, x, y, light, true);
+	}
+
+	/**
+	 * @return removed light or <code>null</code>
+	 */
+	public Light removeLight(LightLayer layer, int x, int y) {
+		Light old = layer.lights.remove(x, y);
+
+		if (old != null) {
+			if (checkpoints != null) {
+				checkpoints.lightChanging(layer, x, y, old);
+			}
+
+			markLightChanged(layer, x, y, old, false);
+		}
+
+		return old;
+	}
+
+	/**
+	 * Adds many lights at once. Much faster than adding them one by one,
+	 * because layer is recounted and chunks are marked only once.
+	 * Light at the same position as existing one replaces it.
+	 */
+	public void addLights(LightLayer layer, int[] xs, int[] ys, Light[] lights, int count) {
+		if (engine.isIncremental()) {
+			for (int i = 0; i < count; i++) {
+				addLight(layer, lights[i], xs[i], ys[i]);
+			}
+
+			return;
+		}
+
+		if (count == 0) return;
+
+		layer.lights.ensureCapacity(layer.lights.size() + count);
+
+		int fromX = Integer.MAX_VALUE;
+		int fromY = Integer.MAX_VALUE;
+		int toX = Integer.MIN_VALUE;
+		int toY = Integer.MIN_VALUE;
+
+		for (int i = 0; i < count; i++) {
+			int x = xs[i];
+			int y = ys[i];
+			int r = Math.max(lights[i].outerRadius, 0);
+
+			Light old = layer.lights.put(x, y, lights[i]);
+
+			if (checkpoints != null) {
+				checkpoints.lightChanging(layer, x, y, old);
+			}
+
+			if (old != null) {
+				r = Math.max(r, old.outerRadius);
+			}
+
+			if (layer == staticLayer) {
+				staticLightChanged(x, y);
+			}
+
+			if (r > maxLightRadius) {
+				maxLightRadius = r;
+			}
+
+			fromX = Math.min(fromX, x - r);
+			fromY = Math.min(fromY, y - r);
+			toX = Math.max(toX, x + r);
+			toY = Math.max(toY, y + r);
+		}
+
+		markLayerDirty(layer);
+
+		if (layer == staticLayer && staticRebuildExecutor != null) return;
+
+		markChunks(layer, fromX, fromY, toX, toY);
+	}
+
+	public Light getLightAt(LightLayer layer, int x, int y) {
+		return layer.lights.get(x, y);
+	}
+
+	public void forEachLight(LightLayer layer, LightVisitor visitor) {
+		LightStore lights = layer.lights;
+
+		for (int i = 0; i < lights.size(); i++) {
+			visitor.visit(lights.x(i), lights.y(i), lights.light(i));
+		}
+	}
 
-		markStaticDirty();
+	// Static lights
+
+	public void addStaticLight(Light light, int x, int y) {
+		addLight(staticLayer, light, x, y);
+	}
+
+	public void addStaticLight(Light light, Position pos) {
+		addStaticLight(light, pos.x, pos.y);
+	}
+
+	/**
+	 * @see #addLights(LightLayer, int[], int[], Light[], int)
+	 */
+	public void addStaticLights(int[] xs, int[] ys, Light[] lights, int count) {
+		addLights(staticLayer, xs, ys, lights, count);
+	}
+
+	public void removeStaticLightAt(int x, int y) {
+		removeLight(staticLayer, x, y);
+	}
+
+	public void removeStaticLightAt(Position p) {
+		removeStaticLightAt(p.x, p.y);
 	}
 
+	/**
+	 * Creates new array on each call.
+	 * Use {@link #forEachStaticLight(LightVisitor)} in frequently called code.
+	 */
 	public Position[] getStaticLightsPositions() {
-		Position[] pos = new Position[staticLights.size()];
-		staticLights.keySet().toArray(pos);
+		LightStore lights = staticLayer.lights;
+		Position[] pos = new Position[lights.size()];
+
+		for (int i = 0; i < pos.length; i++) {
+			pos[i] = new Position(lights.x(i), lights.y(i));
+		}
+
 		return pos;
 	}
 
+	public void forEachStaticLight(LightVisitor visitor) {
+		forEachLight(staticLayer, visitor);
+	}
+
+	/**
+	 * Changes each time static light in chunk is added, removed or replaced,
+	 * so renderers can cache static geometry and rebuild only changed chunks.
+	 *
+	 * @param chunkX tile x divided by {@link #CHUNK_SIZE}
+	 * @param chunkY tile y divided by {@link #CHUNK_SIZE}
+	 */
+	public int getStaticLightsVersion(int chunkX, int chunkY) {
+		return staticLightsVersions[chunkY * chunksX + chunkX];
+	}
+
+	private void staticLightChanged(int x, int y) {
+		if (x < 0 || y < 0 || x >= width || y >= height) return;
+
+		staticLightsVersions[(y / CHUNK_SIZE) * chunksX + x / CHUNK_SIZE]++;
+	}
+
 	public void changeStaticLightAt(Position p, int innerRadius, int outerRadius) {
-		removeStaticLightAt(p);
-		addStaticLight(new Light(innerRadius, outerRadius), p);
+		changeStaticLightAt(p.x, p.y, innerRadius, outerRadius);
+	}
+
+	public void changeStaticLightAt(int x, int y, int innerRadius, int outerRadius) {
+		addStaticLight(new Light(innerRadius, outerRadius), x, y);
 	}
 
 	public boolean hasStaticLightAt(int x, int y) {
-		return hasStaticLightAt(new Position(x, y));
+		return staticLayer.lights.indexOf(x, y) >= 0;
 	}
 
 	public boolean hasStaticLightAt(Position pos) {
-		boolean found = false;
-
-		for (Position p : getStaticLightsPositions()) {
-			if (p.equals(pos)) {
-				found = true;
-			}
-		}
+		return hasStaticLightAt(pos.x, pos.y);
+	}
 
-		return found;
+	public Light getStaticLightAt(int x, int y) {
+		return getLightAt(staticLayer, x, y);
 	}
 
 	public Light getStaticLightAt(Position p) {
-		if (staticLights.containsKey(p)) {
-			return staticLights.get(p);
-		} else {
-			return null;
-		}
+		return getStaticLightAt(p.x, p.y);
 	}
 
 	public int getStaticLightsCount() {
-		return staticLights.size();
+		return staticLayer.lights.size();
+	}
+
+	/**
+	 * Enables background recounting of static lights.
+	 * Pass <code>null</code> to recount static lights right in {@link #step()} (default).
+	 */
+	public void setStaticRebuildExecutor(ExecutorService executor) {
+		if (staticRebuildExecutor == executor) return;
+
+		if (staticRebuild != null) {
+			staticRebuild.cancel(true);
+			staticRebuild = null;
+
+			markLayerDirty(staticLayer);
+		}
+
+		if (staticLayer.recounting) {
+			abandonRecount(staticLayer);
+		}
+
+		if (staticLayer.dirty) {
+			// Changes made for background rebuild weren't tracked by chunks
+			staticLayer.changedChunks.markAll();
+		}
+
+		staticRebuildExecutor = executor;
+	}
+
+	public boolean isStaticRebuildPending() {
+		return staticRebuildDone != null;
+	}
+
+	/**
+	 * Returns future, which will be completed in {@link #step()} as soon as static layer
+	 * contains all changes made before this call, or <code>null</code> if static layer is up to date.
+	 *
+	 * Don't wait for it in thread, which calls {@link #step()}.
+	 */
+	public Future<?> getStaticRebuildFuture() {
+		return staticRebuildDone;
+	}
+
+	// Dynamic lights
+
+	public int addDynamicLight(Light light, int x, int y) {
+		int id = reserveDynamicLightId();
+
+		placeDynamicLight(id, light, x, y);
+
+		return id;
+	}
+
+	public int addDynamicLight(Light light, Position pos) {
+		return addDynamicLight(light, pos.x, pos.y);
 	}
 
 	public int getDynamicLightsCount() {
-		return dynamicLights.size();
+		return dynamicLightsCount;
 	}
 
-	public void setDynamicLightTo(int id, int x, int y) {
-		if (! dynamicLights.containsKey(id)) return;
+	public void removeDynamicLight(int id) {
+		if (! hasDynamicLight(id)) return;
+
+		Light light = dynamicLights[id];
+
+		if (checkpoints != null) {
+			checkpoints.dynamicLightChanging(id, dynamicLightsX[id], dynamicLightsY[id], light);
+		}
 
-		Pair<Position, Light> pair = dynamicLights.get(id);
-		pair.first.x = x;
-		pair.first.y = y;
+		dynamicLights[id] = null;
+		dynamicLightsCount--;
 
-		markDynamicDirty();
+		markLightChanged(dynamicLayer, dynamicLightsX[id], dynamicLightsY[id], light, false);
 	}
 
-	public void moveDynamicLight(int id, int dx, int dy) {
-		if (! dynamicLights.containsKey(id)) return;
+	public void setDynamicLightTo(int id, int x, int y) {
+		if (! hasDynamicLight(id)) return;
+
+		int oldX = dynamicLightsX[id];
+		int oldY = dynamicLightsY[id];
+
+		if (oldX == x && oldY == y) return;
 
-		Pair<Position, Light> pair = dynamicLights.get(id);
-		pair.first.x += dx;
-		pair.first.y += dy;
+		if (checkpoints != null) {
+			checkpoints.dynamicLightChanging(id, oldX, oldY, dynamicLights[id]);
+		}
+
+		dynamicLightsX[id] = x;
+		dynamicLightsY[id] = y;
 
-		markDynamicDirty();
+		markLightChanged(dynamicLayer, oldX, oldY, dynamicLights[id], false);
+		markLightChanged(dynamicLayer, x, y, dynamicLights[id], true);
 	}
 
-	private long measureStartTime;
-	private double hardMeasureTimeSum;
-	private int hardMeasureCount;
+	/**
+	 * Turns dynamic spot light (e.g. flashlight). Uses cached light for new direction
+	 * and recounts only tiles around it, so turning it each frame is cheap.
+	 * Omnidirectional lights are not changed.
+	 *
+	 * @param direction in radians, counter-clockwise from positive x
+	 */
+	public void setDynamicLightDirection(int id, float direction) {
+		if (! hasDynamicLight(id)) return;
 
-	public void step() {
-		if (MEASURE_UPDATE)
-			measureStartTime = System.currentTimeMillis();
+		Light light = dynamicLights[id];
+		Light rotated = light.rotatedTo(direction);
+
+		if (rotated == light) return;
 
-		boolean dirty = false;
+		turnDynamicLight(id, rotated);
+	}
 
-		if (staticDirty) {
-			recountStaticLights();
+	/**
+	 * Replaces dynamic light with the same one turned to other direction.
+	 */
+	private void turnDynamicLight(int id, Light rotated) {
+		Light light = dynamicLights[id];
+		int x = dynamicLightsX[id];
+		int y = dynamicLightsY[id];
 
-			dirty = true;
+		if (checkpoints != null) {
+			checkpoints.dynamicLightChanging(id, x, y, light);
 		}
 
-		if (dynamicDirty) {
-			recountDynamicLights();
+		dynamicLights[id] = rotated;
 
-			dirty = true;
-		}
+		// Flood fill ignores spot cones
+		if (engine.isIncremental()) return;
 
-		if (dirty) {
-			applyLights();
+		if (dynamicLayer.dirty || dynamicLayer.recounting) {
+			markLightChanged(dynamicLayer, x, y, light, false);
+			markLightChanged(dynamicLayer, x, y, rotated, true);
+			return;
 		}
 
-		if (MEASURE_UPDATE) {
-			float measureTime = (float) (System.currentTimeMillis() - measureStartTime) / 1000;
+		int r = Math.max(Math.max(light.outerRadius, rotated.outerRadius), 0);
 
-			if (measureTime >= 0.001f) {
-				hardMeasureTimeSum += measureTime;
-				hardMeasureCount++;
+		recountDynamicLights(x - r, y - r, x + r, y + r);
+		dirtyChunks.mark(x - r, y - r, x + r, y + r);
+	}
 
-				System.out.printf("%d. Update time: %.3f s\n", hardMeasureCount, measureTime);
+	/**
+	 * Recounts rectangle (inclusive bounds) of dynamic layer from lights, which reach it.
+	 * Lights are stamped in the same order as by full recount, so values are the same.
+	 */
+	private void recountDynamicLights(int fromX, int fromY, int toX, int toY) {
+		fromX = Math.max(fromX, 0);
+		fromY = Math.max(fromY, 0);
+		toX = Math.min(toX, width - 1);
+		toY = Math.min(toY, height - 1);
+
+		if (fromX > toX || fromY > toY) return;
+
+		LightBuffer buffer = dynamicLayer.buffer;
+		LightStore lights = dynamicLayer.lights;
+
+		buffer.clip(fromX, fromY, toX, toY);
+
+		for (int i = 0; i < lights.size(); i++) {
+			int r = lights.light(i).outerRadius;
+
+			if (reaches(lights.x(i), lights.y(i), r, fromX, fromY, toX, toY)) {
+				buffer.stamp(lights.x(i), lights.y(i), lights.light(i));
+			}
+		}
+
+		for (int id = 0; id < lastDynamicId; id++) {
+			Light light = dynamicLights[id];
+
+			if (light != null && reaches(dynamicLightsX[id], dynamicLightsY[id], light.outerRadius, fromX, fromY, toX, toY)) {
+				buffer.stamp(dynamicLightsX[id], dynamicLightsY[id], light);
 			}
 		}
+
+		buffer.unclip();
+	}
+
+	private static boolean reaches(int x, int y, int radius, int fromX, int fromY, int toX, int toY) {
+		return x + radius >= fromX && x - radius <= toX && y + radius >= fromY && y - radius <= toY;
+	}
+
+	public void moveDynamicLight(int id, int dx, int dy) {
+		if (! hasDynamicLight(id)) return;
+
+		setDynamicLightTo(id, dynamicLightsX[id] + dx, dynamicLightsY[id] + dy);
+	}
+
+	/**
+	 * @return <code>null</code> if there is no such light
+	 */
+	public Light getDynamicLight(int id) {
+		return hasDynamicLight(id) ? dynamicLights[id] : null;
+	}
+
+	/**
+	 * All ids of dynamic lights are less than this value.
+	 */
+	public int getDynamicLightIdsBound() {
+		return lastDynamicId;
 	}
 
-	private void markStaticDirty() {
-		staticDirty = true;
+	/**
+	 * @return <code>false</code> if there is no such light
+	 */
+	public boolean getDynamicLightPosition(int id, Position out) {
+		if (! hasDynamicLight(id)) return false;
+
+		out.set(dynamicLightsX[id], dynamicLightsY[id]);
+		return true;
 	}
 
-	private void markDynamicDirty() {
-		dynamicDirty = true;
+	/**
+	 * Thread-safe.
+	 */
+	int reserveDynamicLightId() {
+		return nextDynamicId.getAndIncrement();
 	}
 
-	private void recountStaticLights() {
-		clearArray(staticLightsValues);
+	void placeDynamicLight(int id, Light light, int x, int y) {
+		if (id >= dynamicLights.length) {
+			growDynamicLights(id + 1);
+		}
+
+		if (dynamicLights[id] != null) return;
+
+		if (checkpoints != null) {
+			checkpoints.dynamicLightChanging(id, x, y, null);
+		}
 
-		for (Position p : staticLights.keySet()) {
-			Light l = staticLights.get(p);
+		dynamicLightsX[id] = x;
+		dynamicLightsY[id] = y;
+		dynamicLights[id] = light;
+		dynamicLightsCount++;
 
-			recountLight(staticLightsValues, p, l);
+		if (id >= lastDynamicId) {
+			lastDynamicId = id + 1;
 		}
 
-		staticDirty = false;
+		markLightChanged(dynamicLayer, x, y, light, true);
+	}
+
+	boolean hasDynamicLight(int id) {
+		return 0 <= id && id < lastDynamicId && dynamicLights[id] != null;
+	}
+
+	private void growDynamicLights(int minCapacity) {
+		int capacity = Math.max(dynamicLights.length * 2, minCapacity);
+
+		int[] xs = new int[capacity];
+		int[] ys = new int[capacity];
+		Light[] lights = new Light[capacity];
+
+		System.arraycopy(dynamicLightsX, 0, xs, 0, lastDynamicId);
+		System.arraycopy(dynamicLightsY, 0, ys, 0, lastDynamicId);
+		System.arraycopy(dynamicLights, 0, lights, 0, lastDynamicId);
+
+		dynamicLightsX = xs;
+		dynamicLightsY = ys;
+		dynamicLights = lights;
+	}
+
+	/**
+	 * Returns thread-safe queue of changes, which will be applied at next {@link #step()}.
+	 */
+	public LightEdits getEdits() {
+		return edits;
+	}
+
+	private LightBuffer createBuffer() {
+		if (colored) return withStats(new ColoredLightBuffer(width, height, engine == LightEngine.FIXED_POINT));
+
+		LightBuffer buffer = engine.createBuffer(width, height, opaque);
+		buffer.setMaxError(maxLightError);
+		return withStats(buffer);
 	}
 
-	private void recountDynamicLights() {
-		clearArray(dynamicLightsValues);
+	/**
+	 * Wraps buffer to count its stamps, if stats are on, or unwraps it otherwise.
+	 */
+	private LightBuffer withStats(LightBuffer buffer) {
+		if (buffer instanceof StatsLightBuffer) {
+			StatsLightBuffer statsBuffer = (StatsLightBuffer) buffer;
 
-		for (int id : dynamicLights.keySet()) {
-			Pair<Position, Light> p = dynamicLights.get(id);
+			if (statsBuffer.stats == stats) return buffer;
 
-			recountLight(dynamicLightsValues, p.first, p.second);
+			buffer = statsBuffer.unwrap();
 		}
 
-		dynamicDirty = false;
+		return (stats != null) ? new StatsLightBuffer(buffer, stats) : buffer;
+	}
+
+	private static LightBuffer withoutStats(LightBuffer buffer) {
+		return (buffer instanceof StatsLightBuffer) ? ((StatsLightBuffer) buffer).unwrap() : buffer;
 	}
 
-	private void recountLight(float[][] lightValues, Position p, Light l) {
-		int x = p.x;
-		int y = p.y;
+	// Stats
 
-		int inR = l.innerRadius;
-		int outR = l.outerRadius;
-		int fromX 	= Math.max(x - outR, 0);
-		int toX 	= Math.min(x + outR, width - 1);
-		int fromY 	= Math.max(y - outR, 0);
-		int toY 	= Math.min(y + outR, height - 1);
+	/**
+	 * Collects step phase times, stamps and combined chunks for profiling.
+	 * Makes stamping slower, so it's off by default.
+	 *
+	 * @see #getStats()
+	 */
+	public void setStatsEnabled(boolean enabled) {
+		if ((stats != null) == enabled) return;
 
-		for (int i = fromX; i <= toX; i++) {
-			for (int j = fromY; j <= toY; j++) {
-				int dx = x - i;
-				int dy = y - j;
+		stats = enabled ? new LightMapStats(width, height, DirtyChunks.CHUNK_SIZE) : null;
 
-				float dd = (float) Math.sqrt(dx * dx + dy * dy);
+		for (int i = 0; i < layersCount; i++) {
+			LightLayer layer = layers[i];
 
-				if (dd <= inR) {
-					lightValues[i][j] = 1;
-				} else if (dd <= outR) {
-					float lightVal = (float) Math.pow(1 - dd / outR, 1.4f);
-					lightValues[i][j] += lightVal;
-				}
+			if (layer.isAmbient()) continue;
+
+			layer.buffer = withStats(layer.buffer);
+
+			if (layer.recounting) {
+				layer.spareBuffer = withStats(layer.spareBuffer);
 			}
 		}
 	}
 
-	private void applyLights() {
-		for (int x = 0; x < width; x++) {
-			for (int y = 0; y < height; y++) {
-				lightValues[x][y] = staticLightsValues[x][y] + dynamicLightsValues[x][y];
+	/**
+	 * @return <code>null</code> if stats are off
+	 */
+	public LightMapStats getStats() {
+		return stats;
+	}
 
-				if (lightValues[x][y] > 1)
-					lightValues[x][y] = 1;
-			}
+	private void startPhase(StepPhase phase) {
+		if (stats != null) {
+			stats.startPhase(phase);
 		}
 	}
 
-	private void clearArray(float[][] a) {
-		for (int i = 0; i < a.length; i++) {
-			for (int j = 0; j < a[i].length; j++) {
-				a[i][j] = 0;
-			}
+	// Checkpoints
+
+	/**
+	 * Sets how many recent checkpoints are kept ({@link #DEFAULT_MAX_CHECKPOINTS} by default),
+	 * older ones are forgotten.
+	 */
+	public void setMaxCheckpoints(int count) {
+		if (count < 1)
+			throw new IllegalArgumentException("At least one checkpoint should be kept: " + count);
+
+		maxCheckpoints = count;
+
+		if (checkpoints != null) {
+			checkpoints.setCapacity(count);
+		}
+	}
+
+	public int getMaxCheckpoints() {
+		return maxCheckpoints;
+	}
+
+	/**
+	 * Remembers current lights, walls, ambient values and light values, so map can be restored later.
+	 * Cheap enough for each tick: light values are copied only for chunks, which change after checkpoint,
+	 * light and wall changes are logged.
+	 * Settings (max light error, LOD, focus points, memory budget) aren't part of checkpoint.
+	 *
+	 * @return id for {@link #restore(int)}
+	 */
+	public int checkpoint() {
+		if (checkpoints == null) {
+			checkpoints = new LightCheckpoints(width, height, colored, dirtyChunks, maxCheckpoints);
+		}
+
+		LightCheckpoints.Checkpoint checkpoint = checkpoints.add();
+
+		checkpoint.setLayersCount(layersCount);
+
+		for (int i = 0; i < layersCount; i++) {
+			LightLayer layer = layers[i];
+
+			checkpoint.ambientValues[i] = layer.ambientValue;
+
+			if (layer.isAmbient()) continue;
+
+			// Light values of these chunks don't show layer lights yet
+			checkpoint.saveDirtyChunks(layer.changedChunks);
+			checkpoint.saveDirtyChunks(layer.recountChunks);
+		}
+
+		checkpoint.lastDynamicId = lastDynamicId;
+		checkpoint.nextDynamicId = nextDynamicId.get();
+
+		checkpoint.saveDirtyChunks(dirtyChunks);
+
+		return checkpoint.id;
+	}
+
+	public boolean hasCheckpoint(int id) {
+		return checkpoints != null && checkpoints.get(id) != null;
+	}
+
+	/**
+	 * Returns map to checkpoint state. Newer checkpoints are forgotten, this one can be restored again.
+	 * Light values are restored right away. Lights and walls changed after checkpoint are changed back
+	 * one by one, as by map methods: incremental layers are updated right away,
+	 * others are recounted by next steps.
+	 *
+	 * @throws IllegalArgumentException if checkpoint is forgotten
+	 * @throws IllegalStateException if there are pending edits (see {@link #getEdits()})
+	 */
+	public void restore(int id) {
+		if (! hasCheckpoint(id))
+			throw new IllegalArgumentException("No checkpoint " + id);
+		if (! edits.isEmpty())
+			throw new IllegalStateException("Can't restore checkpoint with pending edits");
+
+		LightCheckpoints.Checkpoint target = checkpoints.get(id);
+
+		// Undoing changes isn't logged
+		LightCheckpoints ring = checkpoints;
+		checkpoints = null;
+
+		try {
+			while (true) {
+				LightCheckpoints.Checkpoint checkpoint = ring.restoreNewest(lightValues, colorValues, lightSummary);
+
+				undoChanges(checkpoint);
+
+				if (checkpoint == target) break;
+
+				ring.forgetNewest();
+			}
+
+			ring.releaseNewest();
+		} finally {
+			checkpoints = ring;
+		}
+
+		for (int i = 0; i < layersCount; i++) {
+			layers[i].ambientValue = target.ambientValues[i];
+		}
+
+		// Lights with newer ids are removed
+		lastDynamicId = target.lastDynamicId;
+		nextDynamicId.set(target.nextDynamicId);
+
+		// Chunks, which weren't combined by checkpoint, wait for it again
+		for (int i = 0; i < target.dirtyChunksCount; i++) {
+			int chunk = target.dirtyChunks[i];
+			dirtyChunks.mark(dirtyChunks.fromX(chunk), dirtyChunks.fromY(chunk),
+					dirtyChunks.toX(chunk) - 1, dirtyChunks.toY(chunk) - 1);
+		}
+	}
+
+	/**
+	 * Changes lights and walls back in reverse order.
+	 */
+	private void undoChanges(LightCheckpoints.Checkpoint checkpoint) {
+		for (int i = checkpoint.lightsCount - 1; i >= 0; i--) {
+			LightLayer layer = checkpoint.lightLayers[i];
+			int x = checkpoint.lightXs[i];
+			int y = checkpoint.lightYs[i];
+			Light old = checkpoint.oldLights[i];
+
+			if (layer != null) {
+				if (old != null) {
+					addLight(layer, old, x, y);
+				} else {
+					removeLight(layer, x, y);
+				}
+
+				continue;
+			}
+
+			int id = checkpoint.lightIds[i];
+
+			if (old != null && hasDynamicLight(id) && dynamicLightsX[id] == x && dynamicLightsY[id] == y) {
+				// Light was turned
+				turnDynamicLight(id, old);
+				continue;
+			}
+
+			removeDynamicLight(id);
+
+			if (old != null) {
+				placeDynamicLight(id, old, x, y);
+			}
+		}
+
+		for (int i = checkpoint.wallsCount - 1; i >= 0; i--) {
+			int wall = checkpoint.walls[i];
+			int tile = wall >>> 1;
+
+			setOpaque(tile / height, tile % height, (wall & 1) != 0);
+		}
+	}
+
+	// Memory
+
+	/**
+	 * Keeps map within <code>bytes</code> of heap (see {@link MemoryFootprint#getTotalBytes()}), checked after each step.
+	 * When map takes more, spare buffers of background rebuild and of finished recounts are dropped first.
+	 * Then layer columns, which weren't stamped or combined for the longest time,
+	 * are compressed to heap or to file (see {@link #setSpillFile(File)}).
+	 * Spilled column is taken back on next access. Columns used by current step always stay,
+	 * so map may stay above budget.
+	 *
+	 * Only {@link LightEngine#FLOAT} and {@link LightEngine#FIXED_POINT} layers are spilled, colored ones too.
+	 * Combined light values are always kept, they are given out by {@link #getLightValues()}.
+	 * Taking columns back allocates memory.
+	 *
+	 * @param bytes 0 for no budget (default), spilled columns are taken back then
+	 */
+	public void setMemoryBudget(long bytes) {
+		if (bytes < 0)
+			throw new IllegalArgumentException("Memory budget should be positive: " + bytes);
+
+		memoryBudget = bytes;
+
+		if (bytes == 0) {
+			restoreColumns();
+		}
+	}
+
+	public long getMemoryBudget() {
+		return memoryBudget;
+	}
+
+	/**
+	 * Keeps spilled columns in <code>file</code> instead of heap. File is overwritten.
+	 * Already spilled columns are taken back.
+	 *
+	 * @param file <code>null</code> to keep them in heap (default)
+	 */
+	public void setSpillFile(File file) throws IOException {
+		if (staticRebuild != null) {
+			// Rebuilt buffer may free its columns in current store
+			try {
+				staticRebuild.get();
+			} catch (InterruptedException e) {
+				throw new IllegalStateException(e);
+			} catch (ExecutionException e) {
+				throw new IllegalStateException("Static lights rebuild failed", e.getCause());
+			}
+		}
+
+		restoreColumns();
+
+		if (spillStore != null) {
+			spillStore.close();
+		}
+
+		spillStore = (file != null) ? new SpillStore(file) : null;
+	}
+
+	/**
+	 * Counts memory taken by map. Returned object is reused by next call.
+	 */
+	public MemoryFootprint getMemoryFootprint() {
+		if (memoryFootprint == null) {
+			memoryFootprint = new MemoryFootprint();
+		}
+
+		MemoryFootprint footprint = memoryFootprint;
+		footprint.setLayersCount(layersCount);
+		footprint.columnsCount = width;
+
+		for (int i = 0; i < layersCount; i++) {
+			LightLayer layer = layers[i];
+
+			footprint.layerNames[i] = layer.getName();
+			footprint.layerBytes[i] = layer.isAmbient() ? 0 : layer.buffer.getMemoryUsage();
+			footprint.spilledColumns[i] = layer.isAmbient() ? 0 : layer.buffer.getSpilledColumnsCount();
+		}
+
+		footprint.lightValuesBytes = MemoryFootprint.arrayBytes(width, height, 4)
+				+ MemoryFootprint.arrayBytes(width, height, 1)
+				+ (colored ? MemoryFootprint.arrayBytes(colorValues.length, 4) : 0);
+
+		long lightsBytes = MemoryFootprint.arrayBytes(dynamicLights.length, 4)
+				+ MemoryFootprint.arrayBytes(dynamicLightsX.length, 4) + MemoryFootprint.arrayBytes(dynamicLightsY.length, 4);
+
+		for (int i = 0; i < layersCount; i++) {
+			if (! layers[i].isAmbient()) {
+				lightsBytes += layers[i].lights.getMemoryUsage();
+			}
+		}
+
+		footprint.lightsBytes = lightsBytes;
+
+		long chunkBytes = MemoryFootprint.arrayBytes(DirtyChunks.CHUNK_SIZE * DirtyChunks.CHUNK_SIZE, 4);
+
+		long recountBytes = 0;
+
+		for (int i = 0; i < layersCount; i++) {
+			LightLayer layer = layers[i];
+
+			if (layer.isAmbient()) continue;
+
+			recountBytes += layer.changedChunks.getMemoryUsage() + layer.recountChunks.getMemoryUsage()
+					+ MemoryFootprint.arrayBytes(layer.recountXs.length, 4) * 3
+					+ ((layer.spareBuffer != null) ? layer.spareBuffer.getMemoryUsage() : 0);
+		}
+
+		footprint.cacheBytes = lightSummary.getMemoryUsage() + dirtyChunks.getMemoryUsage() + recountBytes
+				+ MemoryFootprint.arrayBytes(staticLightsVersions.length, 4)
+				+ (colored ? 4 : 2) * chunkBytes
+				+ MemoryFootprint.arrayBytes(coldColumns.length, 8)
+				+ MemoryFootprint.arrayBytes(lodXs.length, 4) * 3 + MemoryFootprint.arrayBytes(lodKeys.length, 8)
+				+ ((staticShadowBuffer != null) ? staticShadowBuffer.getMemoryUsage() : 0)
+				+ ((checkpoints != null) ? checkpoints.getMemoryUsage() : 0);
+
+		footprint.spillHeapBytes = (spillStore != null) ? spillStore.getHeapBytes() : 0;
+		footprint.spilledBytes = (spillStore != null) ? spillStore.getStoredBytes() : 0;
+		footprint.spilledToFile = spillStore != null && spillStore.isFile();
+
+		return footprint;
+	}
+
+	/**
+	 * Spills the coldest columns until map fits into budget.
+	 */
+	private void enforceMemoryBudget() {
+		long usage = getMemoryFootprint().getTotalBytes();
+
+		if (usage <= memoryBudget) return;
+
+		if (staticShadowBuffer != null) {
+			usage -= staticShadowBuffer.getMemoryUsage();
+
+			// Frees its spilled columns
+			staticShadowBuffer.clear();
+			staticShadowBuffer = null;
+
+			if (usage <= memoryBudget) return;
+		}
+
+		for (int i = 0; i < layersCount; i++) {
+			LightLayer layer = layers[i];
+
+			if (layer.isAmbient() || layer.spareBuffer == null || layer.recounting) continue;
+
+			usage -= layer.spareBuffer.getMemoryUsage();
+
+			layer.spareBuffer.clear();
+			layer.spareBuffer = null;
+
+			if (usage <= memoryBudget) return;
+		}
+
+		if (coldColumns.length < layersCount * width) {
+			coldColumns = new long[layersCount * width];
+		}
+
+		// Columns, which weren't used by this step, by last use: use | layer | column
+		int count = 0;
+
+		for (int i = 0; i < layersCount; i++) {
+			if (layers[i].isAmbient()) continue;
+
+			LightBuffer buffer = layers[i].buffer;
+
+			for (int x = 0; x < width; x++) {
+				int lastUse = buffer.getColumnLastUse(x);
+
+				if (lastUse >= 0 && lastUse < tick) {
+					coldColumns[count++] = ((long) lastUse << 32) | ((long) i << 20) | x;
+				}
+			}
+		}
+
+		if (count == 0) return;
+
+		Arrays.sort(coldColumns, 0, count);
+
+		if (spillStore == null) {
+			spillStore = new SpillStore();
+		}
+
+		long storeBytes = spillStore.getHeapBytes();
+
+		for (int k = 0; k < count && usage > memoryBudget; k++) {
+			long key = coldColumns[k];
+			LightBuffer buffer = layers[(int) (key >>> 20) & 0xFFF].buffer;
+
+			usage -= buffer.spillColumn((int) key & 0xFFFFF, spillStore);
+
+			long newStoreBytes = spillStore.getHeapBytes();
+			usage += newStoreBytes - storeBytes;
+			storeBytes = newStoreBytes;
+		}
+	}
+
+	private void restoreColumns() {
+		for (int i = 0; i < layersCount; i++) {
+			LightLayer layer = layers[i];
+
+			if (layer.isAmbient()) continue;
+
+			layer.buffer.restoreColumns();
+
+			if (layer.spareBuffer != null) {
+				layer.spareBuffer.restoreColumns();
+			}
+		}
+
+		if (staticShadowBuffer != null) {
+			staticShadowBuffer.restoreColumns();
+		}
+	}
+
+	/**
+	 * Lets {@link LightEngine#FLOAT} engine count lights with big radius approximately:
+	 * faster, but each light value may differ from exact one by <code>maxError</code>.
+	 * Fits when exact values far from light don't matter.
+	 * Other engines and colored maps ignore it.
+	 *
+	 * @param maxError from 0 (exact values, default) to 1
+	 */
+	public void setMaxLightError(float maxError) {
+		if (! (0 <= maxError && maxError < 1))
+			throw new IllegalArgumentException("Max error should be from 0 to 1: " + maxError);
+
+		if (maxLightError == maxError) return;
+
+		maxLightError = maxError;
+
+		for (int i = 0; i < layersCount; i++) {
+			LightLayer layer = layers[i];
+
+			if (layer.isAmbient()) continue;
+
+			layer.buffer.setMaxError(maxError);
+
+			if (layer.spareBuffer != null) {
+				layer.spareBuffer.setMaxError(maxError);
+			}
+
+			if (! engine.isIncremental()) {
+				markLayerDirty(layer);
+				layer.changedChunks.markAll();
+			}
+		}
+	}
+
+	public float getMaxLightError() {
+		return maxLightError;
+	}
+
+	// Level of detail
+
+	/**
+	 * Merges static lights, which are farther than <code>distance</code> from all focus points
+	 * (see {@link #addFocusPoint(Position)}): lights with the same radius and color close to each other
+	 * are stamped as one brighter light. Value of each merged light differs from exact one
+	 * by <code>maxError</code> at most, lights near focus points are exact.
+	 * Static layer is recounted when focus points move for quarter of <code>distance</code>.
+	 *
+	 * Spot lights and lights with inner radius aren't merged. Incremental engines ignore it.
+	 *
+	 * @param maxError from 0 (no merging, default) to 1
+	 */
+	public void setStaticLightsLod(int distance, float maxError) {
+		if (distance < 0)
+			throw new IllegalArgumentException("Distance should be positive: " + distance);
+		if (! (0 <= maxError && maxError < 1))
+			throw new IllegalArgumentException("Max error should be from 0 to 1: " + maxError);
+
+		if (engine.isIncremental()) return;
+
+		if (staticLod == null && maxError == 0) return;
+		if (staticLod != null && staticLod.distance == distance && staticLod.maxError == maxError) return;
+
+		staticLod = (maxError > 0) ? new LightLod(distance, maxError) : null;
+
+		markLayerDirty(staticLayer);
+
+		if (staticRebuildExecutor == null) {
+			staticLayer.changedChunks.markAll();
+		}
+	}
+
+	/**
+	 * @return number of stamps made by last static layer recount,
+	 * less than static lights count if some of them were merged
+	 */
+	public int getStampedStaticLightsCount() {
+		return stampedStaticLights;
+	}
+
+	/**
+	 * Marks static layer for recounting if focus points moved far from ones used for merging.
+	 */
+	private void checkStaticLod() {
+		if (staticLod == null || staticLayer.dirty || staticLayer.recounting || staticRebuild != null) return;
+
+		int step = Math.max(1, staticLod.distance / 4);
+		boolean moved = focusPointsCount != lodFocusCount;
+
+		for (int i = 0; i < focusPointsCount && ! moved; i++) {
+			moved = Math.abs(focusPoints[i].x - lodFocusX[i]) >= step
+					|| Math.abs(focusPoints[i].y - lodFocusY[i]) >= step;
+		}
+
+		if (! moved) return;
+
+		markLayerDirty(staticLayer);
+
+		// Static layer is swapped as a whole after background rebuild
+		if (staticRebuildExecutor != null) return;
+
+		// Lights change only around old and new focus points
+		int margin = staticLod.distance + 2 * maxLightRadius;
+
+		for (int i = 0; i < lodFocusCount; i++) {
+			markChunks(staticLayer, lodFocusX[i] - margin, lodFocusY[i] - margin,
+					lodFocusX[i] + margin, lodFocusY[i] + margin);
+		}
+
+		for (int i = 0; i < focusPointsCount; i++) {
+			Position p = focusPoints[i];
+			markChunks(staticLayer, p.x - margin, p.y - margin, p.x + margin, p.y + margin);
+		}
+	}
+
+	private void saveLodFocus() {
+		if (lodFocusX.length < focusPointsCount) {
+			lodFocusX = new int[focusPoints.length];
+			lodFocusY = new int[focusPoints.length];
+		}
+
+		for (int i = 0; i < focusPointsCount; i++) {
+			lodFocusX[i] = focusPoints[i].x;
+			lodFocusY[i] = focusPoints[i].y;
+		}
+
+		lodFocusCount = focusPointsCount;
+	}
+
+	// Focus
+
+	/**
+	 * Chunks near focus points (e.g. player position) are updated first by {@link #step(long)}.
+	 * Point is kept by reference, so just change it when player moves.
+	 */
+	public void addFocusPoint(Position point) {
+		if (focusPointsCount == focusPoints.length) {
+			Position[] points = new Position[focusPointsCount * 2];
+			System.arraycopy(focusPoints, 0, points, 0, focusPointsCount);
+			focusPoints = points;
+		}
+
+		focusPoints[focusPointsCount++] = point;
+	}
+
+	public void removeFocusPoint(Position point) {
+		for (int i = 0; i < focusPointsCount; i++) {
+			if (focusPoints[i] == point) {
+				focusPoints[i] = focusPoints[--focusPointsCount];
+				focusPoints[focusPointsCount] = null;
+				return;
+			}
+		}
+	}
+
+	// Walls
+
+	/**
+	 * Opaque tiles stop light. Only {@link LightEngine#FLOOD_FILL} respects them.
+	 */
+	public void setOpaque(int x, int y, boolean opaque) {
+		if (this.opaque[x][y] == opaque) return;
+
+		if (checkpoints != null) {
+			checkpoints.wallChanging(x, y, ! opaque);
+		}
+
+		this.opaque[x][y] = opaque;
+
+		if (! engine.isIncremental()) return;
+
+		for (int i = 0; i < layersCount; i++) {
+			LightLayer layer = layers[i];
+
+			if (layer.isAmbient()) continue;
+
+			layer.buffer.opacityChanged(x, y);
+
+			if (layer.recounting) {
+				layer.spareBuffer.opacityChanged(x, y);
+				layer.recountChunks.mark(x - maxLightRadius, y - maxLightRadius,
+						x + maxLightRadius, y + maxLightRadius);
+			}
+		}
+
+		dirtyChunks.mark(x - maxLightRadius, y - maxLightRadius, x + maxLightRadius, y + maxLightRadius);
+	}
+
+	public boolean isOpaque(int x, int y) {
+		return opaque[x][y];
+	}
+
+	// Update
+
+	private boolean measureUpdate = MEASURE_UPDATE;
+	private long measureStartTime;
+	private double hardMeasureTimeSum;
+	private int hardMeasureCount;
+
+	public void step() {
+		step(UNLIMITED_BUDGET);
+	}
+
+	/**
+	 * Updates map, but stops when time budget runs out. Next call continues the work.
+	 *
+	 * Lights are stamped and chunks are combined one by one,
+	 * chunks closest to focus points go first.
+	 * Fully recounted layer is stamped into spare buffer and isn't shown until all its lights are stamped,
+	 * previous light values are shown meanwhile. Lights changed during recount wait for the next one,
+	 * so changes made each step don't restart it.
+	 * At least one light of each recounted layer and one chunk are processed per call,
+	 * so map converges as soon as changes stop.
+	 * Static layer with merged lights (see {@link #setStaticLightsLod(int, float)}) is recounted
+	 * in one go, ignoring the budget.
+	 *
+	 * @return <code>true</code> if all changes are applied and visible
+	 */
+	public boolean step(long nanosBudget) {
+		if (measureUpdate)
+			measureStartTime = System.currentTimeMillis();
+
+		stepStartTime = System.nanoTime();
+		stepBudget = nanosBudget;
+
+		LightMapStats stats = this.stats;
+
+		if (stats != null) {
+			stats.startStep();
+		}
+
+		tick++;
+
+		for (int i = 0; i < layersCount; i++) {
+			LightLayer layer = layers[i];
+
+			if (layer.isAmbient()) continue;
+
+			layer.buffer.setTick(tick);
+
+			if (layer.recounting) {
+				layer.spareBuffer.setTick(tick);
+			}
+		}
+
+		boolean converged = update();
+
+		if (memoryBudget > 0) {
+			enforceMemoryBudget();
+		}
+
+		if (stats != null) {
+			stats.endStep();
+		}
+
+		stepBudget = UNLIMITED_BUDGET;
+
+		if (measureUpdate) {
+			float measureTime = (float) (System.currentTimeMillis() - measureStartTime) / 1000;
+
+			if (measureTime >= 0.001f) {
+				hardMeasureTimeSum += measureTime;
+				hardMeasureCount++;
+
+				System.out.printf("%d. Update time: %.3f s\n", hardMeasureCount, measureTime);
+			}
+		}
+
+		return converged;
+	}
+
+	/**
+	 * @return <code>false</code> if there are pending changes (e.g. from previous {@link #step(long)})
+	 */
+	public boolean isConverged() {
+		if (! edits.isEmpty() || staticRebuild != null || ! dirtyChunks.isEmpty()) return false;
+
+		for (int i = 0; i < layersCount; i++) {
+			if (layers[i].dirty || layers[i].recounting) return false;
+		}
+
+		return true;
+	}
+
+	private boolean update() {
+		startPhase(StepPhase.EDITS);
+
+		if (! edits.apply()) return false;
+
+		startPhase(StepPhase.RECOUNT);
+
+		checkStaticLod();
+
+		if (staticRebuild != null && staticRebuild.isDone()) {
+			swapStaticLights();
+		}
+
+		boolean recounted = true;
+
+		for (int i = 0; i < layersCount; i++) {
+			LightLayer layer = layers[i];
+
+			if (layer == staticLayer && staticRebuildExecutor != null && ! engine.isIncremental()) {
+				if (layer.dirty && staticRebuild == null) {
+					startStaticRebuild();
+				}
+
+				continue;
+			}
+
+			// Layers changed during recount are recounted again, when budget allows
+			while (layer.dirty || layer.recounting) {
+				if (! recountLayer(layer)) {
+					recounted = false;
+					break;
+				}
+			}
+		}
+
+		// Complete layers are shown even if others are still recounted
+		startPhase(StepPhase.COMBINE);
+
+		if (! dirtyChunks.isEmpty() && ! combineLayers()) return false;
+
+		return recounted && isConverged();
+	}
+
+	boolean isOutOfBudget() {
+		return stepBudget != UNLIMITED_BUDGET && System.nanoTime() - stepStartTime >= stepBudget;
+	}
+
+	/**
+	 * Turns printing of `hard` update times on or off.
+	 * Printing allocates memory, so turn it off when garbage matters.
+	 */
+	public void setMeasureUpdate(boolean measureUpdate) {
+		this.measureUpdate = measureUpdate;
+	}
+
+	/**
+	 * Applies light change right away to incremental layers or marks layer for recounting.
+	 */
+	private void markLightChanged(LightLayer layer, int x, int y, Light light, boolean added) {
+		int r = Math.max(light.outerRadius, 0);
+
+		if (layer == staticLayer) {
+			staticLightChanged(x, y);
+		}
+
+		if (r > maxLightRadius) {
+			maxLightRadius = r;
+		}
+
+		if (engine.isIncremental() && ! layer.dirty && ! layer.recounting) {
+			if (added) {
+				layer.buffer.stamp(x, y, light);
+			} else {
+				layer.buffer.unstamp(x, y, light);
+			}
+		} else {
+			// Unfinished recount goes on with lights it started with, change waits for the next one
+			markLayerDirty(layer);
+		}
+
+		if (layer == staticLayer && staticRebuildExecutor != null && ! engine.isIncremental()) {
+			// Static layer is swapped as a whole after background rebuild
+			return;
+		}
+
+		markChunks(layer, x - r, y - r, x + r, y + r);
+	}
+
+	/**
+	 * Changes of layer waiting for recount are combined when recount is done.
+	 */
+	private void markChunks(LightLayer layer, int fromX, int fromY, int toX, int toY) {
+		if (layer.dirty) {
+			layer.changedChunks.mark(fromX, fromY, toX, toY);
+		} else {
+			dirtyChunks.mark(fromX, fromY, toX, toY);
+		}
+	}
+
+	private void markLayerDirty(LightLayer layer) {
+		layer.dirty = true;
+
+		if (layer == staticLayer && staticRebuildExecutor != null && staticRebuildDone == null) {
+			staticRebuildDone = new FutureTask<Void>(new Runnable() {
+				@Override
+				public void run() {}
+			}, null);
+		}
+	}
+
+	/**
+	 * Recounts layer right in its buffer, if there is no time budget, or into spare buffer otherwise.
+	 *
+	 * @return <code>false</code> if time budget ran out, next call will continue
+	 */
+	private boolean recountLayer(LightLayer layer) {
+		if (! layer.recounting) {
+			layer.dirty = false;
+
+			DirtyChunks chunks = layer.recountChunks;
+			layer.recountChunks = layer.changedChunks;
+			layer.changedChunks = chunks;
+
+			if (layer == staticLayer && staticLod != null) {
+				recountLodLayer();
+				finishRecount(layer, 0);
+				return true;
+			}
+
+			if (stepBudget == UNLIMITED_BUDGET) {
+				LightBuffer buffer = layer.buffer;
+				LightStore lights = layer.lights;
+
+				buffer.clear();
+
+				for (int i = 0; i < lights.size(); i++) {
+					buffer.stamp(lights.x(i), lights.y(i), lights.light(i));
+				}
+
+				if (layer == dynamicLayer) {
+					for (int id = 0; id < lastDynamicId; id++) {
+						if (dynamicLights[id] != null) {
+							buffer.stamp(dynamicLightsX[id], dynamicLightsY[id], dynamicLights[id]);
+						}
+					}
+				}
+
+				finishRecount(layer, lights.size());
+				return true;
+			}
+
+			startRecount(layer);
+		}
+
+		LightBuffer buffer = layer.spareBuffer;
+		int count = layer.recountCount;
+
+		for (int i = layer.recounted; i < count; i++) {
+			buffer.stamp(layer.recountXs[i], layer.recountYs[i], layer.recountLights[i]);
+
+			if (i + 1 < count && isOutOfBudget()) {
+				layer.recounted = i + 1;
+				return false;
+			}
+		}
+
+		layer.spareBuffer = layer.buffer;
+		layer.buffer = buffer;
+		layer.recounting = false;
+		layer.recounted = 0;
+
+		// Removed lights aren't kept
+		Arrays.fill(layer.recountLights, 0, count, null);
+
+		finishRecount(layer, count);
+		return true;
+	}
+
+	/**
+	 * Copies lights of layer, so they can be stamped into spare buffer by several steps.
+	 */
+	private void startRecount(LightLayer layer) {
+		LightStore lights = layer.lights;
+		int count = lights.size();
+
+		if (layer == dynamicLayer) {
+			count += dynamicLightsCount;
+		}
+
+		if (layer.recountXs.length < count) {
+			layer.recountXs = new int[count];
+			layer.recountYs = new int[count];
+			layer.recountLights = new Light[count];
+		}
+
+		lights.copyTo(layer.recountXs, layer.recountYs, layer.recountLights);
+
+		if (layer == dynamicLayer) {
+			int i = lights.size();
+
+			for (int id = 0; id < lastDynamicId; id++) {
+				if (dynamicLights[id] == null) continue;
+
+				layer.recountXs[i] = dynamicLightsX[id];
+				layer.recountYs[i] = dynamicLightsY[id];
+				layer.recountLights[i] = dynamicLights[id];
+				i++;
+			}
+		}
+
+		LightBuffer spare = withStats((layer.spareBuffer != null) ? layer.spareBuffer : createBuffer());
+		spare.setTick(tick);
+		spare.clear();
+
+		layer.spareBuffer = spare;
+		layer.recountCount = count;
+		layer.recounted = 0;
+		layer.recounting = true;
+	}
+
+	/**
+	 * Drops unfinished recount, its changes wait for the next one.
+	 */
+	private void abandonRecount(LightLayer layer) {
+		Arrays.fill(layer.recountLights, 0, layer.recountCount, null);
+
+		layer.changedChunks.markAll(layer.recountChunks);
+		layer.recountChunks.clear();
+		layer.recounting = false;
+		layer.recounted = 0;
+		layer.dirty = true;
+	}
+
+	/**
+	 * Merging needs all lights at once, so it isn't split between steps.
+	 */
+	private void recountLodLayer() {
+		LightBuffer buffer = staticLayer.buffer;
+		int count = staticLayer.lights.size();
+
+		if (lodXs.length < count) {
+			lodXs = new int[count];
+			lodYs = new int[count];
+			lodLights = new Light[count];
+			lodKeys = new long[count];
+		}
+
+		staticLayer.lights.copyTo(lodXs, lodYs, lodLights);
+		saveLodFocus();
+
+		buffer.clear();
+		stampedStaticLights = staticLod.stamp(buffer, count, lodXs, lodYs, lodLights,
+				lodFocusX, lodFocusY, lodFocusCount, lodKeys);
+
+		// Removed lights aren't kept
+		Arrays.fill(lodLights, 0, count, null);
+	}
+
+	/**
+	 * Shows changes of recounted layer.
+	 */
+	private void finishRecount(LightLayer layer, int stampedCount) {
+		dirtyChunks.markAll(layer.recountChunks);
+		layer.recountChunks.clear();
+
+		if (layer == staticLayer && staticLod == null) {
+			stampedStaticLights = stampedCount;
+		}
+
+		if (layer == staticLayer && ! layer.dirty && staticRebuildDone != null) {
+			staticRebuildDone.run();
+			staticRebuildDone = null;
+		}
+	}
+
+	private void startStaticRebuild() {
+		LightStore staticLights = staticLayer.lights;
+
+		final int count = staticLights.size();
+		final int[] xs = new int[count];
+		final int[] ys = new int[count];
+		final Light[] lights = new Light[count];
+
+		staticLights.copyTo(xs, ys, lights);
+
+		// Stats aren't thread-safe, stamps are counted by swap
+		final LightBuffer buffer = withoutStats((staticShadowBuffer != null) ? staticShadowBuffer : createBuffer());
+		buffer.setMaxError(maxLightError);
+		staticShadowBuffer = null;
+
+		final LightLod lod = staticLod;
+
+		if (lod != null) {
+			saveLodFocus();
+		}
+
+		final int[] focusX = Arrays.copyOf(lodFocusX, lodFocusCount);
+		final int[] focusY = Arrays.copyOf(lodFocusY, lodFocusCount);
+
+		staticRebuild = staticRebuildExecutor.submit(new Callable<LightBuffer>() {
+			@Override
+			public LightBuffer call() {
+				buffer.clear();
+
+				if (lod != null) {
+					stampedStaticLights = lod.stamp(buffer, count, xs, ys, lights, focusX, focusY, focusX.length,
+							new long[count]);
+					return buffer;
+				}
+
+				for (int i = 0; i < count; i++) {
+					buffer.stamp(xs[i], ys[i], lights[i]);
+				}
+
+				stampedStaticLights = count;
+
+				return buffer;
+			}
+		});
+
+		staticLayer.dirty = false;
+		staticLayer.changedChunks.clear();
+	}
+
+	private void swapStaticLights() {
+		LightBuffer buffer;
+
+		try {
+			buffer = staticRebuild.get();
+		} catch (InterruptedException e) {
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Static lights rebuild failed", e.getCause());
+		} finally {
+			staticRebuild = null;
+		}
+
+		staticShadowBuffer = staticLayer.buffer;
+		staticLayer.buffer = withStats(buffer);
+		staticLayer.buffer.setTick(tick);
+
+		if (stats != null) {
+			stats.stampedInBackground(stampedStaticLights);
+		}
+
+		dirtyChunks.markAll();
+
+		if (! staticLayer.dirty && staticRebuildDone != null) {
+			staticRebuildDone.run();
+			staticRebuildDone = null;
+		}
+	}
+
+	/**
+	 * Blends all layers chunk by chunk, only for chunks changed since previous step.
+	 *
+	 * @return <code>false</code> if time budget ran out, next call will continue
+	 */
+	private boolean combineLayers() {
+		if (stepBudget != UNLIMITED_BUDGET && focusPointsCount > 0) {
+			dirtyChunks.sortByDistance(focusPoints, focusPointsCount);
+		}
+
+		int size = dirtyChunks.size();
+
+		for (int c = 0; c < size; c++) {
+			combineChunk(dirtyChunks.get(c));
+
+			if (c + 1 < size && isOutOfBudget()) {
+				dirtyChunks.removeFirst(c + 1);
+				return false;
+			}
+		}
+
+		dirtyChunks.clear();
+		return true;
+	}
+
+	private void combineChunk(int chunk) {
+		float[] acc = combineValues;
+		float[] values = layerValues;
+
+		int fromX = dirtyChunks.fromX(chunk);
+		int fromY = dirtyChunks.fromY(chunk);
+		int toX = dirtyChunks.toX(chunk);
+		int toY = dirtyChunks.toY(chunk);
+		int n = (toX - fromX) * (toY - fromY);
+
+		for (int k = 0; k < n; k++) {
+			acc[k] = 0;
+		}
+
+		for (int i = 0; i < layersCount; i++) {
+			LightLayer layer = layers[i];
+
+			if (layer.isAmbient()) {
+				blend(acc, layer.ambientValue, n, layer.getBlendMode());
+			} else {
+				layer.buffer.read(fromX, fromY, toX, toY, values);
+				blend(acc, values, n, layer.getBlendMode());
+			}
+		}
+
+		if (checkpoints != null) {
+			checkpoints.chunkChanging(chunk, lightValues, colorValues);
+		}
+
+		int k = 0;
+		for (int x = fromX; x < toX; x++) {
+			float[] column = lightValues[x];
+
+			for (int y = fromY; y < toY; y++) {
+				float v = acc[k++];
+
+				if (v > 1)
+					v = 1;
+				else if (v < 0)
+					v = 0;
+
+				column[y] = v;
+			}
+		}
+
+		lightSummary.invalidate(fromX, fromY, toX, toY);
+
+		if (colored) {
+			combineChunkColors(fromX, fromY, toX, toY);
+		}
+
+		if (stats != null) {
+			stats.combined(chunk);
+		}
+	}
+
+	private void combineChunkColors(int fromX, int fromY, int toX, int toY) {
+		int[] acc = combineColors;
+		int[] colors = layerColors;
+		int n = (toX - fromX) * (toY - fromY);
+
+		for (int k = 0; k < n; k++) {
+			acc[k] = 0;
+		}
+
+		for (int i = 0; i < layersCount; i++) {
+			LightLayer layer = layers[i];
+
+			if (layer.isAmbient()) {
+				blendColors(acc, layer.ambientValue, n, layer.getBlendMode());
+			} else {
+				layer.buffer.readColors(fromX, fromY, toX, toY, colors);
+				blendColors(acc, colors, n, layer.getBlendMode());
+			}
+		}
+
+		int k = 0;
+		for (int x = fromX; x < toX; x++) {
+			for (int y = fromY; y < toY; y++) {
+				colorValues[y * width + x] = PackedColor.toRgba8888(acc[k++]);
+			}
+		}
+	}
+
+	private static void blend(float[] acc, float[] values, int n, BlendMode mode) {
+		switch (mode) {
+			case ADD:
+				for (int k = 0; k < n; k++) {
+					acc[k] += values[k];
+				}
+				break;
+			case MAX:
+				for (int k = 0; k < n; k++) {
+					if (values[k] > acc[k]) acc[k] = values[k];
+				}
+				break;
+			case MULTIPLY:
+				for (int k = 0; k < n; k++) {
+					acc[k] *= values[k];
+				}
+				break;
+		}
+	}
+
+	private static void blend(float[] acc, float value, int n, BlendMode mode) {
+		switch (mode) {
+			case ADD:
+				for (int k = 0; k < n; k++) {
+					acc[k] += value;
+				}
+				break;
+			case MAX:
+				for (int k = 0; k < n; k++) {
+					if (value > acc[k]) acc[k] = value;
+				}
+				break;
+			case MULTIPLY:
+				for (int k = 0; k < n; k++) {
+					acc[k] *= value;
+				}
+				break;
+		}
+	}
+
+	private static void blendColors(int[] acc, int[] colors, int n, BlendMode mode) {
+		switch (mode) {
+			case ADD:
+				for (int k = 0; k < n; k++) {
+					acc[k] = PackedColor.add(acc[k], colors[k]);
+				}
+				break;
+			case MAX:
+				for (int k = 0; k < n; k++) {
+					acc[k] = PackedColor.max(acc[k], colors[k]);
+				}
+				break;
+			case MULTIPLY:
+				for (int k = 0; k < n; k++) {
+					acc[k] = PackedColor.multiply(acc[k], colors[k]);
+				}
+				break;
+		}
+	}
+
+	/**
+	 * Ambient value is white light of this intensity.
+	 */
+	private static void blendColors(int[] acc, float value, int n, BlendMode mode) {
+		switch (mode) {
+			case ADD: {
+				int color = PackedColor.gray(value);
+				for (int k = 0; k < n; k++) {
+					acc[k] = PackedColor.add(acc[k], color);
+				}
+			} break;
+			case MAX: {
+				int color = PackedColor.gray(value);
+				for (int k = 0; k < n; k++) {
+					acc[k] = PackedColor.max(acc[k], color);
+				}
+			} break;
+			case MULTIPLY:
+				for (int k = 0; k < n; k++) {
+					acc[k] = PackedColor.scale(acc[k], value);
+				}
+				break;
 		}
 	}
 
@@ -302,7 +2130,7 @@ public class LightMap {
 	}
 
 	public float getAvgHardUpdateTime() {
-		if (MEASURE_UPDATE) {
+		if (measureUpdate) {
 			return (float) (hardMeasureTimeSum / hardMeasureCount);
 		} else {
 			return 0;
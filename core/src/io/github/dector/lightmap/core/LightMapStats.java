@@ -0,0 +1,149 @@
+package io.github.dector.lightmap.core;
+
+/**
+ * Profiling data of {@link LightMap}, collected while {@link LightMap#setStatsEnabled(boolean)} is on.
+ *
+ * Times and counts are of the last {@link LightMap#step()}.
+ * Heat (how many lights were stamped on tile and how often tile was recombined)
+ * grows until {@link #resetHeat()}.
+ * Stamps of background static rebuild are counted by step, which takes rebuilt layer,
+ * they don't add heat.
+ *
+ * @author dector
+ */
+public class LightMapStats {
+
+	private final int width;
+	private final int height;
+	private final int chunkSize;
+	private final int chunksX;
+
+	private final long[] phaseTimes = new long[StepPhase.values().length];
+	private StepPhase phase;
+	private long phaseStartTime;
+
+	private int stampsCount;
+	private int combinedChunksCount;
+
+	/** Row by row */
+	private final int[] tileStamps;
+	private final int[] chunkCombines;
+
+	LightMapStats(int width, int height, int chunkSize) {
+		this.width = width;
+		this.height = height;
+		this.chunkSize = chunkSize;
+
+		chunksX = (width + chunkSize - 1) / chunkSize;
+
+		tileStamps = new int[width * height];
+		chunkCombines = new int[chunksX * ((height + chunkSize - 1) / chunkSize)];
+	}
+
+	/**
+	 * @return nanoseconds
+	 */
+	public long getPhaseTime(StepPhase phase) {
+		return phaseTimes[phase.ordinal()];
+	}
+
+	/**
+	 * @return nanoseconds
+	 */
+	public long getStepTime() {
+		long time = 0;
+
+		for (long t : phaseTimes) {
+			time += t;
+		}
+
+		return time;
+	}
+
+	/**
+	 * @return lights stamped (or removed by incremental engine)
+	 */
+	public int getStampsCount() {
+		return stampsCount;
+	}
+
+	public int getCombinedChunksCount() {
+		return combinedChunksCount;
+	}
+
+	/**
+	 * @return number of lights, which footprints covered tile
+	 */
+	public int getStampsAt(int x, int y) {
+		return tileStamps[y * width + x];
+	}
+
+	/**
+	 * @return how many times tile value was blended from layers
+	 */
+	public int getCombinesAt(int x, int y) {
+		return chunkCombines[(y / chunkSize) * chunksX + x / chunkSize];
+	}
+
+	public void resetHeat() {
+		for (int i = 0; i < tileStamps.length; i++) {
+			tileStamps[i] = 0;
+		}
+
+		for (int i = 0; i < chunkCombines.length; i++) {
+			chunkCombines[i] = 0;
+		}
+	}
+
+	void startStep() {
+		for (int i = 0; i < phaseTimes.length; i++) {
+			phaseTimes[i] = 0;
+		}
+
+		stampsCount = 0;
+		combinedChunksCount = 0;
+	}
+
+	void startPhase(StepPhase phase) {
+		long time = System.nanoTime();
+
+		if (this.phase != null) {
+			phaseTimes[this.phase.ordinal()] += time - phaseStartTime;
+		}
+
+		this.phase = phase;
+		phaseStartTime = time;
+	}
+
+	void endStep() {
+		startPhase(null);
+	}
+
+	void stamped(int x, int y, Light light) {
+		stampsCount++;
+
+		int r = Math.max(Math.max(light.outerRadius, light.innerRadius), 0);
+
+		int fromX 	= Math.max(x - r, 0);
+		int toX 	= Math.min(x + r, width - 1);
+		int fromY 	= Math.max(y - r, 0);
+		int toY 	= Math.min(y + r, height - 1);
+
+		for (int j = fromY; j <= toY; j++) {
+			int offset = j * width;
+
+			for (int i = fromX; i <= toX; i++) {
+				tileStamps[offset + i]++;
+			}
+		}
+	}
+
+	void stampedInBackground(int count) {
+		stampsCount += count;
+	}
+
+	void combined(int chunk) {
+		combinedChunksCount++;
+		chunkCombines[chunk]++;
+	}
+}
@@ -0,0 +1,246 @@
+package io.github.dector.lightmap.core;
+
+/**
+ * Lights, placed by tile position. Doesn't allocate anything on lookup and iteration.
+ *
+ * Lights are kept in dense arrays (use index from 0 to {@link #size()} for iteration)
+ * and indexed by open-addressing hash table.
+ * Removing light moves the last one to its place.
+ *
+ * @author dector
+ */
+class LightStore {
+
+	private int[] xs;
+	private int[] ys;
+	private Light[] lights;
+	private int size;
+
+	/** Light index + 1, or 0 for empty slot */
+	private int[] table;
+	private int mask;
+
+	LightStore() {
+		xs = new int[16];
+		ys = new int[16];
+		lights = new Light[16];
+
+		table = new int[32];
+		mask = table.length - 1;
+	}
+
+	int size() {
+		return size;
+	}
+
+	int x(int index) {
+		return xs[index];
+	}
+
+	int y(int index) {
+		return ys[index];
+	}
+
+	Light light(int index) {
+		return lights[index];
+	}
+
+	int indexOf(int x, int y) {
+		for (int s = slot(x, y); ; s = (s + 1) & mask) {
+			int e = table[s];
+
+			if (e == 0) return -1;
+
+			e--;
+			if (xs[e] == x && ys[e] == y) return e;
+		}
+	}
+
+	Light get(int x, int y) {
+		int i = indexOf(x, y);
+		return (i >= 0) ? lights[i] : null;
+	}
+
+	/**
+	 * @return previous light at this position or <code>null</code>
+	 */
+	Light put(int x, int y, Light light) {
+		int s = slot(x, y);
+
+		for (; table[s] != 0; s = (s + 1) & mask) {
+			int e = table[s] - 1;
+
+			if (xs[e] == x && ys[e] == y) {
+				Light old = lights[e];
+				lights[e] = light;
+				return old;
+			}
+		}
+
+		if (size == xs.length) {
+			growEntries(xs.length * 2);
+		}
+
+		xs[size] = x;
+		ys[size] = y;
+		lights[size] = light;
+		table[s] = ++size;
+
+		if (size * 2 > table.length) {
+			rehash(table.length * 2);
+		}
+
+		return null;
+	}
+
+	/**
+	 * @return removed light or <code>null</code>
+	 */
+	Light remove(int x, int y) {
+		int s = slot(x, y);
+		int e;
+
+		while (true) {
+			e = table[s];
+
+			if (e == 0) return null;
+
+			e--;
+			if (xs[e] == x && ys[e] == y) break;
+
+			s = (s + 1) & mask;
+		}
+
+		Light old = lights[e];
+
+		deleteSlot(s);
+
+		int last = --size;
+		if (e != last) {
+			table[slotOfIndex(last)] = e + 1;
+
+			xs[e] = xs[last];
+			ys[e] = ys[last];
+			lights[e] = lights[last];
+		}
+
+		lights[last] = null;
+
+		return old;
+	}
+
+	void clear() {
+		for (int i = 0; i < size; i++) {
+			lights[i] = null;
+		}
+
+		for (int i = 0; i < table.length; i++) {
+			table[i] = 0;
+		}
+
+		size = 0;
+	}
+
+	/**
+	 * Grows arrays at once, so adding many lights doesn't rehash them again and again.
+	 */
+	void ensureCapacity(int capacity) {
+		if (capacity > xs.length) {
+			growEntries(capacity);
+		}
+
+		int tableCapacity = table.length;
+		while (capacity * 2 > tableCapacity) {
+			tableCapacity *= 2;
+		}
+
+		if (tableCapacity != table.length) {
+			rehash(tableCapacity);
+		}
+	}
+
+	/**
+	 * Copies positions and lights into arrays, which should be at least {@link #size()} long.
+	 */
+	void copyTo(int[] xs, int[] ys, Light[] lights) {
+		System.arraycopy(this.xs, 0, xs, 0, size);
+		System.arraycopy(this.ys, 0, ys, 0, size);
+		System.arraycopy(this.lights, 0, lights, 0, size);
+	}
+
+	private int slot(int x, int y) {
+		int h = x * 0x9E3779B1 + y * 0x85EBCA77;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	private int slotOfIndex(int index) {
+		int s = slot(xs[index], ys[index]);
+
+		while (table[s] != index + 1) {
+			s = (s + 1) & mask;
+		}
+
+		return s;
+	}
+
+	/**
+	 * Backward shift deletion, keeps probe chains unbroken.
+	 */
+	private void deleteSlot(int s) {
+		table[s] = 0;
+
+		int j = s;
+		while (true) {
+			j = (j + 1) & mask;
+
+			int e = table[j];
+			if (e == 0) return;
+
+			int home = slot(xs[e - 1], ys[e - 1]);
+
+			boolean movable = (j > s)
+					? (home <= s || home > j)
+					: (home <= s && home > j);
+
+			if (movable) {
+				table[s] = e;
+				table[j] = 0;
+				s = j;
+			}
+		}
+	}
+
+	long getMemoryUsage() {
+		return MemoryFootprint.arrayBytes(xs.length, 4) + MemoryFootprint.arrayBytes(ys.length, 4)
+				+ MemoryFootprint.arrayBytes(lights.length, 4) + MemoryFootprint.arrayBytes(table.length, 4);
+	}
+
+	private void growEntries(int capacity) {
+		int[] newXs = new int[capacity];
+		int[] newYs = new int[capacity];
+		Light[] newLights = new Light[capacity];
+
+		System.arraycopy(xs, 0, newXs, 0, size);
+		System.arraycopy(ys, 0, newYs, 0, size);
+		System.arraycopy(lights, 0, newLights, 0, size);
+
+		xs = newXs;
+		ys = newYs;
+		lights = newLights;
+	}
+
+	private void rehash(int capacity) {
+		table = new int[capacity];
+		mask = capacity - 1;
+
+		for (int i = 0; i < size; i++) {
+			int s = slot(xs[i], ys[i]);
+
+			while (table[s] != 0) {
+				s = (s + 1) & mask;
+			}
+
+			table[s] = i + 1;
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package io.github.dector.lightmap.core;
+
+/**
+ * Keeps min/max light value for each block of tiles,
+ * so spatial queries can skip whole blocks.
+ *
+ * Blocks are recounted lazily, only when some query touches them.
+ *
+ * @author dector
+ */
+class LightSummary {
+
+	static final int BLOCK_SHIFT = 3;
+	static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+
+	private final int width;
+	private final int height;
+	private final int blocksX;
+	private final int blocksY;
+
+	private final float[] min;
+	private final float[] max;
+	private final int[] blockVersion;
+	private int version;
+
+	LightSummary(int width, int height) {
+		this.width = width;
+		this.height = height;
+
+		blocksX = (width + BLOCK_SIZE - 1) >> BLOCK_SHIFT;
+		blocksY = (height + BLOCK_SIZE - 1) >> BLOCK_SHIFT;
+
+		min = new float[blocksX * blocksY];
+		max = new float[blocksX * blocksY];
+		blockVersion = new int[blocksX * blocksY];
+
+		invalidateAll();
+	}
+
+	long getMemoryUsage() {
+		return MemoryFootprint.arrayBytes(min.length, 4) + MemoryFootprint.arrayBytes(max.length, 4)
+				+ MemoryFootprint.arrayBytes(blockVersion.length, 4);
+	}
+
+	void invalidateAll() {
+		version++;
+	}
+
+	/**
+	 * Invalidates blocks, which intersect rectangle (exclusive bounds).
+	 */
+	void invalidate(int fromX, int fromY, int toX, int toY) {
+		for (int bx = fromX >> BLOCK_SHIFT; bx <= (toX - 1) >> BLOCK_SHIFT; bx++) {
+			for (int by = fromY >> BLOCK_SHIFT; by <= (toY - 1) >> BLOCK_SHIFT; by++) {
+				blockVersion[by * blocksX + bx] = version - 1;
+			}
+		}
+	}
+
+	/**
+	 * Finds darkest (or brightest) tile in circle.
+	 * From equal tiles the nearest one to the center wins.
+	 */
+	boolean find(float[][] values, int x, int y, int radius, boolean darkest, Position out) {
+		if (radius < 0 || x < 0 || x >= width || y < 0 || y >= height) return false;
+
+		int fromX = Math.max(x - radius, 0);
+		int toX = Math.min(x + radius, width - 1);
+		int fromY = Math.max(y - radius, 0);
+		int toY = Math.min(y + radius, height - 1);
+		int rr = radius * radius;
+
+		int bestX = x;
+		int bestY = y;
+		float best = values[x][y];
+		int bestDist = 0;
+
+		for (int bx = fromX >> BLOCK_SHIFT; bx <= toX >> BLOCK_SHIFT; bx++) {
+			for (int by = fromY >> BLOCK_SHIFT; by <= toY >> BLOCK_SHIFT; by++) {
+				int b = refresh(values, bx, by);
+
+				if (darkest ? min[b] > best : max[b] < best) continue;
+
+				int blockToX = Math.min((bx << BLOCK_SHIFT) + BLOCK_SIZE - 1, toX);
+				int blockToY = Math.min((by << BLOCK_SHIFT) + BLOCK_SIZE - 1, toY);
+
+				for (int i = Math.max(bx << BLOCK_SHIFT, fromX); i <= blockToX; i++) {
+					for (int j = Math.max(by << BLOCK_SHIFT, fromY); j <= blockToY; j++) {
+						int dx = i - x;
+						int dy = j - y;
+						int dist = dx * dx + dy * dy;
+
+						if (dist > rr) continue;
+
+						float v = values[i][j];
+
+						if ((darkest ? v < best : v > best)
+								|| (v == best && dist < bestDist)) {
+							best = v;
+							bestDist = dist;
+							bestX = i;
+							bestY = j;
+						}
+					}
+				}
+			}
+		}
+
+		out.set(bestX, bestY);
+		return true;
+	}
+
+	int countLit(float[][] values, int x, int y, int w, int h, float threshold) {
+		int fromX = Math.max(x, 0);
+		int toX = Math.min(x + w, width) - 1;
+		int fromY = Math.max(y, 0);
+		int toY = Math.min(y + h, height) - 1;
+
+		int count = 0;
+
+		for (int bx = fromX >> BLOCK_SHIFT; bx <= toX >> BLOCK_SHIFT; bx++) {
+			for (int by = fromY >> BLOCK_SHIFT; by <= toY >> BLOCK_SHIFT; by++) {
+				int b = refresh(values, bx, by);
+
+				if (max[b] < threshold) continue;
+
+				int blockFromX = Math.max(bx << BLOCK_SHIFT, fromX);
+				int blockToX = Math.min((bx << BLOCK_SHIFT) + BLOCK_SIZE - 1, toX);
+				int blockFromY = Math.max(by << BLOCK_SHIFT, fromY);
+				int blockToY = Math.min((by << BLOCK_SHIFT) + BLOCK_SIZE - 1, toY);
+
+				if (min[b] >= threshold) {
+					count += (blockToX - blockFromX + 1) * (blockToY - blockFromY + 1);
+					continue;
+				}
+
+				for (int i = blockFromX; i <= blockToX; i++) {
+					for (int j = blockFromY; j <= blockToY; j++) {
+						if (values[i][j] >= threshold) {
+							count++;
+						}
+					}
+				}
+			}
+		}
+
+		return count;
+	}
+
+	private int refresh(float[][] values, int bx, int by) {
+		int b = by * blocksX + bx;
+
+		if (blockVersion[b] == version) return b;
+
+		int fromX = bx << BLOCK_SHIFT;
+		int toX = Math.min(fromX + BLOCK_SIZE, width);
+		int fromY = by << BLOCK_SHIFT;
+		int toY = Math.min(fromY + BLOCK_SIZE, height);
+
+		float blockMin = Float.MAX_VALUE;
+		float blockMax = - Float.MAX_VALUE;
+
+		for (int i = fromX; i < toX; i++) {
+			for (int j = fromY; j < toY; j++) {
+				float v = values[i][j];
+
+				if (v < blockMin) blockMin = v;
+				if (v > blockMax) blockMax = v;
+			}
+		}
+
+		min[b] = blockMin;
+		max[b] = blockMax;
+		blockVersion[b] = version;
+
+		return b;
+	}
+}
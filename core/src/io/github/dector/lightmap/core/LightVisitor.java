@@ -0,0 +1,13 @@
+package io.github.dector.lightmap.core;
+
+/**
+ * Callback for iterating over lights without allocations.
+ *
+ * @see LightMap#forEachStaticLight(LightVisitor)
+ *
+ * @author dector
+ */
+public interface LightVisitor {
+
+	void visit(int x, int y, Light light);
+}
@@ -0,0 +1,146 @@
+package io.github.dector.lightmap.core;
+
+/**
+ * Memory taken by {@link LightMap}, see {@link LightMap#getMemoryFootprint()}.
+ * Sizes are estimated from array lengths (with 4-byte references), shared lights aren't counted.
+ *
+ * @author dector
+ */
+public class MemoryFootprint {
+
+	String[] layerNames = new String[0];
+	long[] layerBytes = new long[0];
+	int[] spilledColumns = new int[0];
+	int layersCount;
+	int columnsCount;
+
+	long lightValuesBytes;
+	long lightsBytes;
+	long cacheBytes;
+	long spillHeapBytes;
+	long spilledBytes;
+	boolean spilledToFile;
+
+	MemoryFootprint() {}
+
+	void setLayersCount(int count) {
+		if (layerBytes.length < count) {
+			layerNames = new String[count];
+			layerBytes = new long[count];
+			spilledColumns = new int[count];
+		}
+
+		layersCount = count;
+	}
+
+	public int getLayersCount() {
+		return layersCount;
+	}
+
+	public String getLayerName(int layer) {
+		return layerNames[layer];
+	}
+
+	/**
+	 * @return bytes of layer light values in heap, 0 for ambient layer
+	 */
+	public long getLayerBytes(int layer) {
+		return layerBytes[layer];
+	}
+
+	/**
+	 * @return columns of layer, moved to spill store
+	 */
+	public int getSpilledColumnsCount(int layer) {
+		return spilledColumns[layer];
+	}
+
+	/**
+	 * @return columns in each layer (one per map column)
+	 */
+	public int getColumnsCount() {
+		return columnsCount;
+	}
+
+	/**
+	 * @return combined light values, colors and walls
+	 */
+	public long getLightValuesBytes() {
+		return lightValuesBytes;
+	}
+
+	/**
+	 * @return positions of static and dynamic lights
+	 */
+	public long getLightsBytes() {
+		return lightsBytes;
+	}
+
+	/**
+	 * @return summary for spatial queries, dirty chunks, scratch arrays,
+	 * spare buffers of background rebuild and of recounts and checkpoints
+	 */
+	public long getCacheBytes() {
+		return cacheBytes;
+	}
+
+	/**
+	 * @return compressed spilled columns, in heap or in file
+	 */
+	public long getSpilledBytes() {
+		return spilledBytes;
+	}
+
+	public boolean isSpilledToFile() {
+		return spilledToFile;
+	}
+
+	/**
+	 * @return all bytes in heap, compared with {@link LightMap#setMemoryBudget(long)}
+	 */
+	public long getTotalBytes() {
+		long total = lightValuesBytes + lightsBytes + cacheBytes + spillHeapBytes;
+
+		for (int i = 0; i < layersCount; i++) {
+			total += layerBytes[i];
+		}
+
+		return total;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+
+		sb.append(String.format("Total %.1f KB: values %.1f KB, lights %.1f KB, caches %.1f KB",
+				getTotalBytes() / 1024f, lightValuesBytes / 1024f, lightsBytes / 1024f, cacheBytes / 1024f));
+
+		for (int i = 0; i < layersCount; i++) {
+			sb.append(String.format(", %s %.1f KB", layerNames[i], layerBytes[i] / 1024f));
+
+			if (spilledColumns[i] > 0) {
+				sb.append(String.format(" (%d/%d spilled)", spilledColumns[i], columnsCount));
+			}
+		}
+
+		if (spilledBytes > 0) {
+			sb.append(String.format(", spilled %.1f KB%s", spilledBytes / 1024f, spilledToFile ? " in file" : ""));
+		}
+
+		return sb.toString();
+	}
+
+	/**
+	 * @return estimated size of array
+	 */
+	static long arrayBytes(long length, int elementSize) {
+		return (16 + length * elementSize + 7) & ~7L;
+	}
+
+	/**
+	 * @return estimated size of <code>type[width][height]</code> array
+	 */
+	static long arrayBytes(int width, int height, int elementSize) {
+		return arrayBytes(width, 4) + width * arrayBytes(height, elementSize);
+	}
+}
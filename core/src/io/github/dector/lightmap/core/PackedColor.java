@@ -0,0 +1,99 @@
+package io.github.dector.lightmap.core;
+
+/**
+ * Operations on colors packed as <code>0xRRGGBB</code>, 8 bits per channel.
+ * Channels saturate at 255 instead of overflowing into each other.
+ * {@link #add(int, int)} and {@link #times(int, int)} handle the top byte as fourth channel too.
+ *
+ * @author dector
+ */
+final class PackedColor {
+
+	private static final int LOW_BITS = 0x7F7F7F7F;
+	private static final int HIGH_BITS = 0x80808080;
+
+	private PackedColor() {}
+
+	/**
+	 * Adds all channels at once (SIMD within register).
+	 */
+	static int add(int a, int b) {
+		int sum = ((a & LOW_BITS) + (b & LOW_BITS)) ^ ((a ^ b) & HIGH_BITS);
+		int carry = ((a & b) | ((a | b) & ~sum)) & HIGH_BITS;
+
+		// Overflowed channels are filled with ones
+		return sum | ((carry << 1) - (carry >>> 7));
+	}
+
+	/**
+	 * The same as adding <code>color</code> <code>count</code> times.
+	 */
+	static int times(int color, int count) {
+		return (timesChannel(color >>> 24, count) << 24)
+				| (timesChannel((color >>> 16) & 0xFF, count) << 16)
+				| (timesChannel((color >>> 8) & 0xFF, count) << 8)
+				| timesChannel(color & 0xFF, count);
+	}
+
+	static int max(int a, int b) {
+		return Math.max(a & 0xFF0000, b & 0xFF0000)
+				| Math.max(a & 0xFF00, b & 0xFF00)
+				| Math.max(a & 0xFF, b & 0xFF);
+	}
+
+	static int multiply(int a, int b) {
+		return (mulChannel(a >>> 16, b >>> 16) << 16)
+				| (mulChannel((a >>> 8) & 0xFF, (b >>> 8) & 0xFF) << 8)
+				| mulChannel(a & 0xFF, b & 0xFF);
+	}
+
+	/**
+	 * @param value from 0 to 1
+	 */
+	static int scale(int color, float value) {
+		return (scaleChannel(color >>> 16, value) << 16)
+				| (scaleChannel((color >>> 8) & 0xFF, value) << 8)
+				| scaleChannel(color & 0xFF, value);
+	}
+
+	/**
+	 * Integer version of {@link #scale(int, float)}.
+	 *
+	 * @param value from 0 to {@link FixedLightBuffer#ONE}
+	 */
+	static int scaleFixed(int color, int value) {
+		return (scaleFixedChannel(color >>> 16, value) << 16)
+				| (scaleFixedChannel((color >>> 8) & 0xFF, value) << 8)
+				| scaleFixedChannel(color & 0xFF, value);
+	}
+
+	static int gray(float value) {
+		int c = scaleChannel(0xFF, value);
+		return (c << 16) | (c << 8) | c;
+	}
+
+	/**
+	 * Format of libGDX <code>Pixmap.Format.RGBA8888</code>, fully opaque.
+	 */
+	static int toRgba8888(int color) {
+		return (color << 8) | 0xFF;
+	}
+
+	private static int mulChannel(int a, int b) {
+		return (a * b + 127) / 255;
+	}
+
+	private static int timesChannel(int c, int count) {
+		long v = (long) c * count;
+		return (v < 0xFF) ? (int) v : 0xFF;
+	}
+
+	private static int scaleFixedChannel(int c, int value) {
+		return (c * value + (FixedLightBuffer.ONE >> 1)) >> FixedLightBuffer.SHIFT;
+	}
+
+	private static int scaleChannel(int c, float value) {
+		int v = Math.round(c * value);
+		return (v < 0) ? 0 : (v > 0xFF) ? 0xFF : v;
+	}
+}
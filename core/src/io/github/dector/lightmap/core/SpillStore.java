@@ -0,0 +1,281 @@
+package io.github.dector.lightmap.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Keeps pages of cold buffers compressed, in memory or in local file.
+ * Page is taken back (and freed) once, when it's needed again.
+ *
+ * Space of taken pages is reused by new ones (first fit), free space at the end of file is truncated,
+ * so file doesn't grow beyond live pages much.
+ * Synchronized, because background static rebuild may free pages of its buffer.
+ *
+ * @author dector
+ */
+class SpillStore {
+
+	private final RandomAccessFile file;
+
+	/** Compressed pages, when kept in memory */
+	private byte[][] pages = new byte[16][];
+	private long[] offsets = new long[16];
+	private int[] lengths = new int[16];
+	private int[] freeHandles = new int[16];
+	private int freeCount;
+	private int handlesCount;
+	private int liveCount;
+
+	private long storedBytes;
+	private long fileLength;
+
+	/** Free space inside of file, sorted by offset, neighbours are merged */
+	private long[] extentOffsets = new long[16];
+	private int[] extentLengths = new int[16];
+	private int extentsCount;
+
+	private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+	private final Inflater inflater = new Inflater();
+	private byte[] scratch = new byte[1024];
+
+	SpillStore() {
+		file = null;
+	}
+
+	SpillStore(File file) throws IOException {
+		this.file = new RandomAccessFile(file, "rw");
+		this.file.setLength(0);
+	}
+
+	/**
+	 * @return handle of page
+	 */
+	synchronized int put(byte[] data) {
+		deflater.reset();
+		deflater.setInput(data);
+		deflater.finish();
+
+		int length = 0;
+
+		while (! deflater.finished()) {
+			if (length == scratch.length) {
+				scratch = Arrays.copyOf(scratch, scratch.length * 2);
+			}
+
+			length += deflater.deflate(scratch, length, scratch.length - length);
+		}
+
+		int handle = newHandle();
+		lengths[handle] = length;
+
+		if (file != null) {
+			long offset = allocate(length);
+
+			try {
+				file.seek(offset);
+				file.write(scratch, 0, length);
+			} catch (IOException e) {
+				throw new IllegalStateException("Can't spill to file", e);
+			}
+
+			offsets[handle] = offset;
+		} else {
+			pages[handle] = Arrays.copyOf(scratch, length);
+		}
+
+		storedBytes += length;
+		liveCount++;
+
+		return handle;
+	}
+
+	/**
+	 * Reads page into <code>out</code> (of its original size) and frees it.
+	 */
+	synchronized void take(int handle, byte[] out) {
+		int length = lengths[handle];
+		byte[] compressed;
+
+		if (file != null) {
+			compressed = (scratch.length >= length) ? scratch : (scratch = new byte[length]);
+
+			try {
+				file.seek(offsets[handle]);
+				file.readFully(compressed, 0, length);
+			} catch (IOException e) {
+				throw new IllegalStateException("Can't read spilled page", e);
+			}
+		} else {
+			compressed = pages[handle];
+		}
+
+		inflater.reset();
+		inflater.setInput(compressed, 0, length);
+
+		try {
+			int n = 0;
+
+			while (n < out.length && ! inflater.finished()) {
+				n += inflater.inflate(out, n, out.length - n);
+			}
+		} catch (DataFormatException e) {
+			throw new IllegalStateException("Spilled page is broken", e);
+		}
+
+		free(handle);
+	}
+
+	synchronized void free(int handle) {
+		if (file != null) {
+			release(offsets[handle], lengths[handle]);
+		}
+
+		storedBytes -= lengths[handle];
+		pages[handle] = null;
+		lengths[handle] = 0;
+
+		if (freeCount == freeHandles.length) {
+			freeHandles = Arrays.copyOf(freeHandles, freeCount * 2);
+		}
+
+		freeHandles[freeCount++] = handle;
+		liveCount--;
+	}
+
+	/**
+	 * @return compressed bytes of all pages
+	 */
+	synchronized long getStoredBytes() {
+		return storedBytes;
+	}
+
+	/**
+	 * @return bytes, kept in heap (compressed pages and bookkeeping)
+	 */
+	synchronized long getHeapBytes() {
+		long bytes = scratch.length + 8L * offsets.length + 4L * (lengths.length + freeHandles.length)
+				+ 4L * pages.length + 12L * extentOffsets.length;
+
+		return (file != null) ? bytes : bytes + storedBytes;
+	}
+
+	boolean isFile() {
+		return file != null;
+	}
+
+	synchronized void close() {
+		deflater.end();
+		inflater.end();
+
+		if (file != null) {
+			try {
+				file.close();
+			} catch (IOException e) {
+				throw new IllegalStateException("Can't close spill file", e);
+			}
+		}
+	}
+
+	/**
+	 * @return offset of file space for page, the first free extent, which fits, or the end of file
+	 */
+	private long allocate(int length) {
+		for (int i = 0; i < extentsCount; i++) {
+			int free = extentLengths[i];
+
+			if (free < length) continue;
+
+			long offset = extentOffsets[i];
+
+			if (free == length) {
+				removeExtent(i);
+			} else {
+				extentOffsets[i] += length;
+				extentLengths[i] = free - length;
+			}
+
+			return offset;
+		}
+
+		long offset = fileLength;
+		fileLength += length;
+
+		return offset;
+	}
+
+	/**
+	 * Returns page space to free extents, merging it with neighbours.
+	 */
+	private void release(long offset, int length) {
+		if (length == 0) return;
+
+		// The first extent after this page
+		int i = 0;
+		while (i < extentsCount && extentOffsets[i] < offset) {
+			i++;
+		}
+
+		if (i > 0 && extentOffsets[i - 1] + extentLengths[i - 1] == offset) {
+			i--;
+			extentLengths[i] += length;
+		} else {
+			insertExtent(i, offset, length);
+		}
+
+		if (i + 1 < extentsCount && extentOffsets[i] + extentLengths[i] == extentOffsets[i + 1]) {
+			extentLengths[i] += extentLengths[i + 1];
+			removeExtent(i + 1);
+		}
+
+		if (extentOffsets[i] + extentLengths[i] == fileLength) {
+			fileLength = extentOffsets[i];
+			removeExtent(i);
+
+			try {
+				file.setLength(fileLength);
+			} catch (IOException e) {
+				throw new IllegalStateException("Can't truncate spill file", e);
+			}
+		}
+	}
+
+	private void insertExtent(int index, long offset, int length) {
+		if (extentsCount == extentOffsets.length) {
+			extentOffsets = Arrays.copyOf(extentOffsets, extentsCount * 2);
+			extentLengths = Arrays.copyOf(extentLengths, extentsCount * 2);
+		}
+
+		System.arraycopy(extentOffsets, index, extentOffsets, index + 1, extentsCount - index);
+		System.arraycopy(extentLengths, index, extentLengths, index + 1, extentsCount - index);
+
+		extentOffsets[index] = offset;
+		extentLengths[index] = length;
+		extentsCount++;
+	}
+
+	private void removeExtent(int index) {
+		extentsCount--;
+
+		System.arraycopy(extentOffsets, index + 1, extentOffsets, index, extentsCount - index);
+		System.arraycopy(extentLengths, index + 1, extentLengths, index, extentsCount - index);
+	}
+
+	private int newHandle() {
+		if (freeCount > 0) return freeHandles[--freeCount];
+
+		if (handlesCount == lengths.length) {
+			int capacity = handlesCount * 2;
+
+			pages = Arrays.copyOf(pages, capacity);
+			offsets = Arrays.copyOf(offsets, capacity);
+			lengths = Arrays.copyOf(lengths, capacity);
+		}
+
+		return handlesCount++;
+	}
+}
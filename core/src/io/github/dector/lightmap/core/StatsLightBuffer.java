@@ -0,0 +1,106 @@
+package io.github.dector.lightmap.core;
+
+/**
+ * Counts stamps of other buffer into {@link LightMapStats}.
+ *
+ * @author dector
+ */
+class StatsLightBuffer extends LightBuffer {
+
+	private final LightBuffer buffer;
+	final LightMapStats stats;
+
+	StatsLightBuffer(LightBuffer buffer, LightMapStats stats) {
+		super(buffer.width, buffer.height);
+
+		this.buffer = buffer;
+		this.stats = stats;
+	}
+
+	LightBuffer unwrap() {
+		return buffer;
+	}
+
+	@Override
+	void clear() {
+		buffer.clear();
+	}
+
+	@Override
+	void stamp(int x, int y, Light light) {
+		buffer.stamp(x, y, light);
+		stats.stamped(x, y, light);
+	}
+
+	@Override
+	void stamp(int x, int y, Light light, int count) {
+		buffer.stamp(x, y, light, count);
+		stats.stamped(x, y, light);
+	}
+
+	@Override
+	void unstamp(int x, int y, Light light) {
+		buffer.unstamp(x, y, light);
+		stats.stamped(x, y, light);
+	}
+
+	@Override
+	void opacityChanged(int x, int y) {
+		buffer.opacityChanged(x, y);
+	}
+
+	@Override
+	void clip(int fromX, int fromY, int toX, int toY) {
+		buffer.clip(fromX, fromY, toX, toY);
+	}
+
+	@Override
+	void unclip() {
+		buffer.unclip();
+	}
+
+	@Override
+	void setMaxError(float maxError) {
+		buffer.setMaxError(maxError);
+	}
+
+	@Override
+	void read(int fromX, int fromY, int toX, int toY, float[] out) {
+		buffer.read(fromX, fromY, toX, toY, out);
+	}
+
+	@Override
+	void readColors(int fromX, int fromY, int toX, int toY, int[] out) {
+		buffer.readColors(fromX, fromY, toX, toY, out);
+	}
+
+	@Override
+	long getMemoryUsage() {
+		return buffer.getMemoryUsage();
+	}
+
+	@Override
+	void setTick(int tick) {
+		buffer.setTick(tick);
+	}
+
+	@Override
+	int getColumnLastUse(int x) {
+		return buffer.getColumnLastUse(x);
+	}
+
+	@Override
+	long spillColumn(int x, SpillStore store) {
+		return buffer.spillColumn(x, store);
+	}
+
+	@Override
+	int getSpilledColumnsCount() {
+		return buffer.getSpilledColumnsCount();
+	}
+
+	@Override
+	void restoreColumns() {
+		buffer.restoreColumns();
+	}
+}
@@ -0,0 +1,18 @@
+package io.github.dector.lightmap.core;
+
+/**
+ * Parts of {@link LightMap#step()}, timed by {@link LightMapStats}.
+ *
+ * @author dector
+ */
+public enum StepPhase {
+
+	/** Applying queued {@link LightEdits} */
+	EDITS,
+
+	/** Stamping lights of dirty layers */
+	RECOUNT,
+
+	/** Blending layers of changed chunks */
+	COMBINE
+}
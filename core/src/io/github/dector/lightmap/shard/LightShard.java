@@ -0,0 +1,422 @@
+package io.github.dector.lightmap.shard;
+
+import io.github.dector.lightmap.core.BlendMode;
+import io.github.dector.lightmap.core.Light;
+import io.github.dector.lightmap.core.LightEngine;
+import io.github.dector.lightmap.core.LightLayer;
+import io.github.dector.lightmap.core.LightMap;
+import io.github.dector.lightmap.core.Position;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * One rectangle of big world (see {@link ShardLayout}), counted by its own {@link LightMap}.
+ * Shards may live in different processes and talk via {@link ShardTransport}.
+ *
+ * Local map is bigger than shard by halo of max light radius on each side.
+ * When light is placed near shard border, it's sent to neighbours,
+ * which stamp it into their halo. So each shard has every light, which reaches its tiles,
+ * and {@link #step()} doesn't need anything else from other shards.
+ *
+ * Lights can be added only by shard, which owns their tile (all coordinates are world ones).
+ * Dynamic light should stay inside its shard: remove it and add to neighbour when it crosses the border.
+ * Changes reach neighbours at their next step.
+ *
+ * @author dector
+ */
+public class LightShard {
+
+	public static final String HALO_LAYER = "halo";
+
+	private static final byte STATIC_ADD = 1;
+	private static final byte STATIC_REMOVE = 2;
+	private static final byte DYNAMIC_SET = 3;
+	private static final byte DYNAMIC_REMOVE = 4;
+
+	private final ShardLayout layout;
+	private final int shard;
+	private final int halo;
+	private final ShardTransport transport;
+
+	private final int fromX;
+	private final int fromY;
+	private final int width;
+	private final int height;
+
+	private final LightMap map;
+	private final LightLayer haloLayer;
+
+	private final Map<Integer, Light> ownDynamicLights = new HashMap<Integer, Light>();
+	/** Local ids of neighbours' dynamic lights by owner shard and its id */
+	private final Map<Long, Integer> remoteDynamicLights = new HashMap<Long, Integer>();
+
+	private final ByteArrayOutputStream[] outgoing;
+	private final DataOutputStream[] outgoingData;
+
+	private final Position tmpPos = new Position();
+	private int[] neighbours = new int[8];
+
+	/**
+	 * @param halo max radius of lights
+	 */
+	public LightShard(ShardLayout layout, int shard, int halo, LightEngine engine, ShardTransport transport) {
+		if (shard < 0 || shard >= layout.getShardsCount())
+			throw new IllegalArgumentException("No shard " + shard + " in layout");
+		if (halo < 0)
+			throw new IllegalArgumentException("Halo should not be negative");
+
+		this.layout = layout;
+		this.shard = shard;
+		this.halo = halo;
+		this.transport = transport;
+
+		fromX = layout.getFromX(shard);
+		fromY = layout.getFromY(shard);
+		width = layout.getWidth(shard);
+		height = layout.getHeight(shard);
+
+		map = new LightMap(width + 2 * halo, height + 2 * halo, engine);
+		haloLayer = map.addLayer(HALO_LAYER, BlendMode.ADD);
+
+		outgoing = new ByteArrayOutputStream[layout.getShardsCount()];
+		outgoingData = new DataOutputStream[layout.getShardsCount()];
+	}
+
+	public int getShard() {
+		return shard;
+	}
+
+	/**
+	 * Local map. Tile <code>x:y</code> of world is <code>(x - fromX + halo):(y - fromY + halo)</code> here.
+	 */
+	public LightMap getMap() {
+		return map;
+	}
+
+	public boolean owns(int x, int y) {
+		return fromX <= x && x < fromX + width && fromY <= y && y < fromY + height;
+	}
+
+	public float getLightValueAt(int x, int y) {
+		checkOwned(x, y);
+
+		return map.getLightValueAt(localX(x), localY(y));
+	}
+
+	// Static lights
+
+	public void addStaticLight(Light light, int x, int y) {
+		checkOwned(x, y);
+		checkRadius(light);
+
+		if (map.hasStaticLightAt(localX(x), localY(y))) {
+			sendStatic(STATIC_REMOVE, x, y, map.getStaticLightAt(localX(x), localY(y)));
+		}
+
+		map.addStaticLight(light, localX(x), localY(y));
+		sendStatic(STATIC_ADD, x, y, light);
+	}
+
+	public void removeStaticLightAt(int x, int y) {
+		checkOwned(x, y);
+
+		Light light = map.getStaticLightAt(localX(x), localY(y));
+
+		if (light == null) return;
+
+		map.removeStaticLightAt(localX(x), localY(y));
+		sendStatic(STATIC_REMOVE, x, y, light);
+	}
+
+	// Dynamic lights
+
+	public int addDynamicLight(Light light, int x, int y) {
+		checkOwned(x, y);
+		checkRadius(light);
+
+		int id = map.addDynamicLight(light, localX(x), localY(y));
+		ownDynamicLights.put(id, light);
+
+		sendDynamic(id, light, Integer.MIN_VALUE, Integer.MIN_VALUE, x, y);
+
+		return id;
+	}
+
+	public void setDynamicLightTo(int id, int x, int y) {
+		Light light = ownDynamicLights.get(id);
+
+		if (light == null) return;
+
+		checkOwned(x, y);
+
+		map.getDynamicLightPosition(id, tmpPos);
+		int oldX = tmpPos.x - halo + fromX;
+		int oldY = tmpPos.y - halo + fromY;
+
+		if (oldX == x && oldY == y) return;
+
+		map.setDynamicLightTo(id, localX(x), localY(y));
+		sendDynamic(id, light, oldX, oldY, x, y);
+	}
+
+	public void setDynamicLightDirection(int id, float direction) {
+		Light light = ownDynamicLights.get(id);
+
+		if (light == null) return;
+
+		Light rotated = light.rotatedTo(direction);
+
+		if (rotated == light) return;
+
+		map.setDynamicLightDirection(id, direction);
+		ownDynamicLights.put(id, rotated);
+
+		map.getDynamicLightPosition(id, tmpPos);
+		int x = tmpPos.x - halo + fromX;
+		int y = tmpPos.y - halo + fromY;
+
+		sendDynamic(id, rotated, Integer.MIN_VALUE, Integer.MIN_VALUE, x, y);
+	}
+
+	public void removeDynamicLight(int id) {
+		Light light = ownDynamicLights.remove(id);
+
+		if (light == null) return;
+
+		map.getDynamicLightPosition(id, tmpPos);
+		int oldX = tmpPos.x - halo + fromX;
+		int oldY = tmpPos.y - halo + fromY;
+
+		map.removeDynamicLight(id);
+		sendDynamic(id, light, oldX, oldY, Integer.MIN_VALUE, Integer.MIN_VALUE);
+	}
+
+	// Update
+
+	/**
+	 * Sends own changes to neighbours, applies theirs and steps local map.
+	 */
+	public void step() {
+		flush();
+		receive();
+
+		map.step();
+	}
+
+	/**
+	 * Sends changes made since previous call to neighbours.
+	 */
+	public void flush() {
+		for (int s = 0; s < outgoing.length; s++) {
+			if (outgoing[s] == null || outgoing[s].size() == 0) continue;
+
+			transport.send(s, outgoing[s].toByteArray());
+			outgoing[s].reset();
+		}
+	}
+
+	/**
+	 * Applies all changes received from neighbours.
+	 */
+	public void receive() {
+		byte[] message;
+
+		while ((message = transport.poll(shard)) != null) {
+			try {
+				apply(new DataInputStream(new ByteArrayInputStream(message)));
+			} catch (IOException e) {
+				throw new IllegalStateException("Broken halo message", e);
+			}
+		}
+	}
+
+	private void apply(DataInputStream in) throws IOException {
+		while (in.available() > 0) {
+			byte type = in.readByte();
+
+			switch (type) {
+				case STATIC_ADD: {
+					int x = in.readInt();
+					int y = in.readInt();
+					map.addLight(haloLayer, readLight(in), localX(x), localY(y));
+				} break;
+				case STATIC_REMOVE: {
+					int x = in.readInt();
+					int y = in.readInt();
+					map.removeLight(haloLayer, localX(x), localY(y));
+				} break;
+				case DYNAMIC_SET: {
+					long key = in.readLong();
+					int x = in.readInt();
+					int y = in.readInt();
+					Light light = readLight(in);
+					Integer id = remoteDynamicLights.get(key);
+
+					if (id != null) {
+						map.setDynamicLightTo(id, localX(x), localY(y));
+						map.setDynamicLightDirection(id, light.getDirection());
+					} else {
+						remoteDynamicLights.put(key, map.addDynamicLight(light, localX(x), localY(y)));
+					}
+				} break;
+				case DYNAMIC_REMOVE: {
+					Integer id = remoteDynamicLights.remove(in.readLong());
+
+					if (id != null) {
+						map.removeDynamicLight(id);
+					}
+				} break;
+				default:
+					throw new IOException("Unknown halo message type " + type);
+			}
+		}
+	}
+
+	private void sendStatic(byte type, int x, int y, Light light) {
+		int r = light.outerRadius;
+
+		int count = findNeighbours(x, y, r);
+
+		for (int i = 0; i < count; i++) {
+			try {
+				DataOutputStream out = outgoing(neighbours[i]);
+				out.writeByte(type);
+				out.writeInt(x);
+				out.writeInt(y);
+
+				if (type == STATIC_ADD) {
+					writeLight(out, light);
+				}
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+	/**
+	 * Sends new position to neighbours, which light reaches now,
+	 * and removal to ones, which it doesn't reach anymore.
+	 * Missing position is {@link Integer#MIN_VALUE}.
+	 */
+	private void sendDynamic(int id, Light light, int oldX, int oldY, int x, int y) {
+		long key = ((long) shard << 32) | (id & 0xFFFFFFFFL);
+		int r = light.outerRadius;
+
+		try {
+			if (x != Integer.MIN_VALUE) {
+				int count = findNeighbours(x, y, r);
+
+				for (int i = 0; i < count; i++) {
+					DataOutputStream out = outgoing(neighbours[i]);
+					out.writeByte(DYNAMIC_SET);
+					out.writeLong(key);
+					out.writeInt(x);
+					out.writeInt(y);
+					writeLight(out, light);
+				}
+			}
+
+			if (oldX != Integer.MIN_VALUE) {
+				int count = findNeighbours(oldX, oldY, r);
+
+				for (int i = 0; i < count; i++) {
+					if (x != Integer.MIN_VALUE && reaches(neighbours[i], x, y, r)) continue;
+
+					DataOutputStream out = outgoing(neighbours[i]);
+					out.writeByte(DYNAMIC_REMOVE);
+					out.writeLong(key);
+				}
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void writeLight(DataOutputStream out, Light light) throws IOException {
+		out.writeInt(light.innerRadius);
+		out.writeInt(light.outerRadius);
+		out.writeInt(light.color);
+		out.writeFloat(light.coneAngle);
+		out.writeFloat(light.getDirection());
+	}
+
+	private static Light readLight(DataInputStream in) throws IOException {
+		int inner = in.readInt();
+		int outer = in.readInt();
+		int color = in.readInt();
+		float coneAngle = in.readFloat();
+		float direction = in.readFloat();
+
+		return new Light(inner, outer, color, coneAngle, direction);
+	}
+
+	private DataOutputStream outgoing(int s) {
+		if (outgoing[s] == null) {
+			outgoing[s] = new ByteArrayOutputStream();
+			outgoingData[s] = new DataOutputStream(outgoing[s]);
+		}
+
+		return outgoingData[s];
+	}
+
+	/**
+	 * Stores other shards, which light square reaches, into {@link #neighbours}.
+	 */
+	private int findNeighbours(int x, int y, int r) {
+		int col0 = Math.max(x - r, 0) / layout.getShardWidth();
+		int col1 = Math.min(x + r, layout.getWorldWidth() - 1) / layout.getShardWidth();
+		int row0 = Math.max(y - r, 0) / layout.getShardHeight();
+		int row1 = Math.min(y + r, layout.getWorldHeight() - 1) / layout.getShardHeight();
+
+		int size = (col1 - col0 + 1) * (row1 - row0 + 1);
+		if (size > neighbours.length) {
+			neighbours = new int[size];
+		}
+
+		int count = 0;
+
+		for (int row = row0; row <= row1; row++) {
+			for (int col = col0; col <= col1; col++) {
+				int s = row * layout.getColumns() + col;
+
+				if (s != shard) {
+					neighbours[count++] = s;
+				}
+			}
+		}
+
+		return count;
+	}
+
+	private boolean reaches(int s, int x, int y, int r) {
+		int sx = layout.getFromX(s);
+		int sy = layout.getFromY(s);
+
+		return x + r >= sx && x - r < sx + layout.getWidth(s)
+				&& y + r >= sy && y - r < sy + layout.getHeight(s);
+	}
+
+	private void checkOwned(int x, int y) {
+		if (! owns(x, y))
+			throw new IllegalArgumentException("Tile " + x + ":" + y + " belongs to shard " + layout.getShardAt(x, y));
+	}
+
+	private void checkRadius(Light light) {
+		if (light.outerRadius > halo)
+			throw new IllegalArgumentException("Light radius " + light.outerRadius + " is bigger than halo " + halo);
+	}
+
+	private int localX(int x) {
+		return x - fromX + halo;
+	}
+
+	private int localY(int y) {
+		return y - fromY + halo;
+	}
+}
@@ -0,0 +1,35 @@
+package io.github.dector.lightmap.shard;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * In-memory transport for shards living in one process (and for tests).
+ * Thread-safe, so shards can be stepped in parallel.
+ *
+ * @author dector
+ */
+public class LoopbackTransport implements ShardTransport {
+
+	private final List<Queue<byte[]>> inboxes;
+
+	public LoopbackTransport(int shardsCount) {
+		inboxes = new ArrayList<Queue<byte[]>>(shardsCount);
+
+		for (int i = 0; i < shardsCount; i++) {
+			inboxes.add(new ConcurrentLinkedQueue<byte[]>());
+		}
+	}
+
+	@Override
+	public void send(int toShard, byte[] message) {
+		inboxes.get(toShard).add(message);
+	}
+
+	@Override
+	public byte[] poll(int shard) {
+		return inboxes.get(shard).poll();
+	}
+}
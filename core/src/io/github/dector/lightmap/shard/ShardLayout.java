@@ -0,0 +1,82 @@
+package io.github.dector.lightmap.shard;
+
+/**
+ * Splits world into grid of equal rectangles (the last row and column may be smaller).
+ * Shards are numbered row by row.
+ *
+ * All shards should use the same layout.
+ *
+ * @author dector
+ */
+public class ShardLayout {
+
+	private final int worldWidth;
+	private final int worldHeight;
+	private final int shardWidth;
+	private final int shardHeight;
+
+	private final int columns;
+	private final int rows;
+
+	public ShardLayout(int worldWidth, int worldHeight, int shardWidth, int shardHeight) {
+		if (worldWidth <= 0 || worldHeight <= 0 || shardWidth <= 0 || shardHeight <= 0)
+			throw new IllegalArgumentException("Sizes should be positive");
+
+		this.worldWidth = worldWidth;
+		this.worldHeight = worldHeight;
+		this.shardWidth = shardWidth;
+		this.shardHeight = shardHeight;
+
+		columns = (worldWidth + shardWidth - 1) / shardWidth;
+		rows = (worldHeight + shardHeight - 1) / shardHeight;
+	}
+
+	public int getWorldWidth() {
+		return worldWidth;
+	}
+
+	public int getWorldHeight() {
+		return worldHeight;
+	}
+
+	public int getShardsCount() {
+		return columns * rows;
+	}
+
+	/**
+	 * @return shard, which owns tile, or <code>-1</code> if tile is out of world
+	 */
+	public int getShardAt(int x, int y) {
+		if (x < 0 || x >= worldWidth || y < 0 || y >= worldHeight) return -1;
+
+		return (y / shardHeight) * columns + x / shardWidth;
+	}
+
+	public int getFromX(int shard) {
+		return (shard % columns) * shardWidth;
+	}
+
+	public int getFromY(int shard) {
+		return (shard / columns) * shardHeight;
+	}
+
+	public int getWidth(int shard) {
+		return Math.min(shardWidth, worldWidth - getFromX(shard));
+	}
+
+	public int getHeight(int shard) {
+		return Math.min(shardHeight, worldHeight - getFromY(shard));
+	}
+
+	int getColumns() {
+		return columns;
+	}
+
+	int getShardWidth() {
+		return shardWidth;
+	}
+
+	int getShardHeight() {
+		return shardHeight;
+	}
+}
@@ -0,0 +1,17 @@
+package io.github.dector.lightmap.shard;
+
+/**
+ * Delivers halo messages between {@link LightShard}s, which may live in different processes.
+ * Implementation should keep order of messages sent from one shard to another.
+ *
+ * @author dector
+ */
+public interface ShardTransport {
+
+	void send(int toShard, byte[] message);
+
+	/**
+	 * @return next message received by shard or <code>null</code> if there are no more
+	 */
+	byte[] poll(int shard);
+}
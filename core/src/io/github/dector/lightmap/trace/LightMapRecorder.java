@@ -0,0 +1,405 @@
+package io.github.dector.lightmap.trace;
+
+import io.github.dector.lightmap.core.BlendMode;
+import io.github.dector.lightmap.core.Light;
+import io.github.dector.lightmap.core.LightLayer;
+import io.github.dector.lightmap.core.LightMap;
+import io.github.dector.lightmap.core.LightVisitor;
+import io.github.dector.lightmap.core.Position;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Changes and steps {@link LightMap} like its own methods do, and writes them to trace
+ * while recording is on. Replay trace with {@link TraceReplayer}.
+ *
+ * Recording can start at any moment: current map state is written first.
+ * Engine settings (max light error, static lights LOD, background rebuild) are not recorded,
+ * they are chosen on replay. Changes made directly to map or with its {@link io.github.dector.lightmap.core.LightEdits}
+ * are not recorded too.
+ *
+ * @author dector
+ */
+public class LightMapRecorder {
+
+	private final LightMap map;
+
+	private DataOutputStream out;
+	private long lastRecordTime;
+
+	private final Position tmpPos = new Position();
+
+	public LightMapRecorder(LightMap map) {
+		this.map = map;
+	}
+
+	public LightMap getMap() {
+		return map;
+	}
+
+	public boolean isRecording() {
+		return out != null;
+	}
+
+	/**
+	 * Writes current map state and starts recording.
+	 */
+	public void start(OutputStream stream) {
+		if (out != null) throw new IllegalStateException("Already recording");
+
+		out = new DataOutputStream(new BufferedOutputStream(stream));
+		lastRecordTime = System.nanoTime();
+
+		try {
+			out.writeInt(TraceFormat.MAGIC);
+			TraceFormat.writeInt(out, TraceFormat.VERSION);
+			TraceFormat.writeInt(out, map.getWidth());
+			TraceFormat.writeInt(out, map.getHeight());
+			out.writeUTF(map.getEngine().name());
+			out.writeBoolean(map.isColored());
+
+			writeState();
+		} catch (IOException e) {
+			throw new IllegalStateException("Trace writing failed", e);
+		}
+	}
+
+	/**
+	 * Stops recording and closes stream.
+	 */
+	public void stop() {
+		if (out == null) return;
+
+		try {
+			out.close();
+		} catch (IOException e) {
+			throw new IllegalStateException("Trace writing failed", e);
+		} finally {
+			out = null;
+		}
+	}
+
+	private void writeState() throws IOException {
+		// Static and dynamic layers are created by map itself
+		for (int i = 2; i < map.getLayersCount(); i++) {
+			LightLayer layer = map.getLayer(i);
+
+			if (layer.isAmbient()) {
+				record(TraceFormat.ADD_AMBIENT_LAYER);
+				out.writeUTF(layer.getName());
+				TraceFormat.writeInt(out, layer.getBlendMode().ordinal());
+				out.writeFloat(layer.getAmbientValue());
+			} else {
+				record(TraceFormat.ADD_LAYER);
+				out.writeUTF(layer.getName());
+				TraceFormat.writeInt(out, layer.getBlendMode().ordinal());
+			}
+		}
+
+		for (int x = 0; x < map.getWidth(); x++) {
+			for (int y = 0; y < map.getHeight(); y++) {
+				if (map.isOpaque(x, y)) {
+					recordOpaque(x, y, true);
+				}
+			}
+		}
+
+		for (int i = 0; i < map.getLayersCount(); i++) {
+			final LightLayer layer = map.getLayer(i);
+
+			if (layer.isAmbient()) continue;
+
+			map.forEachLight(layer, new LightVisitor() {
+				@Override
+				public void visit(int x, int y, Light light) {
+					recordAddLight(layer, light, x, y);
+				}
+			});
+		}
+
+		for (int id = 0; id < map.getDynamicLightIdsBound(); id++) {
+			Light light = map.getDynamicLight(id);
+
+			if (light == null) continue;
+
+			map.getDynamicLightPosition(id, tmpPos);
+
+			record(TraceFormat.ADD_DYNAMIC);
+			TraceFormat.writeInt(out, id);
+			TraceFormat.writeLight(out, light);
+			TraceFormat.writeInt(out, tmpPos.x);
+			TraceFormat.writeInt(out, tmpPos.y);
+		}
+	}
+
+	// Layers
+
+	public LightLayer addLayer(String name, BlendMode blendMode) {
+		LightLayer layer = map.addLayer(name, blendMode);
+
+		if (out != null) {
+			try {
+				record(TraceFormat.ADD_LAYER);
+				out.writeUTF(name);
+				TraceFormat.writeInt(out, blendMode.ordinal());
+			} catch (IOException e) {
+				throw new IllegalStateException("Trace writing failed", e);
+			}
+		}
+
+		return layer;
+	}
+
+	public LightLayer addAmbientLayer(String name, BlendMode blendMode, float value) {
+		LightLayer layer = map.addAmbientLayer(name, blendMode, value);
+
+		if (out != null) {
+			try {
+				record(TraceFormat.ADD_AMBIENT_LAYER);
+				out.writeUTF(name);
+				TraceFormat.writeInt(out, blendMode.ordinal());
+				out.writeFloat(value);
+			} catch (IOException e) {
+				throw new IllegalStateException("Trace writing failed", e);
+			}
+		}
+
+		return layer;
+	}
+
+	public void setAmbientValue(LightLayer layer, float value) {
+		map.setAmbientValue(layer, value);
+
+		if (out != null) {
+			try {
+				record(TraceFormat.SET_AMBIENT);
+				TraceFormat.writeInt(out, indexOf(layer));
+				out.writeFloat(value);
+			} catch (IOException e) {
+				throw new IllegalStateException("Trace writing failed", e);
+			}
+		}
+	}
+
+	public void addLight(LightLayer layer, Light light, int x, int y) {
+		map.addLight(layer, light, x, y);
+
+		if (out != null) {
+			recordAddLight(layer, light, x, y);
+		}
+	}
+
+	public Light removeLight(LightLayer layer, int x, int y) {
+		Light light = map.removeLight(layer, x, y);
+
+		if (out != null) {
+			try {
+				record(TraceFormat.REMOVE_LIGHT);
+				TraceFormat.writeInt(out, indexOf(layer));
+				TraceFormat.writeInt(out, x);
+				TraceFormat.writeInt(out, y);
+			} catch (IOException e) {
+				throw new IllegalStateException("Trace writing failed", e);
+			}
+		}
+
+		return light;
+	}
+
+	public void addLights(LightLayer layer, int[] xs, int[] ys, Light[] lights, int count) {
+		map.addLights(layer, xs, ys, lights, count);
+
+		if (out != null) {
+			try {
+				record(TraceFormat.ADD_LIGHTS);
+				TraceFormat.writeInt(out, indexOf(layer));
+				TraceFormat.writeInt(out, count);
+
+				for (int i = 0; i < count; i++) {
+					TraceFormat.writeInt(out, xs[i]);
+					TraceFormat.writeInt(out, ys[i]);
+					TraceFormat.writeLight(out, lights[i]);
+				}
+			} catch (IOException e) {
+				throw new IllegalStateException("Trace writing failed", e);
+			}
+		}
+	}
+
+	// Static lights
+
+	public void addStaticLight(Light light, int x, int y) {
+		addLight(map.getStaticLayer(), light, x, y);
+	}
+
+	public void addStaticLights(int[] xs, int[] ys, Light[] lights, int count) {
+		addLights(map.getStaticLayer(), xs, ys, lights, count);
+	}
+
+	public void removeStaticLightAt(int x, int y) {
+		removeLight(map.getStaticLayer(), x, y);
+	}
+
+	public void changeStaticLightAt(int x, int y, int innerRadius, int outerRadius) {
+		addStaticLight(new Light(innerRadius, outerRadius), x, y);
+	}
+
+	// Dynamic lights
+
+	public int addDynamicLight(Light light, int x, int y) {
+		int id = map.addDynamicLight(light, x, y);
+
+		if (out != null) {
+			try {
+				record(TraceFormat.ADD_DYNAMIC);
+				TraceFormat.writeInt(out, id);
+				TraceFormat.writeLight(out, light);
+				TraceFormat.writeInt(out, x);
+				TraceFormat.writeInt(out, y);
+			} catch (IOException e) {
+				throw new IllegalStateException("Trace writing failed", e);
+			}
+		}
+
+		return id;
+	}
+
+	public void removeDynamicLight(int id) {
+		map.removeDynamicLight(id);
+
+		if (out != null) {
+			try {
+				record(TraceFormat.REMOVE_DYNAMIC);
+				TraceFormat.writeInt(out, id);
+			} catch (IOException e) {
+				throw new IllegalStateException("Trace writing failed", e);
+			}
+		}
+	}
+
+	public void setDynamicLightTo(int id, int x, int y) {
+		map.setDynamicLightTo(id, x, y);
+
+		if (out != null) {
+			try {
+				record(TraceFormat.SET_DYNAMIC);
+				TraceFormat.writeInt(out, id);
+				TraceFormat.writeInt(out, x);
+				TraceFormat.writeInt(out, y);
+			} catch (IOException e) {
+				throw new IllegalStateException("Trace writing failed", e);
+			}
+		}
+	}
+
+	public void moveDynamicLight(int id, int dx, int dy) {
+		map.moveDynamicLight(id, dx, dy);
+
+		if (out != null) {
+			try {
+				record(TraceFormat.MOVE_DYNAMIC);
+				TraceFormat.writeInt(out, id);
+				TraceFormat.writeInt(out, dx);
+				TraceFormat.writeInt(out, dy);
+			} catch (IOException e) {
+				throw new IllegalStateException("Trace writing failed", e);
+			}
+		}
+	}
+
+	public void setDynamicLightDirection(int id, float direction) {
+		map.setDynamicLightDirection(id, direction);
+
+		if (out != null) {
+			try {
+				record(TraceFormat.DYNAMIC_DIRECTION);
+				TraceFormat.writeInt(out, id);
+				out.writeFloat(direction);
+			} catch (IOException e) {
+				throw new IllegalStateException("Trace writing failed", e);
+			}
+		}
+	}
+
+	// Walls
+
+	public void setOpaque(int x, int y, boolean opaque) {
+		map.setOpaque(x, y, opaque);
+
+		if (out != null) {
+			recordOpaque(x, y, opaque);
+		}
+	}
+
+	// Update
+
+	public void step() {
+		map.step();
+
+		if (out != null) {
+			recordStep(TraceFormat.UNLIMITED_BUDGET);
+		}
+	}
+
+	public boolean step(long nanosBudget) {
+		boolean converged = map.step(nanosBudget);
+
+		if (out != null) {
+			recordStep(nanosBudget);
+		}
+
+		return converged;
+	}
+
+	private void recordStep(long budget) {
+		try {
+			record(TraceFormat.STEP);
+			TraceFormat.writeLong(out, budget);
+		} catch (IOException e) {
+			throw new IllegalStateException("Trace writing failed", e);
+		}
+	}
+
+	private void recordAddLight(LightLayer layer, Light light, int x, int y) {
+		try {
+			record(TraceFormat.ADD_LIGHT);
+			TraceFormat.writeInt(out, indexOf(layer));
+			TraceFormat.writeLight(out, light);
+			TraceFormat.writeInt(out, x);
+			TraceFormat.writeInt(out, y);
+		} catch (IOException e) {
+			throw new IllegalStateException("Trace writing failed", e);
+		}
+	}
+
+	private void recordOpaque(int x, int y, boolean opaque) {
+		try {
+			record(TraceFormat.SET_OPAQUE);
+			TraceFormat.writeInt(out, x);
+			TraceFormat.writeInt(out, y);
+			out.writeBoolean(opaque);
+		} catch (IOException e) {
+			throw new IllegalStateException("Trace writing failed", e);
+		}
+	}
+
+	private void record(int type) throws IOException {
+		long time = System.nanoTime();
+
+		out.writeByte(type);
+		TraceFormat.writeLong(out, time - lastRecordTime);
+
+		lastRecordTime = time;
+	}
+
+	private int indexOf(LightLayer layer) {
+		for (int i = 0; i < map.getLayersCount(); i++) {
+			if (map.getLayer(i) == layer) return i;
+		}
+
+		throw new IllegalArgumentException("Layer " + layer.getName() + " is not in this map");
+	}
+}
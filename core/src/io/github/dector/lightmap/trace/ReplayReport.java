@@ -0,0 +1,86 @@
+package io.github.dector.lightmap.trace;
+
+import java.util.Arrays;
+
+/**
+ * Latencies of {@link io.github.dector.lightmap.core.LightMap#step()} calls, measured by {@link TraceReplayer}.
+ *
+ * @author dector
+ */
+public class ReplayReport {
+
+	private final String configuration;
+
+	/** Sorted, nanoseconds */
+	private final long[] stepTimes;
+	private final long totalTime;
+	private final int recordsCount;
+
+	ReplayReport(String configuration, long[] stepTimes, int stepsCount, int recordsCount) {
+		this.configuration = configuration;
+		this.stepTimes = Arrays.copyOf(stepTimes, stepsCount);
+		this.recordsCount = recordsCount;
+
+		Arrays.sort(this.stepTimes);
+
+		long total = 0;
+		for (long time : this.stepTimes) {
+			total += time;
+		}
+
+		totalTime = total;
+	}
+
+	public int getStepsCount() {
+		return stepTimes.length;
+	}
+
+	/**
+	 * @return number of replayed records, including steps
+	 */
+	public int getRecordsCount() {
+		return recordsCount;
+	}
+
+	/**
+	 * @return nanoseconds
+	 */
+	public long getTotalStepTime() {
+		return totalTime;
+	}
+
+	/**
+	 * @return nanoseconds
+	 */
+	public long getMeanStepTime() {
+		return (stepTimes.length > 0) ? totalTime / stepTimes.length : 0;
+	}
+
+	/**
+	 * @param percentile from 0 to 100
+	 * @return nanoseconds (nearest-rank)
+	 */
+	public long getStepTime(double percentile) {
+		if (percentile < 0 || percentile > 100)
+			throw new IllegalArgumentException("Percentile should be from 0 to 100: " + percentile);
+
+		if (stepTimes.length == 0) return 0;
+
+		int rank = (int) Math.ceil(percentile / 100 * stepTimes.length);
+
+		return stepTimes[Math.max(rank - 1, 0)];
+	}
+
+	public long getMaxStepTime() {
+		return getStepTime(100);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s: %d steps, total %.1f ms, mean %.3f ms, p50 %.3f ms, p90 %.3f ms, " +
+						"p99 %.3f ms, p99.9 %.3f ms, max %.3f ms",
+				configuration, getStepsCount(), totalTime / 1e6, getMeanStepTime() / 1e6,
+				getStepTime(50) / 1e6, getStepTime(90) / 1e6, getStepTime(99) / 1e6,
+				getStepTime(99.9) / 1e6, getMaxStepTime() / 1e6);
+	}
+}
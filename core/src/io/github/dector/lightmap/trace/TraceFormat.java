@@ -0,0 +1,101 @@
+package io.github.dector.lightmap.trace;
+
+import io.github.dector.lightmap.core.Light;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Binary trace of {@link io.github.dector.lightmap.core.LightMap} workload.
+ *
+ * Header: magic, version, map width and height, engine name, colored flag.
+ * Then records: type byte, nanoseconds since previous record and arguments.
+ * Numbers are written as variable-length zigzag integers, so small values take one byte.
+ *
+ * @author dector
+ */
+final class TraceFormat {
+
+	static final int MAGIC = 0x4C4D5452;
+	static final int VERSION = 1;
+
+	static final int ADD_LAYER = 1;
+	static final int ADD_AMBIENT_LAYER = 2;
+	static final int SET_AMBIENT = 3;
+	static final int ADD_LIGHT = 4;
+	static final int REMOVE_LIGHT = 5;
+	static final int ADD_LIGHTS = 6;
+	static final int ADD_DYNAMIC = 7;
+	static final int REMOVE_DYNAMIC = 8;
+	static final int SET_DYNAMIC = 9;
+	static final int MOVE_DYNAMIC = 10;
+	static final int DYNAMIC_DIRECTION = 11;
+	static final int SET_OPAQUE = 12;
+	static final int STEP = 13;
+
+	/** Budget of {@link io.github.dector.lightmap.core.LightMap#step()} */
+	static final long UNLIMITED_BUDGET = -1;
+
+	private TraceFormat() {}
+
+	static void writeInt(DataOutput out, int value) throws IOException {
+		writeLong(out, value);
+	}
+
+	static int readInt(DataInput in) throws IOException {
+		return (int) readLong(in);
+	}
+
+	static void writeLong(DataOutput out, long value) throws IOException {
+		long v = (value << 1) ^ (value >> 63);
+
+		while ((v & ~0x7FL) != 0) {
+			out.writeByte((int) (v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+
+		out.writeByte((int) v);
+	}
+
+	static long readLong(DataInput in) throws IOException {
+		long v = 0;
+
+		for (int shift = 0; ; shift += 7) {
+			if (shift > 63) throw new IOException("Malformed number");
+
+			int b = in.readUnsignedByte();
+			v |= (long) (b & 0x7F) << shift;
+
+			if ((b & 0x80) == 0) break;
+		}
+
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	static void writeLight(DataOutput out, Light light) throws IOException {
+		writeInt(out, light.innerRadius);
+		writeInt(out, light.outerRadius);
+		writeInt(out, light.color);
+
+		out.writeBoolean(light.isSpot());
+
+		if (light.isSpot()) {
+			out.writeFloat(light.coneAngle);
+			writeInt(out, light.direction);
+		}
+	}
+
+	static Light readLight(DataInput in) throws IOException {
+		int inner = readInt(in);
+		int outer = readInt(in);
+		int color = readInt(in);
+
+		if (! in.readBoolean()) return new Light(inner, outer, color);
+
+		float coneAngle = in.readFloat();
+		int direction = readInt(in);
+
+		return new Light(inner, outer, color, coneAngle, direction * Light.FULL_CIRCLE / Light.DIRECTIONS);
+	}
+}
@@ -0,0 +1,317 @@
+package io.github.dector.lightmap.trace;
+
+import io.github.dector.lightmap.core.BlendMode;
+import io.github.dector.lightmap.core.Light;
+import io.github.dector.lightmap.core.LightEngine;
+import io.github.dector.lightmap.core.LightMap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Replays trace written by {@link LightMapRecorder} against new map and measures each step.
+ * Engine and its settings may differ from recorded ones, so the same workload
+ * can be compared on different configurations.
+ *
+ * Trace is replayed as fast as possible, unless {@link #realtime(boolean)} is on.
+ *
+ * Run from command line: <code>TraceReplayer trace-file [engine] [max light error]</code>.
+ *
+ * @author dector
+ */
+public class TraceReplayer {
+
+	/** <code>null</code> for recorded one */
+	private LightEngine engine;
+	private float maxLightError;
+	private int lodDistance;
+	private float lodMaxError;
+	private ExecutorService staticRebuildExecutor;
+	private boolean realtime;
+
+	private LightMap map;
+
+	public TraceReplayer engine(LightEngine engine) {
+		this.engine = engine;
+		return this;
+	}
+
+	/**
+	 * @see LightMap#setMaxLightError(float)
+	 */
+	public TraceReplayer maxLightError(float maxError) {
+		this.maxLightError = maxError;
+		return this;
+	}
+
+	/**
+	 * @see LightMap#setStaticLightsLod(int, float)
+	 */
+	public TraceReplayer staticLightsLod(int distance, float maxError) {
+		this.lodDistance = distance;
+		this.lodMaxError = maxError;
+		return this;
+	}
+
+	/**
+	 * @see LightMap#setStaticRebuildExecutor(ExecutorService)
+	 */
+	public TraceReplayer staticRebuildExecutor(ExecutorService executor) {
+		this.staticRebuildExecutor = executor;
+		return this;
+	}
+
+	/**
+	 * Keeps recorded pauses between changes and steps, e.g. to give background rebuild
+	 * as much time as it had.
+	 */
+	public TraceReplayer realtime(boolean realtime) {
+		this.realtime = realtime;
+		return this;
+	}
+
+	/**
+	 * @return map after last replay
+	 */
+	public LightMap getMap() {
+		return map;
+	}
+
+	public ReplayReport replay(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+
+		try {
+			return replay(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads the whole trace first, so reading doesn't affect step times.
+	 */
+	public ReplayReport replay(InputStream stream) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1 << 16];
+		int n;
+
+		while ((n = stream.read(buffer)) > 0) {
+			bytes.write(buffer, 0, n);
+		}
+
+		return replay(bytes.toByteArray());
+	}
+
+	public ReplayReport replay(byte[] trace) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(trace));
+
+		if (in.readInt() != TraceFormat.MAGIC) throw new IOException("Not a light map trace");
+
+		int version = TraceFormat.readInt(in);
+		if (version != TraceFormat.VERSION) throw new IOException("Unsupported trace version " + version);
+
+		int width = TraceFormat.readInt(in);
+		int height = TraceFormat.readInt(in);
+		LightEngine recordedEngine = LightEngine.valueOf(in.readUTF());
+		boolean colored = in.readBoolean();
+
+		LightEngine engine = (this.engine != null) ? this.engine : recordedEngine;
+
+		// Incremental engines don't support colors, so colors are skipped for them
+		map = new LightMap(width, height, engine, colored && ! engine.isIncremental());
+		map.setMeasureUpdate(false);
+		map.setMaxLightError(maxLightError);
+		map.setStaticLightsLod(lodDistance, lodMaxError);
+		map.setStaticRebuildExecutor(staticRebuildExecutor);
+
+		long[] stepTimes = new long[1024];
+		int stepsCount = 0;
+		int recordsCount = 0;
+
+		// Recorded dynamic light id -> id in replayed map + 1, 0 for unknown light
+		int[] dynamicIds = new int[16];
+
+		BlendMode[] blendModes = BlendMode.values();
+		long recordedTime = 0;
+		long startTime = System.nanoTime();
+
+		int type;
+
+		while ((type = in.read()) >= 0) {
+			recordedTime += TraceFormat.readLong(in);
+			recordsCount++;
+
+			if (realtime) {
+				waitUntil(startTime + recordedTime);
+			}
+
+			switch (type) {
+				case TraceFormat.ADD_LAYER: {
+					String name = in.readUTF();
+					map.addLayer(name, blendModes[TraceFormat.readInt(in)]);
+				} break;
+				case TraceFormat.ADD_AMBIENT_LAYER: {
+					String name = in.readUTF();
+					BlendMode mode = blendModes[TraceFormat.readInt(in)];
+					map.addAmbientLayer(name, mode, in.readFloat());
+				} break;
+				case TraceFormat.SET_AMBIENT: {
+					int layer = TraceFormat.readInt(in);
+					map.setAmbientValue(map.getLayer(layer), in.readFloat());
+				} break;
+				case TraceFormat.ADD_LIGHT: {
+					int layer = TraceFormat.readInt(in);
+					Light light = TraceFormat.readLight(in);
+					int x = TraceFormat.readInt(in);
+					int y = TraceFormat.readInt(in);
+					map.addLight(map.getLayer(layer), light, x, y);
+				} break;
+				case TraceFormat.REMOVE_LIGHT: {
+					int layer = TraceFormat.readInt(in);
+					int x = TraceFormat.readInt(in);
+					int y = TraceFormat.readInt(in);
+					map.removeLight(map.getLayer(layer), x, y);
+				} break;
+				case TraceFormat.ADD_LIGHTS: {
+					int layer = TraceFormat.readInt(in);
+					int count = TraceFormat.readInt(in);
+					int[] xs = new int[count];
+					int[] ys = new int[count];
+					Light[] lights = new Light[count];
+
+					for (int i = 0; i < count; i++) {
+						xs[i] = TraceFormat.readInt(in);
+						ys[i] = TraceFormat.readInt(in);
+						lights[i] = TraceFormat.readLight(in);
+					}
+
+					map.addLights(map.getLayer(layer), xs, ys, lights, count);
+				} break;
+				case TraceFormat.ADD_DYNAMIC: {
+					int id = TraceFormat.readInt(in);
+					Light light = TraceFormat.readLight(in);
+					int x = TraceFormat.readInt(in);
+					int y = TraceFormat.readInt(in);
+
+					if (id >= dynamicIds.length) {
+						int[] ids = new int[Math.max(dynamicIds.length * 2, id + 1)];
+						System.arraycopy(dynamicIds, 0, ids, 0, dynamicIds.length);
+						dynamicIds = ids;
+					}
+
+					dynamicIds[id] = map.addDynamicLight(light, x, y) + 1;
+				} break;
+				case TraceFormat.REMOVE_DYNAMIC: {
+					map.removeDynamicLight(dynamicId(dynamicIds, TraceFormat.readInt(in)));
+				} break;
+				case TraceFormat.SET_DYNAMIC: {
+					int id = dynamicId(dynamicIds, TraceFormat.readInt(in));
+					int x = TraceFormat.readInt(in);
+					int y = TraceFormat.readInt(in);
+					map.setDynamicLightTo(id, x, y);
+				} break;
+				case TraceFormat.MOVE_DYNAMIC: {
+					int id = dynamicId(dynamicIds, TraceFormat.readInt(in));
+					int dx = TraceFormat.readInt(in);
+					int dy = TraceFormat.readInt(in);
+					map.moveDynamicLight(id, dx, dy);
+				} break;
+				case TraceFormat.DYNAMIC_DIRECTION: {
+					int id = dynamicId(dynamicIds, TraceFormat.readInt(in));
+					map.setDynamicLightDirection(id, in.readFloat());
+				} break;
+				case TraceFormat.SET_OPAQUE: {
+					int x = TraceFormat.readInt(in);
+					int y = TraceFormat.readInt(in);
+					map.setOpaque(x, y, in.readBoolean());
+				} break;
+				case TraceFormat.STEP: {
+					long budget = TraceFormat.readLong(in);
+
+					long time = System.nanoTime();
+
+					if (budget == TraceFormat.UNLIMITED_BUDGET) {
+						map.step();
+					} else {
+						map.step(budget);
+					}
+
+					time = System.nanoTime() - time;
+
+					if (stepsCount == stepTimes.length) {
+						long[] times = new long[stepsCount * 2];
+						System.arraycopy(stepTimes, 0, times, 0, stepsCount);
+						stepTimes = times;
+					}
+
+					stepTimes[stepsCount++] = time;
+				} break;
+				default:
+					throw new IOException("Unknown trace record type " + type);
+			}
+		}
+
+		String configuration = engine + ((maxLightError > 0) ? ", max error " + maxLightError : "")
+				+ ((lodMaxError > 0) ? ", LOD " + lodDistance + "/" + lodMaxError : "")
+				+ ((staticRebuildExecutor != null) ? ", background rebuild" : "");
+
+		return new ReplayReport(configuration, stepTimes, stepsCount, recordsCount);
+	}
+
+	private static int dynamicId(int[] ids, int recordedId) {
+		return (0 <= recordedId && recordedId < ids.length) ? ids[recordedId] - 1 : -1;
+	}
+
+	private static void waitUntil(long time) {
+		long wait;
+
+		while ((wait = time - System.nanoTime()) > 0) {
+			try {
+				Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length == 0) {
+			System.out.println("Usage: TraceReplayer trace-file [engine] [max light error]");
+			return;
+		}
+
+		File file = new File(args[0]);
+
+		if (args.length > 1) {
+			TraceReplayer replayer = new TraceReplayer().engine(LightEngine.valueOf(args[1]));
+
+			if (args.length > 2) {
+				replayer.maxLightError(Float.parseFloat(args[2]));
+			}
+
+			System.out.println(replayer.replay(file));
+			return;
+		}
+
+		// Compare all engines
+		for (LightEngine engine : LightEngine.values()) {
+			System.out.println(new TraceReplayer().engine(engine).replay(file));
+		}
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+
+		try {
+			System.out.println(new TraceReplayer().staticRebuildExecutor(executor).replay(file));
+		} finally {
+			executor.shutdown();
+		}
+	}
+}
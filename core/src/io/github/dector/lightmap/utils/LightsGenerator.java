@@ -0,0 +1,362 @@
+package io.github.dector.lightmap.utils;
+
+import io.github.dector.lightmap.core.Light;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Scatters lights over the map for {@link RandomMapBuilder}.
+ *
+ * Work is split into slices (or map tiles for {@link Placement#POISSON_DISK}),
+ * each one has its own random seed, derived from the main one.
+ * So slices can be generated in parallel and result doesn't depend on threads count.
+ *
+ * @author dector
+ */
+class LightsGenerator {
+
+	private static final int SLICE_SIZE = 1 << 16;
+
+	private static final int POISSON_TILE_SIZE = 256;
+	private static final int POISSON_ATTEMPTS = 30;
+
+	private final int width;
+	private final int height;
+	private final Placement placement;
+	private final RadiusDistribution radiusDistribution;
+	private final int radiusBound;
+	private final long seed;
+
+	/** Lights are immutable, so all lights with the same radius are shared */
+	private final Light[] radiusLights;
+
+	// Clusters or corridors
+	private int[] featureX;
+	private int[] featureY;
+	private int[] featureSize;
+	private boolean[] featureVertical;
+
+	private int[] xs;
+	private int[] ys;
+	private Light[] lights;
+	private int count;
+
+	/**
+	 * @param radiusBound radiuses are from 0 to this value (exclusive)
+	 */
+	LightsGenerator(int width, int height, Placement placement, RadiusDistribution radiusDistribution,
+					int radiusBound, long seed) {
+		this.width = width;
+		this.height = height;
+		this.placement = placement;
+		this.radiusDistribution = radiusDistribution;
+		this.radiusBound = radiusBound;
+		this.seed = seed;
+
+		radiusLights = new Light[radiusBound];
+		for (int r = 0; r < radiusBound; r++) {
+			radiusLights[r] = new Light(r);
+		}
+	}
+
+	int[] getXs() {
+		return xs;
+	}
+
+	int[] getYs() {
+		return ys;
+	}
+
+	Light[] getLights() {
+		return lights;
+	}
+
+	/**
+	 * Less than requested for {@link Placement#POISSON_DISK}, if lights don't fit.
+	 */
+	int getCount() {
+		return count;
+	}
+
+	/**
+	 * @param executor runs slices in parallel, may be <code>null</code>
+	 */
+	void generate(int count, ExecutorService executor) {
+		xs = new int[count];
+		ys = new int[count];
+		lights = new Light[count];
+
+		if (count == 0) {
+			this.count = 0;
+			return;
+		}
+
+		if (placement == Placement.POISSON_DISK) {
+			generatePoissonDisk(count, executor);
+			return;
+		}
+
+		generateFeatures(count);
+
+		List<Callable<Integer>> slices = new ArrayList<Callable<Integer>>();
+
+		for (int from = 0; from < count; from += SLICE_SIZE) {
+			final int sliceFrom = from;
+			final int sliceTo = Math.min(from + SLICE_SIZE, count);
+			final Random rnd = new Random(sliceSeed(seed, from / SLICE_SIZE));
+
+			slices.add(new Callable<Integer>() {
+				@Override
+				public Integer call() {
+					for (int i = sliceFrom; i < sliceTo; i++) {
+						place(rnd, i);
+						lights[i] = radiusLights[radius(rnd)];
+					}
+
+					return sliceTo - sliceFrom;
+				}
+			});
+		}
+
+		run(slices, executor);
+
+		this.count = count;
+	}
+
+	private void generateFeatures(int count) {
+		Random rnd = new Random(seed);
+		int features;
+
+		switch (placement) {
+			case CLUSTERED:
+				features = Math.max(1, Math.min(count / 64, width * height / 4096));
+				break;
+			case CORRIDORS:
+				features = Math.max(1, Math.min(count / 16, (width + height) / 4));
+				break;
+			default:
+				return;
+		}
+
+		featureX = new int[features];
+		featureY = new int[features];
+		featureSize = new int[features];
+		featureVertical = new boolean[features];
+
+		int clusterSize = Math.max(2, (int) (Math.sqrt((double) width * height / features) / 6));
+
+		for (int f = 0; f < features; f++) {
+			featureX[f] = rnd.nextInt(width);
+			featureY[f] = rnd.nextInt(height);
+			featureVertical[f] = rnd.nextBoolean();
+
+			if (placement == Placement.CLUSTERED) {
+				featureSize[f] = clusterSize / 2 + rnd.nextInt(clusterSize);
+			} else {
+				int length = featureVertical[f] ? height : width;
+				featureSize[f] = Math.max(1, length / 8 + rnd.nextInt(Math.max(1, length / 2)));
+			}
+		}
+	}
+
+	private void place(Random rnd, int i) {
+		int x;
+		int y;
+
+		switch (placement) {
+			case CLUSTERED: {
+				int f = rnd.nextInt(featureX.length);
+				x = featureX[f] + (int) Math.round(rnd.nextGaussian() * featureSize[f]);
+				y = featureY[f] + (int) Math.round(rnd.nextGaussian() * featureSize[f]);
+			} break;
+			case CORRIDORS: {
+				int f = rnd.nextInt(featureX.length);
+				int along = rnd.nextInt(featureSize[f]);
+				int across = rnd.nextInt(3) - 1;
+
+				if (featureVertical[f]) {
+					x = featureX[f] + across;
+					y = featureY[f] + along;
+				} else {
+					x = featureX[f] + along;
+					y = featureY[f] + across;
+				}
+			} break;
+			default:
+				x = rnd.nextInt(width);
+				y = rnd.nextInt(height);
+				break;
+		}
+
+		xs[i] = Math.min(Math.max(x, 0), width - 1);
+		ys[i] = Math.min(Math.max(y, 0), height - 1);
+	}
+
+	private int radius(Random rnd) {
+		switch (radiusDistribution) {
+			case SMALL_BIASED: {
+				float u = rnd.nextFloat();
+				return (int) (u * u * radiusBound);
+			}
+			case NORMAL: {
+				int r = Math.round(radiusBound / 2f + (float) rnd.nextGaussian() * radiusBound / 6f);
+				return Math.min(Math.max(r, 0), radiusBound - 1);
+			}
+			default:
+				return rnd.nextInt(radiusBound);
+		}
+	}
+
+	/**
+	 * Dart throwing per map tile. Lights keep half of min distance from tile borders,
+	 * so tiles don't have to know about each other.
+	 */
+	private void generatePoissonDisk(int count, ExecutorService executor) {
+		final double minDist = Math.max(1, Math.sqrt(0.4 * width * height / count));
+		final int tileSize = Math.max(POISSON_TILE_SIZE, (int) Math.ceil(8 * minDist));
+		final int tilesX = (width + tileSize - 1) / tileSize;
+		final int tilesY = (height + tileSize - 1) / tileSize;
+		final long area = (long) width * height;
+
+		final int[] tileFrom = new int[tilesX * tilesY];
+		final int[] tileCount = new int[tilesX * tilesY];
+
+		List<Callable<Integer>> tiles = new ArrayList<Callable<Integer>>();
+		long coveredArea = 0;
+
+		for (int ty = 0; ty < tilesY; ty++) {
+			for (int tx = 0; tx < tilesX; tx++) {
+				final int tile = ty * tilesX + tx;
+				final int fromX = tx * tileSize;
+				final int fromY = ty * tileSize;
+				final int toX = Math.min(fromX + tileSize, width);
+				final int toY = Math.min(fromY + tileSize, height);
+
+				int from = (int) (count * coveredArea / area);
+				coveredArea += (long) (toX - fromX) * (toY - fromY);
+				final int target = (int) (count * coveredArea / area) - from;
+				final Random rnd = new Random(sliceSeed(seed, tile));
+
+				tileFrom[tile] = from;
+
+				tiles.add(new Callable<Integer>() {
+					@Override
+					public Integer call() {
+						tileCount[tile] = dartThrow(rnd, tileFrom[tile], target, minDist,
+								fromX, fromY, toX, toY);
+						return tileCount[tile];
+					}
+				});
+			}
+		}
+
+		run(tiles, executor);
+
+		// Pack lights of all tiles together
+		int k = 0;
+		for (int tile = 0; tile < tileFrom.length; tile++) {
+			int from = tileFrom[tile];
+
+			System.arraycopy(xs, from, xs, k, tileCount[tile]);
+			System.arraycopy(ys, from, ys, k, tileCount[tile]);
+			System.arraycopy(lights, from, lights, k, tileCount[tile]);
+			k += tileCount[tile];
+		}
+
+		this.count = k;
+	}
+
+	private int dartThrow(Random rnd, int offset, int target, double minDist,
+						  int fromX, int fromY, int toX, int toY) {
+		int margin = (int) Math.ceil(minDist / 2);
+		int x0 = (fromX > 0) ? fromX + margin : 0;
+		int y0 = (fromY > 0) ? fromY + margin : 0;
+		int x1 = (toX < width) ? toX - margin : width;
+		int y1 = (toY < height) ? toY - margin : height;
+
+		if (x0 >= x1 || y0 >= y1 || target == 0) return 0;
+
+		// Each grid cell contains one light at most
+		double cellSize = minDist / Math.sqrt(2);
+		int cellsX = (int) Math.ceil((x1 - x0) / cellSize);
+		int cellsY = (int) Math.ceil((y1 - y0) / cellSize);
+		int[] cells = new int[cellsX * cellsY];
+		double minDist2 = minDist * minDist;
+
+		int placed = 0;
+
+		for (int attempt = 0; attempt < target * POISSON_ATTEMPTS && placed < target; attempt++) {
+			int x = x0 + rnd.nextInt(x1 - x0);
+			int y = y0 + rnd.nextInt(y1 - y0);
+			int cx = (int) ((x - x0) / cellSize);
+			int cy = (int) ((y - y0) / cellSize);
+
+			if (cells[cy * cellsX + cx] != 0) continue;
+
+			boolean free = true;
+
+			for (int i = Math.max(cx - 2, 0); free && i <= Math.min(cx + 2, cellsX - 1); i++) {
+				for (int j = Math.max(cy - 2, 0); j <= Math.min(cy + 2, cellsY - 1); j++) {
+					int other = cells[j * cellsX + i] - 1;
+
+					if (other < 0) continue;
+
+					double dx = xs[offset + other] - x;
+					double dy = ys[offset + other] - y;
+
+					if (dx * dx + dy * dy < minDist2) {
+						free = false;
+						break;
+					}
+				}
+			}
+
+			if (! free) continue;
+
+			xs[offset + placed] = x;
+			ys[offset + placed] = y;
+			lights[offset + placed] = radiusLights[radius(rnd)];
+			cells[cy * cellsX + cx] = ++placed;
+		}
+
+		return placed;
+	}
+
+	private static void run(List<Callable<Integer>> tasks, ExecutorService executor) {
+		try {
+			if (executor == null) {
+				for (Callable<Integer> task : tasks) {
+					task.call();
+				}
+			} else {
+				List<Future<Integer>> results = executor.invokeAll(tasks);
+
+				for (Future<Integer> result : results) {
+					result.get();
+				}
+			}
+		} catch (InterruptedException e) {
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Lights generation failed", e.getCause());
+		} catch (Exception e) {
+			throw new IllegalStateException("Lights generation failed", e);
+		}
+	}
+
+	/**
+	 * Mixes seed with slice number, so neighbour slices get unrelated random sequences.
+	 */
+	private static long sliceSeed(long seed, int slice) {
+		long z = seed + (slice + 1) * 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+}
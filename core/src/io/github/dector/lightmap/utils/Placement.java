@@ -0,0 +1,21 @@
+package io.github.dector.lightmap.utils;
+
+/**
+ * How {@link RandomMapBuilder} scatters static lights over the map.
+ *
+ * @author dector
+ */
+public enum Placement {
+
+	/** Anywhere with equal chance */
+	UNIFORM,
+
+	/** Dense groups around random centers, like towns */
+	CLUSTERED,
+
+	/** Evenly spread, no two lights are closer than some distance */
+	POISSON_DISK,
+
+	/** Along random horizontal and vertical corridors, like torches in dungeon */
+	CORRIDORS
+}
@@ -0,0 +1,18 @@
+package io.github.dector.lightmap.utils;
+
+/**
+ * How {@link RandomMapBuilder} picks light radiuses from zero to max radius.
+ *
+ * @author dector
+ */
+public enum RadiusDistribution {
+
+	/** Any radius with equal chance */
+	UNIFORM,
+
+	/** Mostly small lights and a few big ones */
+	SMALL_BIASED,
+
+	/** Mostly around half of max radius */
+	NORMAL
+}
@@ -1,13 +1,20 @@
 package io.github.dector.lightmap.utils;
 
 import io.github.dector.lightmap.core.Light;
+import io.github.dector.lightmap.core.LightEngine;
 import io.github.dector.lightmap.core.LightMap;
-import io.github.dector.lightmap.core.Pair;
 import io.github.dector.lightmap.core.Position;
 
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
+ * Builds map with randomly placed lights.
+ *
+ * The same seed and settings always give the same map, whatever threads count is.
+ * Use {@link #getSeed()} to reproduce map built with random seed.
+ *
  * @author dector
  */
 public class RandomMapBuilder {
@@ -24,6 +31,12 @@ public class RandomMapBuilder {
 	private int dynamicLightMaxRadius = 50;
 	private int playerLightMaxRadius = 3;
 
+	private long seed = new Random().nextLong();
+	private LightEngine engine = LightEngine.FLOAT;
+	private Placement placement = Placement.UNIFORM;
+	private RadiusDistribution radiusDistribution = RadiusDistribution.UNIFORM;
+	private int threads = 1;
+
 	private LightMap map;
 	private int playerLightId;
 
@@ -91,15 +104,70 @@ public class RandomMapBuilder {
 		return this;
 	}
 
+	public RandomMapBuilder seed(long seed) {
+		this.seed = seed;
+
+		return this;
+	}
+
+	public RandomMapBuilder engine(LightEngine engine) {
+		if (engine != null) {
+			this.engine = engine;
+		}
+
+		return this;
+	}
+
+	/**
+	 * How static lights are placed. Dynamic lights are always placed uniformly.
+	 */
+	public RandomMapBuilder placement(Placement placement) {
+		if (placement != null) {
+			this.placement = placement;
+		}
+
+		return this;
+	}
+
+	public RandomMapBuilder radiusDistribution(RadiusDistribution distribution) {
+		if (distribution != null) {
+			this.radiusDistribution = distribution;
+		}
+
+		return this;
+	}
+
+	/**
+	 * Generates static lights in parallel. Worth it for millions of lights.
+	 */
+	public RandomMapBuilder threads(int threads) {
+		if (threads > 0) {
+			this.threads = threads;
+		}
+
+		return this;
+	}
+
 	public RandomMapBuilder build() {
-		map = new LightMap(width, height);
+		map = new LightMap(width, height, engine);
 
-		Random rnd = new Random();
+		LightsGenerator generator = new LightsGenerator(width, height, placement, radiusDistribution,
+				staticLightMaxRadius, seed);
 
-		for (int i = 0; i < staticLightsCount; i++) {
-			map.addStaticLight(new Light(rnd.nextInt(staticLightMaxRadius)), rnd.nextInt(width), rnd.nextInt(height));
+		ExecutorService executor = (threads > 1) ? Executors.newFixedThreadPool(threads) : null;
+
+		try {
+			generator.generate(staticLightsCount, executor);
+		} finally {
+			if (executor != null) {
+				executor.shutdown();
+			}
 		}
 
+		map.addStaticLights(generator.getXs(), generator.getYs(), generator.getLights(), generator.getCount());
+
+		Random rnd = new Random(seed);
+
 		playerLightId = map.addDynamicLight(new Light(playerLightMaxRadius), new Position(playerPos));
 
 		for (int i = 0; i < dynamicLightsCount; i++) {
@@ -117,4 +185,8 @@ public class RandomMapBuilder {
 	public int getPlayerLightId() {
 		return playerLightId;
 	}
+
+	public long getSeed() {
+		return seed;
+	}
 }
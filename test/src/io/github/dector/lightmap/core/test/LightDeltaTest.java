@@ -0,0 +1,71 @@
+package io.github.dector.lightmap.core.test;
+
+import io.github.dector.lightmap.core.Light;
+import io.github.dector.lightmap.core.LightDeltaDecoder;
+import io.github.dector.lightmap.core.LightDeltaEncoder;
+import io.github.dector.lightmap.core.LightMap;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * @author dector
+ */
+public class LightDeltaTest {
+
+	@Test
+	public void loopback() {
+		LightMap map = new LightMap(200, 150);
+		map.setMeasureUpdate(false);
+
+		// The same map each time
+		Random rnd = new Random(30);
+
+		for (int i = 0; i < 300; i++) {
+			map.addStaticLight(new Light(rnd.nextInt(10) + 1), rnd.nextInt(200), rnd.nextInt(150));
+		}
+
+		int playerId = map.addDynamicLight(new Light(3), 10, 10);
+
+		for (int i = 0; i < 5; i++) {
+			map.addDynamicLight(new Light(rnd.nextInt(8) + 1), rnd.nextInt(200), rnd.nextInt(150));
+		}
+
+		LightDeltaEncoder encoder = new LightDeltaEncoder(map.getWidth(), map.getHeight());
+		LightDeltaDecoder decoder = new LightDeltaDecoder(map.getWidth(), map.getHeight());
+
+		map.step();
+		byte[] full = encoder.encode(map);
+		decoder.apply(full);
+		assertDecoded(map, decoder);
+
+		for (int i = 0; i < 20; i++) {
+			map.setDynamicLightTo(playerId, 10 + i, 10 + i / 2);
+			map.step();
+
+			byte[] delta = encoder.encode(map);
+			decoder.apply(delta);
+			assertDecoded(map, decoder);
+
+			Assert.assertTrue("Delta size " + delta.length, delta.length < 200);
+		}
+
+		map.addStaticLight(new Light(5), 100, 100);
+		map.step();
+		decoder.apply(encoder.encode(map));
+		assertDecoded(map, decoder);
+
+		byte[] empty = encoder.encode(map);
+		Assert.assertEquals(1, empty.length);
+	}
+
+	private void assertDecoded(LightMap map, LightDeltaDecoder decoder) {
+		for (int x = 0; x < map.getWidth(); x++) {
+			for (int y = 0; y < map.getHeight(); y++) {
+				Assert.assertEquals("Light value at " + x + ":" + y,
+						map.getLightValueAt(x, y), decoder.getLightValueAt(x, y), 0.51f / LightDeltaEncoder.LEVELS);
+			}
+		}
+	}
+}
@@ -1,10 +1,30 @@
 package io.github.dector.lightmap.core.test;
 
+import io.github.dector.lightmap.core.BlendMode;
 import io.github.dector.lightmap.core.Light;
+import io.github.dector.lightmap.core.LightEdits;
+import io.github.dector.lightmap.core.LightEngine;
+import io.github.dector.lightmap.core.LightLayer;
 import io.github.dector.lightmap.core.LightMap;
+import io.github.dector.lightmap.core.LightMapStats;
+import io.github.dector.lightmap.core.LightVisitor;
+import io.github.dector.lightmap.core.MemoryFootprint;
+import io.github.dector.lightmap.core.Position;
+import io.github.dector.lightmap.core.StepPhase;
 import junit.framework.Assert;
 import org.junit.Test;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 /**
  * @author dector
  */
@@ -35,4 +55,994 @@ public class LightMapTest {
 		map.step();
 		map.print();
 	}
+
+	@Test
+	public void asyncStaticRebuild() throws Exception {
+		int w = 20;
+		int h = 20;
+
+		LightMap expected = new LightMap(w, h);
+		expected.addStaticLight(new Light(5), 5, 5);
+		expected.addStaticLight(new Light(2, 4), 12, 9);
+		expected.step();
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+
+		try {
+			LightMap map = new LightMap(w, h);
+			map.setStaticRebuildExecutor(executor);
+			map.addStaticLight(new Light(5), 5, 5);
+			map.addStaticLight(new Light(2, 4), 12, 9);
+
+			Future<?> future = map.getStaticRebuildFuture();
+			Assert.assertNotNull(future);
+
+			while (! future.isDone()) {
+				map.step();
+			}
+
+			Assert.assertFalse(map.isStaticRebuildPending());
+
+			for (int x = 0; x < w; x++) {
+				for (int y = 0; y < h; y++) {
+					Assert.assertEquals("Light value at " + x + ":" + y,
+							expected.getLightValueAt(x, y), map.getLightValueAt(x, y));
+				}
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void spatialQueries() {
+		int w = 30;
+		int h = 20;
+
+		LightMap map = new LightMap(w, h);
+		map.addStaticLight(new Light(6), 10, 10);
+		map.addStaticLight(Light.lightCircle(2), 25, 4);
+		map.step();
+
+		Position p = map.findBrightestWithin(12, 10, 5);
+		Assert.assertEquals(new Position(10, 10), p);
+
+		p = map.findDarkestWithin(10, 10, 7);
+		Assert.assertEquals(0f, map.getLightValueAt(p.x, p.y));
+		Assert.assertEquals(36, (p.x - 10) * (p.x - 10) + (p.y - 10) * (p.y - 10));
+
+		Assert.assertNull(map.findDarkestWithin(w, 0, 3));
+
+		for (float threshold : new float[] { 0.01f, 0.3f, 1f }) {
+			int expected = 0;
+
+			for (int x = 3; x < 28; x++) {
+				for (int y = 2; y < 15; y++) {
+					if (map.getLightValueAt(x, y) >= threshold) {
+						expected++;
+					}
+				}
+			}
+
+			Assert.assertEquals(expected, map.countLitTiles(3, 2, 25, 13, threshold));
+		}
+
+		int[] xs = { 0, 10, 25 };
+		int[] ys = { 0, 10, 4 };
+		float[] values = new float[3];
+		map.getLightValuesAt(xs, ys, values);
+
+		for (int i = 0; i < xs.length; i++) {
+			Assert.assertEquals(map.getLightValueAt(xs[i], ys[i]), values[i]);
+		}
+	}
+
+	@Test
+	public void staticLightsLookup() {
+		LightMap map = new LightMap(50, 50);
+		Set<Position> expected = new HashSet<Position>();
+		Random rnd = new Random(42);
+
+		for (int i = 0; i < 5000; i++) {
+			int x = rnd.nextInt(50);
+			int y = rnd.nextInt(50);
+
+			if (rnd.nextBoolean()) {
+				map.addStaticLight(new Light(1), x, y);
+				expected.add(new Position(x, y));
+			} else {
+				map.removeStaticLightAt(x, y);
+				expected.remove(new Position(x, y));
+			}
+		}
+
+		Assert.assertEquals(expected.size(), map.getStaticLightsCount());
+
+		for (int x = 0; x < 50; x++) {
+			for (int y = 0; y < 50; y++) {
+				Assert.assertEquals(expected.contains(new Position(x, y)), map.hasStaticLightAt(x, y));
+			}
+		}
+	}
+
+	@Test
+	public void steadyStateDoesNotAllocate() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (! (bean instanceof com.sun.management.ThreadMXBean)) return;
+
+		com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+		if (! threadBean.isThreadAllocatedMemorySupported()) return;
+
+		LightMap map = new LightMap(64, 64);
+		map.setMeasureUpdate(false);
+
+		for (int i = 0; i < 20; i++) {
+			map.addStaticLight(new Light(i % 7), (i * 13) % 64, (i * 29) % 64);
+		}
+
+		int id = map.addDynamicLight(new Light(5), 10, 10);
+
+		final int[] counter = new int[1];
+		LightVisitor visitor = new LightVisitor() {
+			@Override
+			public void visit(int x, int y, Light light) {
+				counter[0] += light.outerRadius;
+			}
+		};
+
+		int[] xs = { 1, 2, 3 };
+		int[] ys = { 4, 5, 6 };
+		float[] values = new float[3];
+		Position out = new Position();
+
+		int frames = 1000;
+		long threadId = Thread.currentThread().getId();
+		long allocated = 0;
+
+		for (int pass = 0; pass < 20; pass++) {
+			long before = threadBean.getThreadAllocatedBytes(threadId);
+
+			for (int frame = 0; frame < frames; frame++) {
+				map.setDynamicLightTo(id, frame % 64, (frame * 7) % 64);
+				map.step();
+
+				map.getLightValuesAt(xs, ys, values);
+				map.findDarkestWithin(32, 32, 10, out);
+				map.countLitTiles(0, 0, 32, 32, 0.5f);
+				map.hasStaticLightAt(frame % 64, 0);
+				map.forEachStaticLight(visitor);
+			}
+
+			allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+		}
+
+		Assert.assertEquals("Bytes allocated per frame", 0, allocated / frames);
+	}
+
+	@Test
+	public void fixedPointEngine() {
+		int w = 40;
+		int h = 40;
+
+		LightMap floatMap = new LightMap(w, h);
+		LightMap fixedMap = new LightMap(w, h, LightEngine.FIXED_POINT);
+		LightMap reversedMap = new LightMap(w, h, LightEngine.FIXED_POINT);
+
+		Light[] lights = { new Light(7), new Light(2, 9), Light.lightSquare(3), new Light(12) };
+		int[] xs = { 5, 20, 30, 18 };
+		int[] ys = { 5, 22, 8, 15 };
+
+		for (int i = 0; i < lights.length; i++) {
+			floatMap.addStaticLight(lights[i], xs[i], ys[i]);
+			fixedMap.addStaticLight(lights[i], xs[i], ys[i]);
+			reversedMap.addStaticLight(lights[lights.length - 1 - i], xs[lights.length - 1 - i], ys[lights.length - 1 - i]);
+		}
+
+		floatMap.step();
+		fixedMap.step();
+		reversedMap.step();
+
+		for (int x = 0; x < w; x++) {
+			for (int y = 0; y < h; y++) {
+				Assert.assertEquals("Light value at " + x + ":" + y,
+						floatMap.getLightValueAt(x, y), fixedMap.getLightValueAt(x, y), 0.001f);
+				Assert.assertEquals("Light value at " + x + ":" + y,
+						fixedMap.getLightValueAt(x, y), reversedMap.getLightValueAt(x, y));
+			}
+		}
+	}
+
+	@Test
+	public void floodFillIncrementalRelight() {
+		int w = 40;
+		int h = 30;
+		Random rnd = new Random(7);
+
+		LightMap map = new LightMap(w, h, LightEngine.FLOOD_FILL);
+		map.setMeasureUpdate(false);
+
+		int playerId = map.addDynamicLight(new Light(6), 20, 15);
+
+		for (int i = 0; i < 2000; i++) {
+			int x = rnd.nextInt(w);
+			int y = rnd.nextInt(h);
+
+			switch (rnd.nextInt(4)) {
+				case 0:
+					map.addStaticLight(new Light(1 + rnd.nextInt(8)), x, y);
+					break;
+				case 1:
+					map.removeStaticLightAt(x, y);
+					break;
+				case 2:
+					map.setOpaque(x, y, ! map.isOpaque(x, y));
+					break;
+				case 3:
+					map.setDynamicLightTo(playerId, x, y);
+					break;
+			}
+
+			if (i % 100 == 0) {
+				map.step();
+			}
+		}
+
+		map.step();
+
+		final LightMap expected = new LightMap(w, h, LightEngine.FLOOD_FILL);
+		expected.setMeasureUpdate(false);
+
+		for (int x = 0; x < w; x++) {
+			for (int y = 0; y < h; y++) {
+				expected.setOpaque(x, y, map.isOpaque(x, y));
+			}
+		}
+
+		map.forEachStaticLight(new LightVisitor() {
+			@Override
+			public void visit(int x, int y, Light light) {
+				expected.addStaticLight(light, x, y);
+			}
+		});
+
+		Position player = new Position();
+		map.getDynamicLightPosition(playerId, player);
+		expected.addDynamicLight(new Light(6), player);
+		expected.step();
+
+		for (int x = 0; x < w; x++) {
+			for (int y = 0; y < h; y++) {
+				Assert.assertEquals("Light value at " + x + ":" + y,
+						expected.getLightValueAt(x, y), map.getLightValueAt(x, y));
+			}
+		}
+	}
+
+	@Test
+	public void floodFillWalls() {
+		LightMap map = new LightMap(20, 5, LightEngine.FLOOD_FILL);
+
+		for (int y = 0; y < 5; y++) {
+			map.setOpaque(10, y, true);
+		}
+
+		map.addStaticLight(new Light(8), 7, 2);
+		map.step();
+
+		Assert.assertTrue(map.getLightValueAt(9, 2) > 0);
+		Assert.assertEquals(0f, map.getLightValueAt(11, 2));
+
+		map.setOpaque(10, 2, false);
+		map.step();
+
+		Assert.assertTrue(map.getLightValueAt(11, 2) > 0);
+	}
+
+	@Test
+	public void layers() {
+		LightMap map = new LightMap(40, 40);
+		map.addStaticLight(new Light(5), 5, 5);
+		map.addDynamicLight(new Light(3), 30, 30);
+
+		LightLayer daylight = map.addAmbientLayer("daylight", BlendMode.ADD, 0.25f);
+		LightLayer effects = map.addLayer("effects", BlendMode.MAX);
+		map.addLight(effects, Light.lightCircle(2), 20, 20);
+		LightLayer shade = map.addAmbientLayer("shade", BlendMode.MULTIPLY, 0.5f);
+
+		map.step();
+
+		Assert.assertEquals(0.125f, map.getLightValueAt(15, 15));
+		Assert.assertEquals(0.5f, map.getLightValueAt(20, 20));
+		Assert.assertEquals(0.625f, map.getLightValueAt(5, 5));
+
+		map.setAmbientValue(daylight, 0.75f);
+		map.setAmbientValue(shade, 1f);
+		map.step();
+
+		Assert.assertEquals(0.75f, map.getLightValueAt(15, 15));
+		Assert.assertEquals(1f, map.getLightValueAt(20, 20));
+		Assert.assertSame(effects, map.getLayer("effects"));
+		Assert.assertSame(map.getStaticLayer(), map.getLayer(LightMap.STATIC_LAYER));
+	}
+
+	@Test
+	public void queuedEdits() throws Exception {
+		final LightMap map = new LightMap(40, 40);
+		final LightEdits edits = map.getEdits();
+
+		int removed = map.addDynamicLight(new Light(3), 5, 5);
+
+		int moved = edits.addDynamicLight(new Light(3), 1, 1);
+		edits.setDynamicLightTo(moved, 2, 2);
+		edits.setDynamicLightTo(moved, 10, 10);
+		int cancelled = edits.addDynamicLight(new Light(3), 20, 20);
+		edits.removeDynamicLight(cancelled);
+		int cancelledMoved = edits.addDynamicLight(new Light(3), 25, 25);
+		edits.removeDynamicLight(cancelledMoved);
+		edits.setDynamicLightTo(cancelledMoved, 26, 26);
+		edits.removeDynamicLight(removed);
+		edits.setDynamicLightTo(removed, 6, 6);
+		edits.addStaticLight(new Light(4), 30, 30);
+		edits.removeStaticLightAt(30, 30);
+		edits.addStaticLight(new Light(2), 30, 30);
+
+		map.step();
+
+		Position pos = new Position();
+		Assert.assertTrue(map.getDynamicLightPosition(moved, pos));
+		Assert.assertEquals(10, pos.x);
+		Assert.assertEquals(10, pos.y);
+		Assert.assertFalse(map.getDynamicLightPosition(cancelled, pos));
+		Assert.assertFalse(map.getDynamicLightPosition(cancelledMoved, pos));
+		Assert.assertFalse(map.getDynamicLightPosition(removed, pos));
+		Assert.assertEquals(0f, map.getLightValueAt(6, 6));
+		Assert.assertEquals(1, map.getDynamicLightsCount());
+		Assert.assertEquals(2, map.getStaticLightAt(30, 30).outerRadius);
+
+		final int producers = 4;
+		final int perProducer = 1000;
+		Thread[] threads = new Thread[producers];
+
+		for (int t = 0; t < producers; t++) {
+			final int row = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < perProducer; i++) {
+						edits.addStaticLight(new Light(1), i % 40, row);
+						edits.addDynamicLight(new Light(1), i % 40, row);
+					}
+				}
+			};
+			threads[t].start();
+		}
+
+		while (threads[producers - 1].isAlive() || threads[0].isAlive()) {
+			map.step();
+		}
+
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		map.step();
+
+		Assert.assertEquals(1 + producers * 40, map.getStaticLightsCount());
+		Assert.assertEquals(1 + producers * perProducer, map.getDynamicLightsCount());
+	}
+
+	@Test
+	public void progressiveStep() {
+		int w = 160;
+		int h = 160;
+
+		LightMap expected = new LightMap(w, h);
+		LightMap map = new LightMap(w, h);
+		map.setMeasureUpdate(false);
+
+		Position player = new Position(150, 150);
+		map.addFocusPoint(player);
+
+		Random r = new Random(34);
+		for (int i = 0; i < 500; i++) {
+			int x = r.nextInt(w);
+			int y = r.nextInt(h);
+			int radius = 1 + r.nextInt(8);
+
+			expected.addStaticLight(new Light(radius), x, y);
+			map.addStaticLight(new Light(radius), x, y);
+		}
+		expected.addStaticLight(new Light(5), 150, 150);
+		map.addStaticLight(new Light(5), 150, 150);
+		expected.addStaticLight(new Light(5), 5, 5);
+		map.addStaticLight(new Light(5), 5, 5);
+
+		expected.step();
+
+		int steps = 1;
+		while (! map.step(0)) {
+			if (map.getLightValueAt(150, 150) > 0) break;
+			steps++;
+		}
+
+		Assert.assertTrue(steps > 1);
+		Assert.assertFalse(map.isConverged());
+		Assert.assertEquals(expected.getLightValueAt(150, 150), map.getLightValueAt(150, 150));
+		Assert.assertEquals(0f, map.getLightValueAt(5, 5));
+
+		while (! map.step(0)) {
+			steps++;
+		}
+
+		Assert.assertTrue(map.isConverged());
+
+		for (int x = 0; x < w; x++) {
+			for (int y = 0; y < h; y++) {
+				Assert.assertEquals(expected.getLightValueAt(x, y), map.getLightValueAt(x, y));
+			}
+		}
+	}
+
+	@Test
+	public void progressiveStepWithMovingLight() {
+		LightMap map = new LightMap(64, 64);
+		map.setMeasureUpdate(false);
+		LightMap expected = new LightMap(64, 64);
+		expected.setMeasureUpdate(false);
+
+		Random r = new Random(341);
+		for (int i = 0; i < 20; i++) {
+			int x = 40 + r.nextInt(20);
+			int y = r.nextInt(64);
+
+			map.addStaticLight(new Light(4), x, y);
+			expected.addStaticLight(new Light(4), x, y);
+			map.addDynamicLight(new Light(3), x, 63 - y);
+			expected.addDynamicLight(new Light(3), x, 63 - y);
+		}
+
+		int player = map.addDynamicLight(new Light(5), 10, 10);
+		map.step();
+
+		// Player moves each frame, while layers are recounted light by light
+		boolean shown = false;
+		for (int frame = 0; frame < 200; frame++) {
+			map.setDynamicLightTo(player, 5 + frame % 20, 30 + frame / 20);
+			map.step(1);
+
+			shown |= map.getLightValueAt(5 + frame % 20, 30 + frame / 20) > 0;
+		}
+
+		Assert.assertTrue(shown);
+
+		int steps = 0;
+		while (! map.step(1)) {
+			if (++steps > 10000) Assert.fail("Map didn't converge");
+		}
+
+		expected.addDynamicLight(new Light(5), 5 + 199 % 20, 30 + 199 / 20);
+		expected.step();
+
+		Assert.assertEquals(0f, maxDifference(map, expected, 0, 0, 63, 63));
+	}
+
+	@Test
+	public void coloredLights() {
+		LightMap map = new LightMap(20, 20, LightEngine.FIXED_POINT, true);
+		map.setMeasureUpdate(false);
+
+		map.addStaticLight(new Light(Light.RADIUS_OFF, 4, 0xFF0000), 5, 5);
+		map.addStaticLight(new Light(Light.RADIUS_OFF, 4, 0x0000FF), 7, 5);
+		map.addDynamicLight(new Light(Light.RADIUS_OFF, 4, 0xFF8000), 5, 5);
+		map.addStaticLight(new Light(3), 15, 15);
+		map.step();
+
+		// Red saturates, green is added by dynamic light, blue falls off with distance
+		Assert.assertEquals(0xFF8061FF, map.getColorAt(5, 5));
+		Assert.assertEquals(0x000000FF, map.getColorAt(0, 19));
+
+		int gray = Math.round(map.getLightValueAt(16, 15) * 255);
+		Assert.assertEquals((gray << 24) | (gray << 16) | (gray << 8) | 0xFF, map.getColorAt(16, 15));
+
+		try {
+			new LightMap(20, 20, LightEngine.FLOOD_FILL, true);
+			Assert.fail("Flood fill engine can't be colored");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void fixedPointColors() {
+		Light light = new Light(1, 5, 0xFF8040);
+
+		// Kernel of float engine is cached in the same light
+		LightMap floatMap = new LightMap(11, 11, LightEngine.FLOAT, true);
+		floatMap.setMeasureUpdate(false);
+		floatMap.addStaticLight(light, 5, 5);
+		floatMap.step();
+
+		LightMap map = new LightMap(11, 11, LightEngine.FIXED_POINT, true);
+		map.setMeasureUpdate(false);
+		map.addStaticLight(light, 5, 5);
+		map.addStaticLight(new Light(Light.RADIUS_OFF, 3, 0x2060C0), 8, 5);
+		map.step();
+
+		// Counted with integer math, must be the same on every JVM
+		int[] expected = {
+				0x000000FF, 0x1B0D07FF, 0x472312FF, 0x7D3F1FFF, 0xFF8040FF, 0xFF8040FF,
+				0xFF9569FF, 0x8F758CFF, 0x6783D2FF, 0x2D4374FF, 0x071529FF
+		};
+
+		for (int x = 0; x < expected.length; x++) {
+			Assert.assertEquals("Color at " + x + ":5", expected[x], map.getColorAt(x, 5));
+		}
+	}
+
+	@Test
+	public void spotLights() {
+		for (LightEngine engine : new LightEngine[] { LightEngine.FLOAT, LightEngine.FIXED_POINT }) {
+			LightMap map = new LightMap(30, 30, engine);
+			map.setMeasureUpdate(false);
+
+			Light flashlight = Light.spot(6, (float) Math.PI / 3, 0);
+			int id = map.addDynamicLight(flashlight, 15, 15);
+			map.step();
+
+			Assert.assertTrue(map.getLightValueAt(18, 15) > 0);
+			Assert.assertEquals(0f, map.getLightValueAt(12, 15));
+			Assert.assertEquals(0f, map.getLightValueAt(15, 18));
+
+			map.setDynamicLightDirection(id, (float) Math.PI / 2);
+			map.step();
+
+			Assert.assertEquals(0f, map.getLightValueAt(18, 15));
+			Assert.assertTrue(map.getLightValueAt(15, 18) > 0);
+
+			// Rotating back reuses the same light
+			Assert.assertSame(flashlight, flashlight.rotatedTo((float) Math.PI / 2).rotatedTo(0));
+		}
+	}
+
+	@Test
+	public void turningSpotLightRecountsItsTiles() {
+		for (int pass = 0; pass < 3; pass++) {
+			LightEngine engine = (pass == 1) ? LightEngine.FIXED_POINT : LightEngine.FLOAT;
+			boolean colored = pass == 2;
+
+			LightMap map = new LightMap(64, 64, engine, colored);
+			LightMap expected = new LightMap(64, 64, engine, colored);
+			map.setMeasureUpdate(false);
+			expected.setMeasureUpdate(false);
+
+			Random r = new Random(38);
+			for (int i = 0; i < 30; i++) {
+				Light light = new Light(Light.RADIUS_OFF, 2 + r.nextInt(6), 0x204080 + r.nextInt(0x808080));
+				int x = r.nextInt(64);
+				int y = r.nextInt(64);
+
+				map.addDynamicLight(light, x, y);
+				expected.addDynamicLight(light, x, y);
+			}
+
+			int id = map.addDynamicLight(Light.spot(8, (float) Math.PI / 3, 0), 20, 20);
+			expected.addDynamicLight(Light.spot(8, (float) Math.PI / 3, 2), 20, 20);
+			map.step();
+			expected.step();
+
+			map.setStatsEnabled(true);
+			map.setDynamicLightDirection(id, 1);
+			map.step();
+			map.setDynamicLightDirection(id, 2);
+			map.step();
+
+			// Only lights, which reach tiles around spot light, are stamped again
+			Assert.assertTrue(map.getStats().getStampsCount() < 15);
+			Assert.assertEquals(0f, maxDifference(map, expected, 0, 0, 63, 63));
+
+			for (int x = 0; colored && x < 64; x++) {
+				for (int y = 0; y < 64; y++) {
+					Assert.assertEquals(expected.getColorAt(x, y), map.getColorAt(x, y));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void approximateLightsKeepErrorBound() {
+		Light[] lights = {
+				new Light(8), new Light(13), new Light(3, 20), new Light(50), new Light(120),
+				Light.lightSquare(30), Light.spot(40, 1f, 2f) };
+		float[] maxErrors = { 0.005f, 0.02f, 0.1f };
+
+		for (Light light : lights) {
+			int size = 2 * light.outerRadius + 3;
+
+			LightMap exact = new LightMap(size, size);
+			exact.setMeasureUpdate(false);
+			exact.addStaticLight(light, size / 2, size / 2);
+			exact.step();
+
+			for (float maxError : maxErrors) {
+				LightMap approximate = new LightMap(size, size);
+				approximate.setMeasureUpdate(false);
+				approximate.setMaxLightError(maxError);
+				approximate.addStaticLight(light, size / 2, size / 2);
+				approximate.step();
+
+				float worst = 0;
+
+				for (int x = 0; x < size; x++) {
+					for (int y = 0; y < size; y++) {
+						float error = Math.abs(exact.getLightValueAt(x, y) - approximate.getLightValueAt(x, y));
+						worst = Math.max(worst, error);
+					}
+				}
+
+				Assert.assertTrue("Error " + worst + " for radius " + light.outerRadius, worst <= maxError);
+
+				if (maxError == 0.1f && light.innerRadius < light.outerRadius) {
+					// Weak tail is really skipped
+					Assert.assertTrue(worst > 0);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void lodMergesDistantLights() {
+		int size = 128;
+		Random rnd = new Random(40);
+
+		// Crowded lights
+		LightMap crowded = new LightMap(size, size);
+		crowded.setMeasureUpdate(false);
+		crowded.addFocusPoint(new Position(20, 20));
+		crowded.setStaticLightsLod(30, 0.2f);
+
+		for (int i = 0; i < 5000; i++) {
+			crowded.addStaticLight(new Light(20), rnd.nextInt(size), rnd.nextInt(size));
+		}
+
+		crowded.step();
+
+		Assert.assertTrue(crowded.getStampedStaticLightsCount() < crowded.getStaticLightsCount() / 3);
+
+		// Sparse lights
+		LightMap exact = new LightMap(size, size);
+		LightMap lod = new LightMap(size, size);
+		exact.setMeasureUpdate(false);
+		lod.setMeasureUpdate(false);
+
+		Position focus = new Position(20, 20);
+		lod.addFocusPoint(focus);
+		lod.setStaticLightsLod(20, 0.5f);
+
+		Light light = new Light(10);
+
+		for (int i = 0; i < 100; i++) {
+			int x = rnd.nextInt(size);
+			int y = rnd.nextInt(size);
+
+			exact.addStaticLight(light, x, y);
+			lod.addStaticLight(light, x, y);
+		}
+
+		exact.step();
+		lod.step();
+
+		Assert.assertTrue(lod.getStampedStaticLightsCount() < lod.getStaticLightsCount());
+		Assert.assertTrue(maxDifference(exact, lod, 0, 0, size - 1, size - 1) > 0);
+
+		// Lights closer than LOD distance are exact
+		Assert.assertEquals(0, maxDifference(exact, lod, 14, 14, 26, 26), 1e-4f);
+
+		// Moving focus refines lights around it
+		focus.set(100, 100);
+		lod.step();
+
+		Assert.assertEquals(0, maxDifference(exact, lod, 94, 94, 106, 106), 1e-4f);
+
+		// Single distant light keeps error bound
+		LightMap single = new LightMap(size, size);
+		LightMap singleLod = new LightMap(size, size);
+		single.setMeasureUpdate(false);
+		singleLod.setMeasureUpdate(false);
+
+		singleLod.addFocusPoint(new Position(0, 0));
+		singleLod.setStaticLightsLod(10, 0.1f);
+
+		single.addStaticLight(new Light(50), 91, 88);
+		singleLod.addStaticLight(new Light(50), 91, 88);
+		single.step();
+		singleLod.step();
+
+		float worst = maxDifference(single, singleLod, 0, 0, size - 1, size - 1);
+		Assert.assertTrue("Error " + worst, 0 < worst && worst <= 0.1f);
+	}
+
+	@Test
+	public void staticLightsVersions() {
+		LightMap map = new LightMap(40, 40);
+		map.setMeasureUpdate(false);
+
+		int chunk = map.getStaticLightsVersion(1, 0);
+		int other = map.getStaticLightsVersion(0, 1);
+
+		map.addStaticLight(new Light(5), LightMap.CHUNK_SIZE + 1, 2);
+		Assert.assertTrue(map.getStaticLightsVersion(1, 0) != chunk);
+
+		chunk = map.getStaticLightsVersion(1, 0);
+		map.removeStaticLightAt(LightMap.CHUNK_SIZE + 1, 2);
+		Assert.assertTrue(map.getStaticLightsVersion(1, 0) != chunk);
+
+		map.addStaticLights(new int[] { 3 }, new int[] { 3 }, new Light[] { new Light(2) }, 1);
+		map.step();
+		Assert.assertTrue(map.getStaticLightsVersion(0, 0) != 0);
+
+		// Dynamic lights don't change static geometry
+		map.addDynamicLight(new Light(5), 2, LightMap.CHUNK_SIZE + 2);
+		map.step();
+		Assert.assertEquals(other, map.getStaticLightsVersion(0, 1));
+	}
+
+	@Test
+	public void statsCountStampsAndCombines() {
+		LightMap map = new LightMap(64, 64);
+		map.setMeasureUpdate(false);
+
+		Assert.assertNull(map.getStats());
+
+		map.addStaticLight(new Light(3), 10, 10);
+		map.step();
+
+		map.setStatsEnabled(true);
+		map.addStaticLight(new Light(2), 50, 50);
+		map.step();
+
+		LightMapStats stats = map.getStats();
+
+		Assert.assertEquals(2, stats.getStampsCount());
+		Assert.assertEquals(1, stats.getStampsAt(10, 13));
+		Assert.assertEquals(0, stats.getStampsAt(10, 14));
+		Assert.assertEquals(1, stats.getCombinesAt(50, 50));
+		Assert.assertEquals(0, stats.getCombinesAt(30, 30));
+		Assert.assertTrue(stats.getPhaseTime(StepPhase.COMBINE) > 0);
+
+		map.setDynamicLightTo(map.addDynamicLight(new Light(2), 50, 50), 51, 50);
+		map.step();
+
+		Assert.assertEquals(2, stats.getStampsAt(50, 50));
+		Assert.assertEquals(2, stats.getCombinesAt(50, 50));
+
+		map.setStatsEnabled(false);
+		map.step();
+
+		Assert.assertNull(map.getStats());
+		Assert.assertTrue(map.getLightValueAt(50, 50) > 0);
+	}
+
+	@Test
+	public void memoryBudgetSpillsColdColumns() throws IOException {
+		LightMap map = new LightMap(128, 64);
+		LightMap reference = new LightMap(128, 64);
+
+		File spillFile = File.createTempFile("lightmap", ".spill");
+		spillFile.deleteOnExit();
+
+		for (LightMap m : new LightMap[] { map, reference }) {
+			m.setMeasureUpdate(false);
+
+			for (int x = 4; x < 128; x += 16) {
+				m.addStaticLight(new Light(6), x, 30);
+			}
+
+			m.addDynamicLight(new Light(4), 10, 10);
+			m.step();
+		}
+
+		// Combined light values always stay in memory
+		long budget = map.getMemoryFootprint().getTotalBytes() * 3 / 4;
+
+		map.setSpillFile(spillFile);
+		map.setMemoryBudget(budget);
+
+		// Dynamic light keeps only left columns hot
+		for (int i = 0; i < 5; i++) {
+			map.moveDynamicLight(0, 1, 0);
+			reference.moveDynamicLight(0, 1, 0);
+			map.step();
+			reference.step();
+		}
+
+		MemoryFootprint footprint = map.getMemoryFootprint();
+
+		Assert.assertTrue(footprint.getTotalBytes() <= budget);
+		Assert.assertTrue(footprint.getSpilledColumnsCount(0) > 0);
+		Assert.assertTrue(footprint.isSpilledToFile());
+		Assert.assertTrue(spillFile.length() > 0);
+
+		// Static light values are taken back from file
+		map.setDynamicLightTo(0, 100, 30);
+		reference.setDynamicLightTo(0, 100, 30);
+		map.step();
+		reference.step();
+
+		Assert.assertEquals(0f, maxDifference(map, reference, 0, 0, 127, 63));
+
+		map.setMemoryBudget(0);
+
+		Assert.assertEquals(0, map.getMemoryFootprint().getSpilledColumnsCount(0));
+		Assert.assertEquals(0, spillFile.length());
+
+		map.setSpillFile(null);
+	}
+
+	@Test
+	public void spillFileReusesFreeSpace() throws IOException {
+		LightMap map = new LightMap(128, 64);
+		map.setMeasureUpdate(false);
+
+		File spillFile = File.createTempFile("lightmap", ".spill");
+		spillFile.deleteOnExit();
+
+		for (int x = 4; x < 128; x += 8) {
+			map.addStaticLight(new Light(6), x, 30);
+		}
+
+		map.addDynamicLight(new Light(8), 0, 30);
+		map.step();
+
+		map.setSpillFile(spillFile);
+		map.setMemoryBudget(map.getMemoryFootprint().getTotalBytes() * 3 / 4);
+
+		long firstPassLength = 0;
+
+		// Each pass takes columns back around dynamic light and spills the others again
+		for (int pass = 0; pass < 20; pass++) {
+			for (int x = 0; x < 128; x += 4) {
+				map.setDynamicLightTo(0, (pass % 2 == 0) ? x : 127 - x, 30);
+				map.step();
+
+				if (pass == 0) {
+					firstPassLength = Math.max(firstPassLength, spillFile.length());
+				} else {
+					Assert.assertTrue("Spill file length " + spillFile.length(),
+							spillFile.length() <= 2 * firstPassLength);
+				}
+			}
+		}
+
+		Assert.assertTrue(firstPassLength > 0);
+
+		map.setSpillFile(null);
+	}
+
+	@Test
+	public void checkpointsRestoreState() {
+		LightMap map = new LightMap(64, 64);
+		map.setMeasureUpdate(false);
+		map.setMaxCheckpoints(2);
+
+		map.addStaticLight(new Light(5), 10, 10);
+		int dynamic = map.addDynamicLight(new Light(4), 30, 30);
+		map.step();
+
+		int first = map.checkpoint();
+		float[][] values = new float[64][];
+		for (int x = 0; x < 64; x++) {
+			values[x] = map.getLightValues()[x].clone();
+		}
+
+		map.addStaticLight(new Light(6), 50, 50);
+		map.setDynamicLightTo(dynamic, 40, 10);
+		map.addDynamicLight(new Light(3), 5, 60);
+		map.step();
+
+		map.restore(first);
+
+		Assert.assertEquals(1, map.getStaticLightsCount());
+		Assert.assertEquals(1, map.getDynamicLightsCount());
+		Assert.assertFalse(map.isConverged());
+
+		for (int i = 0; i < 2; i++) {
+			for (int x = 0; x < 64; x++) {
+				for (int y = 0; y < 64; y++) {
+					Assert.assertEquals(values[x][y], map.getLightValueAt(x, y));
+				}
+			}
+
+			// Recount of restored layers doesn't change light values
+			map.step();
+		}
+
+		// The same ids are given again
+		Assert.assertEquals(dynamic + 1, map.addDynamicLight(new Light(3), 5, 60));
+
+		map.checkpoint();
+		map.checkpoint();
+
+		Assert.assertFalse(map.hasCheckpoint(first));
+
+		try {
+			map.restore(first);
+			Assert.fail("Forgotten checkpoint is restored");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void restoreUndoesChangedLightsOnly() {
+		LightMap map = new LightMap(128, 128, LightEngine.FLOOD_FILL);
+		map.setMeasureUpdate(false);
+
+		Random r = new Random(45);
+		for (int i = 0; i < 300; i++) {
+			map.addStaticLight(new Light(1 + r.nextInt(5)), r.nextInt(128), r.nextInt(128));
+		}
+		int dynamic = map.addDynamicLight(new Light(4), 30, 30);
+		map.step();
+
+		int checkpoint = map.checkpoint();
+		map.addStaticLight(new Light(6), 50, 50);
+		map.setDynamicLightTo(dynamic, 40, 10);
+		map.setOpaque(20, 20, true);
+		map.step();
+
+		map.setStatsEnabled(true);
+		map.restore(checkpoint);
+		map.step();
+
+		// Changed lights are undone right away, layers aren't recounted
+		Assert.assertEquals(0, map.getStats().getStampsCount());
+		Assert.assertTrue(map.getStats().getCombinedChunksCount() < 16);
+		Assert.assertFalse(map.isOpaque(20, 20));
+	}
+
+	@Test
+	public void restoreDuringProgressiveStep() {
+		LightMap map = new LightMap(40, 40, LightEngine.FLOOD_FILL);
+		map.setMeasureUpdate(false);
+
+		int a = map.addDynamicLight(new Light(3), 5, 5);
+		int b = map.addDynamicLight(new Light(3), 30, 30);
+		map.step();
+
+		int checkpoint = map.checkpoint();
+		map.setDynamicLightTo(a, 10, 5);
+		map.step();
+
+		map.restore(checkpoint);
+		// Lights keep changing while restored chunks are combined one by one
+		map.step(1);
+		int c = map.addDynamicLight(new Light(3), 20, 10);
+		map.step(1);
+		map.removeDynamicLight(b);
+		map.step(1);
+		map.setDynamicLightTo(c, 20, 12);
+
+		while (! map.step(1)) {}
+
+		LightMap expected = new LightMap(40, 40, LightEngine.FLOOD_FILL);
+		expected.setMeasureUpdate(false);
+		expected.addDynamicLight(new Light(3), 5, 5);
+		expected.addDynamicLight(new Light(3), 20, 12);
+		expected.step();
+
+		Assert.assertEquals(2, map.getDynamicLightsCount());
+		Assert.assertEquals(0f, maxDifference(map, expected, 0, 0, 39, 39));
+	}
+
+	private static float maxDifference(LightMap a, LightMap b, int fromX, int fromY, int toX, int toY) {
+		float worst = 0;
+
+		for (int x = fromX; x <= toX; x++) {
+			for (int y = fromY; y <= toY; y++) {
+				worst = Math.max(worst, Math.abs(a.getLightValueAt(x, y) - b.getLightValueAt(x, y)));
+			}
+		}
+
+		return worst;
+	}
 }
@@ -0,0 +1,93 @@
+package io.github.dector.lightmap.core.test;
+
+import io.github.dector.lightmap.core.Light;
+import io.github.dector.lightmap.core.LightEngine;
+import io.github.dector.lightmap.core.LightMap;
+import io.github.dector.lightmap.shard.LightShard;
+import io.github.dector.lightmap.shard.LoopbackTransport;
+import io.github.dector.lightmap.shard.ShardLayout;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * @author dector
+ */
+public class LightShardTest {
+
+	@Test
+	public void shardsMatchWholeMap() {
+		int w = 60;
+		int h = 45;
+		int halo = 6;
+
+		ShardLayout layout = new ShardLayout(w, h, 20, 15);
+		LoopbackTransport transport = new LoopbackTransport(layout.getShardsCount());
+
+		LightShard[] shards = new LightShard[layout.getShardsCount()];
+		for (int s = 0; s < shards.length; s++) {
+			shards[s] = new LightShard(layout, s, halo, LightEngine.FIXED_POINT, transport);
+			shards[s].getMap().setMeasureUpdate(false);
+		}
+
+		LightMap expected = new LightMap(w, h, LightEngine.FIXED_POINT);
+		expected.setMeasureUpdate(false);
+
+		Random r = new Random(37);
+		for (int i = 0; i < 150; i++) {
+			int x = r.nextInt(w);
+			int y = r.nextInt(h);
+			Light light = new Light(r.nextInt(halo + 1));
+
+			expected.addStaticLight(light, x, y);
+			shards[layout.getShardAt(x, y)].addStaticLight(light, x, y);
+		}
+
+		LightShard center = shards[layout.getShardAt(30, 20)];
+		int expectedId = expected.addDynamicLight(new Light(5), 21, 16);
+		int id = center.addDynamicLight(new Light(5), 21, 16);
+
+		stepAll(shards);
+		assertSame(expected, shards, layout);
+
+		expected.setDynamicLightTo(expectedId, 38, 28);
+		center.setDynamicLightTo(id, 38, 28);
+		expected.removeStaticLightAt(19, 14);
+		shards[layout.getShardAt(19, 14)].removeStaticLightAt(19, 14);
+		expected.addStaticLight(new Light(2), 40, 30);
+		shards[layout.getShardAt(40, 30)].addStaticLight(new Light(2), 40, 30);
+
+		stepAll(shards);
+		assertSame(expected, shards, layout);
+
+		try {
+			center.addStaticLight(new Light(halo + 1), 30, 20);
+			Assert.fail("Light bigger than halo should be rejected");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	/**
+	 * Two rounds, so each shard gets changes of shards stepped after it.
+	 */
+	private static void stepAll(LightShard[] shards) {
+		for (int round = 0; round < 2; round++) {
+			for (LightShard shard : shards) {
+				shard.step();
+			}
+		}
+	}
+
+	private static void assertSame(LightMap expected, LightShard[] shards, ShardLayout layout) {
+		expected.step();
+
+		for (int x = 0; x < expected.getWidth(); x++) {
+			for (int y = 0; y < expected.getHeight(); y++) {
+				Assert.assertEquals("Light value at " + x + ":" + y, expected.getLightValueAt(x, y),
+						shards[layout.getShardAt(x, y)].getLightValueAt(x, y), 1e-6f);
+			}
+		}
+	}
+}
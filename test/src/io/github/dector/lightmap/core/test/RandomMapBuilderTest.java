@@ -0,0 +1,75 @@
+package io.github.dector.lightmap.core.test;
+
+import io.github.dector.lightmap.core.Light;
+import io.github.dector.lightmap.core.LightMap;
+import io.github.dector.lightmap.core.LightVisitor;
+import io.github.dector.lightmap.utils.Placement;
+import io.github.dector.lightmap.utils.RadiusDistribution;
+import io.github.dector.lightmap.utils.RandomMapBuilder;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author dector
+ */
+public class RandomMapBuilderTest {
+
+	@Test
+	public void reproducible() {
+		for (Placement placement : Placement.values()) {
+			List<String> sequential = staticLights(build(placement, 7, 1));
+			List<String> parallel = staticLights(build(placement, 7, 4));
+			List<String> otherSeed = staticLights(build(placement, 8, 1));
+
+			Assert.assertEquals(placement.name(), sequential, parallel);
+			Assert.assertFalse(placement.name(), sequential.equals(otherSeed));
+			Assert.assertTrue(placement.name(), sequential.size() > 10000);
+		}
+	}
+
+	@Test
+	public void poissonDiskKeepsDistance() {
+		LightMap map = build(Placement.POISSON_DISK, 1, 2).getMap();
+
+		final boolean[][] lit = new boolean[map.getWidth()][map.getHeight()];
+		map.forEachStaticLight(new LightVisitor() {
+			@Override
+			public void visit(int x, int y, Light light) {
+				lit[x][y] = true;
+			}
+		});
+
+		// Min distance for 80000 lights on 600x600 map is more than one tile
+		for (int x = 0; x < map.getWidth() - 1; x++) {
+			for (int y = 0; y < map.getHeight() - 1; y++) {
+				if (! lit[x][y]) continue;
+
+				Assert.assertFalse(lit[x + 1][y] || lit[x][y + 1]);
+			}
+		}
+	}
+
+	private static RandomMapBuilder build(Placement placement, long seed, int threads) {
+		return new RandomMapBuilder()
+				.width(600).height(600)
+				.staticCount(80000).staticMaxRadius(10)
+				.placement(placement).radiusDistribution(RadiusDistribution.SMALL_BIASED)
+				.seed(seed).threads(threads).build();
+	}
+
+	private static List<String> staticLights(RandomMapBuilder builder) {
+		final List<String> lights = new ArrayList<String>();
+
+		builder.getMap().forEachStaticLight(new LightVisitor() {
+			@Override
+			public void visit(int x, int y, Light light) {
+				lights.add(x + ":" + y + ":" + light.outerRadius);
+			}
+		});
+
+		return lights;
+	}
+}
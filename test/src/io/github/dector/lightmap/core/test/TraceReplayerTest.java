@@ -0,0 +1,79 @@
+package io.github.dector.lightmap.core.test;
+
+import io.github.dector.lightmap.core.BlendMode;
+import io.github.dector.lightmap.core.Light;
+import io.github.dector.lightmap.core.LightEngine;
+import io.github.dector.lightmap.core.LightLayer;
+import io.github.dector.lightmap.core.LightMap;
+import io.github.dector.lightmap.trace.LightMapRecorder;
+import io.github.dector.lightmap.trace.ReplayReport;
+import io.github.dector.lightmap.trace.TraceReplayer;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * @author dector
+ */
+public class TraceReplayerTest {
+
+	@Test
+	public void replayRestoresMap() throws IOException {
+		LightMap map = new LightMap(40, 30);
+		map.setMeasureUpdate(false);
+
+		// State before recording goes to trace too
+		map.addStaticLight(new Light(4), 5, 5);
+		map.addAmbientLayer("day", BlendMode.ADD, 0.1f);
+		int playerId = map.addDynamicLight(new Light(3), 10, 10);
+		map.step();
+
+		LightMapRecorder recorder = new LightMapRecorder(map);
+		ByteArrayOutputStream trace = new ByteArrayOutputStream();
+		recorder.start(trace);
+
+		LightLayer fire = recorder.addLayer("fire", BlendMode.MAX);
+		int flashlightId = recorder.addDynamicLight(Light.spot(8, 1f, 0), 20, 15);
+		Random rnd = new Random(43);
+
+		for (int frame = 0; frame < 50; frame++) {
+			recorder.moveDynamicLight(playerId, rnd.nextInt(3) - 1, rnd.nextInt(3) - 1);
+			recorder.setDynamicLightDirection(flashlightId, frame * 0.3f);
+
+			if (frame % 10 == 0) {
+				recorder.addStaticLight(new Light(1, 6), rnd.nextInt(40), rnd.nextInt(30));
+				recorder.addLight(fire, new Light(2), rnd.nextInt(40), rnd.nextInt(30));
+			}
+
+			if (frame == 25) {
+				recorder.removeStaticLightAt(5, 5);
+				recorder.removeDynamicLight(playerId);
+			}
+
+			recorder.step();
+		}
+
+		recorder.stop();
+
+		TraceReplayer replayer = new TraceReplayer();
+		ReplayReport report = replayer.replay(trace.toByteArray());
+		LightMap replayed = replayer.getMap();
+
+		Assert.assertEquals(50, report.getStepsCount());
+		Assert.assertTrue(report.getStepTime(50) <= report.getMaxStepTime());
+		Assert.assertEquals(map.getLayersCount(), replayed.getLayersCount());
+
+		for (int x = 0; x < 40; x++) {
+			for (int y = 0; y < 30; y++) {
+				Assert.assertEquals(map.getLightValueAt(x, y), replayed.getLightValueAt(x, y), 1e-6f);
+			}
+		}
+
+		// The same workload on other engine
+		report = new TraceReplayer().engine(LightEngine.FLOOD_FILL).replay(trace.toByteArray());
+		Assert.assertEquals(50, report.getStepsCount());
+	}
+}
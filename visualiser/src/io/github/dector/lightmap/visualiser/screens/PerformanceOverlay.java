@@ -0,0 +1,268 @@
+package io.github.dector.lightmap.visualiser.screens;
+
+import com.badlogic.gdx.graphics.Pixmap;
+import com.badlogic.gdx.graphics.Texture;
+import com.badlogic.gdx.graphics.g2d.BitmapFont;
+import com.badlogic.gdx.graphics.g2d.SpriteBatch;
+import com.badlogic.gdx.utils.Disposable;
+import io.github.dector.lightmap.core.LightMap;
+import io.github.dector.lightmap.core.LightMapStats;
+import io.github.dector.lightmap.core.MemoryFootprint;
+import io.github.dector.lightmap.core.StepPhase;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Shows frame and {@link LightMap#step()} phase times graph, allocation rate and light counts.
+ * Heatmap tints tiles by stamps or combines from {@link LightMapStats}.
+ *
+ * Map stats are on only while overlay or heatmap is shown.
+ *
+ * @author dector
+ */
+class PerformanceOverlay implements Disposable {
+
+	enum Heatmap {
+		OFF, STAMPS, COMBINES
+	}
+
+	private static final int FRAMES = 120;
+
+	/** Frame time at the top of graph */
+	private static final float GRAPH_MAX_MS = 50;
+	private static final int GRAPH_HEIGHT = 100;
+	private static final int BAR_WIDTH = 2;
+
+	/** Text isn't updated every frame, so it's readable and doesn't allocate much */
+	private static final int TEXT_UPDATE_FRAMES = 15;
+
+	private static final float[][] PHASE_COLORS = {
+			{ 0.3f, 0.6f, 1, 1 },	// EDITS
+			{ 1, 0.4f, 0.2f, 1 },	// RECOUNT
+			{ 1, 0.9f, 0.2f, 1 }	// COMBINE
+	};
+
+	private final LightMap map;
+	private final BitmapFont font;
+	private final Texture pixel;
+
+	private final com.sun.management.ThreadMXBean threadBean;
+
+	private boolean visible;
+	private Heatmap heatmap = Heatmap.OFF;
+
+	/** In milliseconds, ring buffers */
+	private final float[] frameTimes = new float[FRAMES];
+	private final float[][] phaseTimes = new float[StepPhase.values().length][FRAMES];
+	private int frame;
+
+	private long allocatedBytes;
+	private float allocationRate;
+
+	private final StringBuilder text = new StringBuilder();
+
+	PerformanceOverlay(LightMap map, BitmapFont font) {
+		this.map = map;
+		this.font = font;
+
+		Pixmap pixmap = new Pixmap(1, 1, Pixmap.Format.RGBA8888);
+		pixmap.setColor(1, 1, 1, 1);
+		pixmap.fill();
+		pixel = new Texture(pixmap);
+		pixmap.dispose();
+
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+		if (bean instanceof com.sun.management.ThreadMXBean
+				&& ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+			threadBean = (com.sun.management.ThreadMXBean) bean;
+		} else {
+			threadBean = null;
+		}
+	}
+
+	void toggle() {
+		visible = ! visible;
+		updateStatsEnabled();
+	}
+
+	void nextHeatmap() {
+		heatmap = Heatmap.values()[(heatmap.ordinal() + 1) % Heatmap.values().length];
+		updateStatsEnabled();
+
+		if (map.getStats() != null) {
+			map.getStats().resetHeat();
+		}
+	}
+
+	private void updateStatsEnabled() {
+		map.setStatsEnabled(visible || heatmap != Heatmap.OFF);
+	}
+
+	/**
+	 * Call once per frame after {@link LightMap#step()}.
+	 */
+	void update(float delta) {
+		LightMapStats stats = map.getStats();
+
+		if (stats == null) return;
+
+		int i = frame % FRAMES;
+
+		frameTimes[i] = delta * 1000;
+
+		for (StepPhase phase : StepPhase.values()) {
+			phaseTimes[phase.ordinal()][i] = stats.getPhaseTime(phase) / 1000000f;
+		}
+
+		if (threadBean != null) {
+			long bytes = threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+
+			if (allocatedBytes != 0 && delta > 0) {
+				// Smoothed
+				allocationRate += ((bytes - allocatedBytes) / delta - allocationRate) * 0.1f;
+			}
+
+			allocatedBytes = bytes;
+		}
+
+		if (frame % TEXT_UPDATE_FRAMES == 0) {
+			updateText(stats);
+		}
+
+		frame++;
+	}
+
+	private void updateText(LightMapStats stats) {
+		text.setLength(0);
+
+		text.append("Frame: ").append(format(average(frameTimes))).append(" ms\n");
+
+		for (StepPhase phase : StepPhase.values()) {
+			text.append(phase).append(": ").append(format(average(phaseTimes[phase.ordinal()]))).append(" ms\n");
+		}
+
+		text.append("Allocation: ");
+		if (threadBean != null) {
+			text.append(format(allocationRate / (1 << 20))).append(" MB/s\n");
+		} else {
+			text.append("n/a\n");
+		}
+
+		text.append("Static lights: ").append(map.getStaticLightsCount())
+				.append(" (").append(map.getStampedStaticLightsCount()).append(" stamped)\n");
+		text.append("Dynamic lights: ").append(map.getDynamicLightsCount()).append("\n");
+		text.append("Stamps: ").append(stats.getStampsCount())
+				.append(", chunks: ").append(stats.getCombinedChunksCount()).append("\n");
+		MemoryFootprint memory = map.getMemoryFootprint();
+		text.append("Memory: ").append(format(memory.getTotalBytes() / 1024f)).append(" KB");
+		for (int i = 0; i < memory.getLayersCount(); i++) {
+			if (memory.getSpilledColumnsCount(i) > 0) {
+				text.append(", ").append(memory.getLayerName(i)).append(" ")
+						.append(memory.getSpilledColumnsCount(i)).append(" spilled");
+			}
+		}
+		text.append("\n");
+
+		text.append("Heatmap [F5]: ").append(heatmap).append("\n");
+	}
+
+	/**
+	 * Tints tiles within rectangle (inclusive) by heat. Call between <code>batch.begin()</code> and <code>end()</code>.
+	 */
+	void drawHeatmap(SpriteBatch batch, int fromX, int fromY, int toX, int toY, int tileW, int tileH) {
+		LightMapStats stats = map.getStats();
+
+		if (heatmap == Heatmap.OFF || stats == null) return;
+
+		int max = 1;
+
+		for (int x = fromX; x <= toX; x++) {
+			for (int y = fromY; y <= toY; y++) {
+				max = Math.max(max, heat(stats, x, y));
+			}
+		}
+
+		for (int x = fromX; x <= toX; x++) {
+			for (int y = fromY; y <= toY; y++) {
+				int heat = heat(stats, x, y);
+
+				if (heat == 0) continue;
+
+				float h = (float) heat / max;
+
+				batch.setColor(h, 0.2f, 1 - h, 0.6f);
+				batch.draw(pixel, x * tileW, y * tileH, tileW, tileH);
+			}
+		}
+
+		batch.setColor(1, 1, 1, 1);
+	}
+
+	private int heat(LightMapStats stats, int x, int y) {
+		return (heatmap == Heatmap.STAMPS) ? stats.getStampsAt(x, y) : stats.getCombinesAt(x, y);
+	}
+
+	/**
+	 * Draws graph and text at top right corner of screen.
+	 */
+	void draw(SpriteBatch hudBatch, int screenWidth, int screenHeight) {
+		if (! visible || map.getStats() == null) return;
+
+		int graphWidth = FRAMES * BAR_WIDTH;
+		int left = screenWidth - graphWidth - 10;
+		int bottom = screenHeight - GRAPH_HEIGHT - 10;
+		float scale = GRAPH_HEIGHT / GRAPH_MAX_MS;
+
+		hudBatch.setColor(0, 0, 0, 0.6f);
+		hudBatch.draw(pixel, left, bottom, graphWidth, GRAPH_HEIGHT);
+
+		// Oldest frame on the left
+		for (int k = 0; k < FRAMES; k++) {
+			int i = (frame + k) % FRAMES;
+			int x = left + k * BAR_WIDTH;
+
+			hudBatch.setColor(0.5f, 0.5f, 0.5f, 1);
+			hudBatch.draw(pixel, x, bottom, BAR_WIDTH, Math.min(frameTimes[i] * scale, GRAPH_HEIGHT));
+
+			// Phases are stacked
+			float y = bottom;
+
+			for (int p = 0; p < phaseTimes.length; p++) {
+				float h = Math.min(phaseTimes[p][i] * scale, bottom + GRAPH_HEIGHT - y);
+				float[] color = PHASE_COLORS[p];
+
+				hudBatch.setColor(color[0], color[1], color[2], color[3]);
+				hudBatch.draw(pixel, x, y, BAR_WIDTH, h);
+				y += h;
+			}
+		}
+
+		hudBatch.setColor(1, 1, 1, 1);
+
+		font.drawMultiLine(hudBatch, text, left, bottom - 10);
+	}
+
+	private static float average(float[] values) {
+		float sum = 0;
+
+		for (float v : values) {
+			sum += v;
+		}
+
+		return sum / values.length;
+	}
+
+	/**
+	 * Two digits after point.
+	 */
+	private static String format(float value) {
+		return String.valueOf(Math.round(value * 100) / 100f);
+	}
+
+	@Override
+	public void dispose() {
+		pixel.dispose();
+	}
+}
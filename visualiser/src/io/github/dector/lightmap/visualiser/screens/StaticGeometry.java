@@ -0,0 +1,366 @@
+package io.github.dector.lightmap.visualiser.screens;
+
+import com.badlogic.gdx.graphics.g2d.SpriteCache;
+import com.badlogic.gdx.graphics.g2d.TextureRegion;
+import com.badlogic.gdx.math.Matrix4;
+import com.badlogic.gdx.utils.Disposable;
+import io.github.dector.lightmap.core.Light;
+import io.github.dector.lightmap.core.LightMap;
+import io.github.dector.lightmap.core.LightVisitor;
+
+/**
+ * Tiles and static light icons, cached in {@link SpriteCache}s, so they aren't sent to GPU every frame.
+ *
+ * All rows of chunks have the same tiles, so one row is cached and drawn with offset.
+ * Light icons are cached per chunk and cached again only for chunks,
+ * which {@link LightMap#getStaticLightsVersion(int, int)} changed.
+ * Only chunks visible by camera are drawn.
+ *
+ * @author dector
+ */
+class StaticGeometry implements Disposable {
+
+	/** In tiles */
+	private static final int CHUNK_SIZE = 2 * LightMap.CHUNK_SIZE;
+
+	private static final int MIN_LIGHTS_CAPACITY = 4;
+
+	private final LightMap map;
+	private final TextureRegion lightOnTex;
+	private final TextureRegion lightOffTex;
+	private final int tileW;
+	private final int tileH;
+
+	private final int chunksX;
+	private final int chunksY;
+	private final int mapChunksX;
+	private final int mapChunksY;
+
+	/** Row of tiles, column by column */
+	private final SpriteCache tilesCache;
+	private final int fullRowId;
+	/** Row, cut by top map border */
+	private final int topRowId;
+
+	private SpriteCache lightsCache;
+	private final int[] lightsIds;
+	/** Chunk caches can't grow, so they are created with spare sprites */
+	private final int[] lightsCapacity;
+	private final int[] lightsCount;
+	private final int[] versions;
+	private final boolean[] changed;
+
+	// Lights of changed chunks
+	private int[] lightXs = new int[16];
+	private int[] lightYs = new int[16];
+	private boolean[] lightOn = new boolean[16];
+	private int[] lightChunks = new int[16];
+	private int collected;
+
+	/** Collected lights, sorted by chunk */
+	private int[] order = new int[16];
+	/** Start of chunk lights in {@link #order} */
+	private final int[] chunkOffsets;
+
+	private final Matrix4 transform = new Matrix4();
+
+	private final LightVisitor collector = new LightVisitor() {
+		@Override
+		public void visit(int x, int y, Light light) {
+			if (x < 0 || y < 0 || x >= map.getWidth() || y >= map.getHeight()) return;
+
+			int chunk = (y / CHUNK_SIZE) * chunksX + x / CHUNK_SIZE;
+
+			if (! changed[chunk]) return;
+
+			if (collected == lightXs.length) {
+				growCollected();
+			}
+
+			lightXs[collected] = x;
+			lightYs[collected] = y;
+			lightOn[collected] = light.isOn();
+			lightChunks[collected] = chunk;
+			collected++;
+		}
+	};
+
+	StaticGeometry(LightMap map, TextureRegion tileTex, TextureRegion lightOnTex, TextureRegion lightOffTex,
+				   int tileW, int tileH) {
+		this.map = map;
+		this.lightOnTex = lightOnTex;
+		this.lightOffTex = lightOffTex;
+		this.tileW = tileW;
+		this.tileH = tileH;
+
+		int width = map.getWidth();
+		int height = map.getHeight();
+
+		chunksX = (width + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		chunksY = (height + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		mapChunksX = (width + LightMap.CHUNK_SIZE - 1) / LightMap.CHUNK_SIZE;
+		mapChunksY = (height + LightMap.CHUNK_SIZE - 1) / LightMap.CHUNK_SIZE;
+
+		int fullRowHeight = (height >= CHUNK_SIZE) ? CHUNK_SIZE : 0;
+		int topRowHeight = height % CHUNK_SIZE;
+
+		tilesCache = new SpriteCache(Math.max(width * (fullRowHeight + topRowHeight), 1), false);
+		fullRowId = (fullRowHeight > 0) ? cacheTilesRow(tileTex, width, fullRowHeight) : -1;
+		topRowId = (topRowHeight > 0) ? cacheTilesRow(tileTex, width, topRowHeight) : -1;
+
+		int chunks = chunksX * chunksY;
+
+		lightsIds = new int[chunks];
+		lightsCapacity = new int[chunks];
+		lightsCount = new int[chunks];
+		versions = new int[chunks];
+		changed = new boolean[chunks];
+		chunkOffsets = new int[chunks + 1];
+	}
+
+	private int cacheTilesRow(TextureRegion tileTex, int width, int height) {
+		tilesCache.beginCache();
+
+		for (int x = 0; x < width; x++) {
+			for (int y = 0; y < height; y++) {
+				tilesCache.add(tileTex, x * tileW, y * tileH, tileW, tileH);
+			}
+		}
+
+		return tilesCache.endCache();
+	}
+
+	/**
+	 * Draws tiles and light icons within tiles rectangle (inclusive).
+	 */
+	void draw(Matrix4 projection, int fromX, int fromY, int toX, int toY) {
+		updateLights();
+
+		int fromChunkX = fromX / CHUNK_SIZE;
+		int fromChunkY = fromY / CHUNK_SIZE;
+		int toChunkX = toX / CHUNK_SIZE;
+		int toChunkY = toY / CHUNK_SIZE;
+
+		// Tiles
+		tilesCache.setProjectionMatrix(projection);
+
+		for (int cy = fromChunkY; cy <= toChunkY; cy++) {
+			boolean top = (cy + 1) * CHUNK_SIZE > map.getHeight();
+			int rowHeight = top ? map.getHeight() - cy * CHUNK_SIZE : CHUNK_SIZE;
+
+			transform.setToTranslation(0, cy * CHUNK_SIZE * tileH, 0);
+			tilesCache.setTransformMatrix(transform);
+
+			tilesCache.begin();
+			tilesCache.draw(top ? topRowId : fullRowId, fromX * rowHeight, (toX - fromX + 1) * rowHeight);
+			tilesCache.end();
+		}
+
+		// Lights
+		lightsCache.setProjectionMatrix(projection);
+		lightsCache.begin();
+
+		for (int cy = fromChunkY; cy <= toChunkY; cy++) {
+			for (int cx = fromChunkX; cx <= toChunkX; cx++) {
+				int chunk = cy * chunksX + cx;
+
+				if (lightsCount[chunk] > 0) {
+					lightsCache.draw(lightsIds[chunk], 0, lightsCount[chunk]);
+				}
+			}
+		}
+
+		lightsCache.end();
+	}
+
+	private void updateLights() {
+		boolean rebuild = lightsCache == null;
+		boolean anyChanged = rebuild;
+
+		for (int cy = 0; cy < chunksY; cy++) {
+			for (int cx = 0; cx < chunksX; cx++) {
+				int chunk = cy * chunksX + cx;
+				int version = version(cx, cy);
+
+				if (rebuild || version != versions[chunk]) {
+					versions[chunk] = version;
+					changed[chunk] = true;
+					anyChanged = true;
+				}
+			}
+		}
+
+		if (! anyChanged) return;
+
+		collectLights();
+
+		for (int chunk = 0; chunk < changed.length && ! rebuild; chunk++) {
+			rebuild = changed[chunk] && lightsInChunk(chunk) > lightsCapacity[chunk];
+		}
+
+		if (rebuild) {
+			rebuildLights();
+		} else {
+			for (int chunk = 0; chunk < changed.length; chunk++) {
+				if (! changed[chunk]) continue;
+
+				lightsCache.beginCache(lightsIds[chunk]);
+				lightsCount[chunk] = cacheLights(chunk);
+				lightsCache.endCache();
+			}
+		}
+
+		for (int chunk = 0; chunk < changed.length; chunk++) {
+			changed[chunk] = false;
+		}
+	}
+
+	/**
+	 * Caches all chunks again, with more spare sprites.
+	 */
+	private void rebuildLights() {
+		for (int chunk = 0; chunk < changed.length; chunk++) {
+			changed[chunk] = true;
+		}
+
+		collectLights();
+
+		int total = 0;
+
+		for (int chunk = 0; chunk < changed.length; chunk++) {
+			int count = lightsInChunk(chunk);
+
+			lightsCapacity[chunk] = Math.max(MIN_LIGHTS_CAPACITY, Integer.highestOneBit(count) * 2);
+			total += lightsCapacity[chunk];
+		}
+
+		if (lightsCache != null) {
+			lightsCache.dispose();
+		}
+
+		lightsCache = new SpriteCache(total, false);
+
+		for (int chunk = 0; chunk < changed.length; chunk++) {
+			lightsCache.beginCache();
+
+			lightsCount[chunk] = cacheLights(chunk);
+
+			// Reserve space for lights added later
+			for (int i = lightsCount[chunk]; i < lightsCapacity[chunk]; i++) {
+				lightsCache.add(lightOnTex, 0, 0, 0, 0);
+			}
+
+			lightsIds[chunk] = lightsCache.endCache();
+		}
+	}
+
+	/**
+	 * @return number of cached lights
+	 */
+	private int cacheLights(int chunk) {
+		int from = chunkOffsets[chunk];
+		int to = chunkOffsets[chunk + 1];
+
+		// Group by texture
+		for (int i = from; i < to; i++) {
+			int light = order[i];
+
+			if (lightOn[light]) {
+				lightsCache.add(lightOnTex, lightXs[light] * tileW, lightYs[light] * tileH, tileW, tileH);
+			}
+		}
+
+		for (int i = from; i < to; i++) {
+			int light = order[i];
+
+			if (! lightOn[light]) {
+				lightsCache.add(lightOffTex, lightXs[light] * tileW, lightYs[light] * tileH, tileW, tileH);
+			}
+		}
+
+		return to - from;
+	}
+
+	private int lightsInChunk(int chunk) {
+		return chunkOffsets[chunk + 1] - chunkOffsets[chunk];
+	}
+
+	/**
+	 * Collects lights of changed chunks and sorts them by chunk.
+	 */
+	private void collectLights() {
+		collected = 0;
+		map.forEachStaticLight(collector);
+
+		for (int i = 0; i < chunkOffsets.length; i++) {
+			chunkOffsets[i] = 0;
+		}
+
+		for (int i = 0; i < collected; i++) {
+			chunkOffsets[lightChunks[i] + 1]++;
+		}
+
+		for (int chunk = 0; chunk < changed.length; chunk++) {
+			chunkOffsets[chunk + 1] += chunkOffsets[chunk];
+		}
+
+		if (order.length < collected) {
+			order = new int[lightXs.length];
+		}
+
+		for (int i = 0; i < collected; i++) {
+			order[chunkOffsets[lightChunks[i]]++] = i;
+		}
+
+		// Offsets were moved to chunk ends
+		for (int chunk = changed.length; chunk > 0; chunk--) {
+			chunkOffsets[chunk] = chunkOffsets[chunk - 1];
+		}
+
+		chunkOffsets[0] = 0;
+	}
+
+	private void growCollected() {
+		int capacity = lightXs.length * 2;
+
+		int[] xs = new int[capacity];
+		int[] ys = new int[capacity];
+		boolean[] on = new boolean[capacity];
+		int[] chunks = new int[capacity];
+
+		System.arraycopy(lightXs, 0, xs, 0, collected);
+		System.arraycopy(lightYs, 0, ys, 0, collected);
+		System.arraycopy(lightOn, 0, on, 0, collected);
+		System.arraycopy(lightChunks, 0, chunks, 0, collected);
+
+		lightXs = xs;
+		lightYs = ys;
+		lightOn = on;
+		lightChunks = chunks;
+	}
+
+	/**
+	 * Sum of versions of map chunks, covered by this chunk. Grows with each change.
+	 */
+	private int version(int cx, int cy) {
+		int scale = CHUNK_SIZE / LightMap.CHUNK_SIZE;
+		int version = 0;
+
+		for (int x = cx * scale; x < Math.min((cx + 1) * scale, mapChunksX); x++) {
+			for (int y = cy * scale; y < Math.min((cy + 1) * scale, mapChunksY); y++) {
+				version += map.getStaticLightsVersion(x, y);
+			}
+		}
+
+		return version;
+	}
+
+	@Override
+	public void dispose() {
+		tilesCache.dispose();
+
+		if (lightsCache != null) {
+			lightsCache.dispose();
+		}
+	}
+}
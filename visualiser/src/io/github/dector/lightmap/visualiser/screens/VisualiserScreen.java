@@ -11,9 +11,12 @@ import com.badlogic.gdx.math.Vector3;
 import io.github.dector.lightmap.core.Light;
 import io.github.dector.lightmap.core.LightMap;
 import io.github.dector.lightmap.core.Position;
+import io.github.dector.lightmap.trace.LightMapRecorder;
 import io.github.dector.lightmap.utils.RandomMapBuilder;
 import io.github.dector.lightmap.visualiser.assets.AssetsLoader;
 
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.util.Random;
 
 import static com.badlogic.gdx.Input.Keys;
@@ -33,6 +36,10 @@ public class VisualiserScreen extends AbstractScreen {
 	public static final Position LAST_TILE_POS = new Position();
 
 	private LightMap map;
+	/** All changes go through it, so they can be recorded */
+	private LightMapRecorder recorder;
+	private StaticGeometry staticGeometry;
+	private PerformanceOverlay performanceOverlay;
 
 	private SpriteBatch batch;
 	private SpriteBatch hudBatch;
@@ -52,6 +59,10 @@ public class VisualiserScreen extends AbstractScreen {
 
 	private String infoString;
 
+	private final Position fromTile = new Position();
+	private final Position toTile = new Position();
+	private final Position tmpTilePos = new Position();
+
 	public VisualiserScreen() {
 		batch = new SpriteBatch();
 		hudBatch = new SpriteBatch();
@@ -98,6 +109,10 @@ public class VisualiserScreen extends AbstractScreen {
 			dynamicLightId = map.addDynamicLight(new Light(3), new Position(playerPos));
 		}
 
+		recorder = new LightMapRecorder(map);
+		staticGeometry = new StaticGeometry(map, tileTex, lightSourceOnTex, lightSourceOffTex, TILE_W, TILE_H);
+		performanceOverlay = new PerformanceOverlay(map, font);
+
 		FIRST_TILE_POS.set(0, 0);
 		LAST_TILE_POS.set(map.getWidth() - 1, map.getHeight() - 1);
 
@@ -126,6 +141,9 @@ public class VisualiserScreen extends AbstractScreen {
 		sbuilder.append("[Scroll] elsewhere to zoom\n");
 		sbuilder.append("[F2] to toggle darkness\n");
 		sbuilder.append("[F3] to center map\n");
+		sbuilder.append("[F4] to toggle performance overlay\n");
+		sbuilder.append("[F5] to switch heatmap\n");
+		sbuilder.append("[F6] to start/stop recording trace\n");
 		sbuilder.append("[Arrows] to move player\n");
 		sbuilder.append("[R] to put player in random position\n");
 		sbuilder.append("[T] to put dynamic lights in random positions\n");
@@ -145,53 +163,45 @@ public class VisualiserScreen extends AbstractScreen {
 	public void render(float delta) {
 		Gdx.gl.glClear(GL10.GL_COLOR_BUFFER_BIT);
 
-		map.step();
+		recorder.step();
+		performanceOverlay.update(delta);
 
 		cam.update();
-		batch.setProjectionMatrix(cam.combined);
-		batch.begin();
-		batch.setColor(1, 1, 1, 1);
-
-		Position fromTile = getTilePositionAtOrFirst(0, 0);
-		Position toTile = getTilePositionAtOrLast(getWidth() + TILE_W, getHeight() + TILE_H);
 
-		// Draw tiles
-		for (int i = fromTile.x; i < toTile.x; i++) {
-			for (int j = fromTile.y; j < toTile.y; j++) {
-				draw(tileTex, i, j);
-			}
-		}
+		getTilePositionAtOrFirst(0, 0, fromTile);
+		getTilePositionAtOrLast(getWidth() + TILE_W, getHeight() + TILE_H, toTile);
 
-		// Draw lights
-		for (Position p : map.getStaticLightsPositions()) {
-			if (isTileOutOfRange(p, fromTile, toTile)) continue;
+		// Draw tiles and lights
+		Gdx.gl.glEnable(GL10.GL_BLEND);
+		Gdx.gl.glBlendFunc(GL10.GL_SRC_ALPHA, GL10.GL_ONE_MINUS_SRC_ALPHA);
+		staticGeometry.draw(cam.combined, fromTile.x, fromTile.y, toTile.x, toTile.y);
 
-			if (map.getStaticLightAt(p).isOn()) {
-				draw(lightSourceOnTex, p.x, p.y);
-			} else {
-				draw(lightSourceOffTex, p.x, p.y);
-			}
-		}
+		batch.setProjectionMatrix(cam.combined);
+		batch.begin();
+		batch.setColor(1, 1, 1, 1);
 
 		// Draw player
-		if (! isTileOutOfRange(playerPos, fromTile, toTile)) {
+		if (! isTileOutOfRange(playerPos.x, playerPos.y, fromTile, toTile)) {
 			draw(playerTex, playerPos.x, playerPos.y);
 		}
 
 		// Draw darkness
 		if (affectLights) {
-			for (int i = fromTile.x; i < toTile.x; i++) {
-				for (int j = fromTile.y; j < toTile.y; j++) {
+			for (int i = fromTile.x; i <= toTile.x; i++) {
+				for (int j = fromTile.y; j <= toTile.y; j++) {
 					batch.setColor(1, 1, 1, 1 - map.getLightValueAt(i, j));
 					draw(darkTex, i, j);
 				}
 			}
 		}
 
+		performanceOverlay.drawHeatmap(batch, fromTile.x, fromTile.y, toTile.x, toTile.y, TILE_W, TILE_H);
+
 		batch.end();
 
 		hudBatch.begin();
 		font.drawMultiLine(hudBatch, infoString, 10, getHeight() - 10);
+		performanceOverlay.draw(hudBatch, getWidth(), getHeight());
 		hudBatch.end();
 	}
 
@@ -199,6 +209,13 @@ public class VisualiserScreen extends AbstractScreen {
 		batch.draw(reg, x * TILE_W, y * TILE_H, TILE_W, TILE_H);
 	}
 
+	@Override
+	public void dispose() {
+		recorder.stop();
+		staticGeometry.dispose();
+		performanceOverlay.dispose();
+	}
+
 	private void centerMap() {
 		cam.position.set(map.getWidth() * TILE_W / 2, map.getHeight() * TILE_H / 2, 0);
 	}
@@ -215,6 +232,15 @@ public class VisualiserScreen extends AbstractScreen {
 			case Keys.F3:
 				centerMap();
 				break;
+			case Keys.F4:
+				performanceOverlay.toggle();
+				break;
+			case Keys.F5:
+				performanceOverlay.nextHeatmap();
+				break;
+			case Keys.F6:
+				toggleRecording();
+				break;
 			case Keys.RIGHT:
 				playerPos.x += 1;
 				movePlayer();
@@ -247,7 +273,7 @@ public class VisualiserScreen extends AbstractScreen {
 				rnd = new Random();
 
 				for (int i = 0; i < map.getDynamicLightsCount(); i++) {
-					map.setDynamicLightTo(i + 1, rnd.nextInt(map.getWidth()), rnd.nextInt(map.getHeight()));
+					recorder.setDynamicLightTo(i + 1, rnd.nextInt(map.getWidth()), rnd.nextInt(map.getHeight()));
 				}
 				break;
 			case Keys.F10:
@@ -271,7 +297,27 @@ public class VisualiserScreen extends AbstractScreen {
 		else if (playerPos.y >= map.getHeight())
 			playerPos.y = map.getHeight() - 1;
 
-		map.setDynamicLightTo(dynamicLightId, playerPos.x, playerPos.y);
+		recorder.setDynamicLightTo(dynamicLightId, playerPos.x, playerPos.y);
+	}
+
+	/**
+	 * Records trace to file in working directory. Replay it with {@link io.github.dector.lightmap.trace.TraceReplayer}.
+	 */
+	private void toggleRecording() {
+		if (recorder.isRecording()) {
+			recorder.stop();
+			System.out.println("Trace recording stopped");
+			return;
+		}
+
+		String fileName = "lightmap-" + System.currentTimeMillis() + ".trace";
+
+		try {
+			recorder.start(new FileOutputStream(fileName));
+			System.out.println("Recording trace to " + fileName);
+		} catch (FileNotFoundException e) {
+			System.out.println("Can't record trace: " + e.getMessage());
+		}
 	}
 
 	private long lastClickTime;
@@ -286,13 +332,13 @@ public class VisualiserScreen extends AbstractScreen {
 		cam.unproject(tmpVec3);
 
 		if (diffTime < 200) {
-			Position tilePos = getTilePositionAt(screenX, screenY);
+			Position tilePos = tmpTilePos;
 
-			if (tilePos != null) {
-				if (map.hasStaticLightAt(tilePos)) {
-					map.removeStaticLightAt(tilePos);
+			if (getTilePositionAt(screenX, screenY, tilePos)) {
+				if (map.hasStaticLightAt(tilePos.x, tilePos.y)) {
+					recorder.removeStaticLightAt(tilePos.x, tilePos.y);
 				} else {
-					map.addStaticLight(new Light(3), tilePos);
+					recorder.addStaticLight(new Light(3), tilePos.x, tilePos.y);
 				}
 			}
 		}
@@ -305,36 +351,28 @@ public class VisualiserScreen extends AbstractScreen {
 
 	private final Vector3 tmpVec3 = new Vector3();
 
-	private boolean isTileOutOfRange(Position tilePos, Position from, Position to) {
-		return tilePos.x < from.x || tilePos.y < from.y
-				|| tilePos.x > to.x || tilePos.y > to.y;
+	private boolean isTileOutOfRange(int x, int y, Position from, Position to) {
+		return x < from.x || y < from.y
+				|| x > to.x || y > to.y;
 	}
 
-	private Position getTilePositionAtOrFirst(int screenX, int screenY) {
-		Position p = getTilePositionAt(screenX, screenY, false);
-
-		if (p != null) {
-			return p;
-		} else {
-			return FIRST_TILE_POS;
+	private void getTilePositionAtOrFirst(int screenX, int screenY, Position out) {
+		if (! getTilePositionAt(screenX, screenY, false, out)) {
+			out.set(FIRST_TILE_POS.x, FIRST_TILE_POS.y);
 		}
 	}
 
-	private Position getTilePositionAtOrLast(int screenX, int screenY) {
-		Position p = getTilePositionAt(screenX, screenY, false);
-
-		if (p != null) {
-			return p;
-		} else {
-			return LAST_TILE_POS;
+	private void getTilePositionAtOrLast(int screenX, int screenY, Position out) {
+		if (! getTilePositionAt(screenX, screenY, false, out)) {
+			out.set(LAST_TILE_POS.x, LAST_TILE_POS.y);
 		}
 	}
 
-	private Position getTilePositionAt(int screenX, int screenY) {
-		return getTilePositionAt(screenX, screenY, true);
+	private boolean getTilePositionAt(int screenX, int screenY, Position out) {
+		return getTilePositionAt(screenX, screenY, true, out);
 	}
 
-	private Position getTilePositionAt(int screenX, int screenY, boolean mouseCoords) {
+	private boolean getTilePositionAt(int screenX, int screenY, boolean mouseCoords, Position out) {
 		tmpVec3.x = screenX;
 		tmpVec3.y = (mouseCoords) ? screenY : getHeight() - screenY - 1;
 
@@ -345,9 +383,10 @@ public class VisualiserScreen extends AbstractScreen {
 
 		if (0 <= tileX && tileX < map.getWidth()
 				&& 0 <= tileY && tileY < map.getHeight()) {
-			return new Position(tileX, tileY);
+			out.set(tileX, tileY);
+			return true;
 		} else {
-			return null;
+			return false;
 		}
 	}
 
@@ -366,7 +405,8 @@ public class VisualiserScreen extends AbstractScreen {
 		int mouseX = Gdx.input.getX();
 		int mouseY = Gdx.input.getY();
 
-		Position tilePos = getTilePositionAt(mouseX, mouseY);
+		Position tilePos = tmpTilePos;
+		boolean onTile = getTilePositionAt(mouseX, mouseY, tilePos);
 
 		boolean changeInner = Gdx.input.isKeyPressed(Keys.SHIFT_LEFT)
 				|| Gdx.input.isKeyPressed(Keys.SHIFT_RIGHT);
@@ -375,14 +415,14 @@ public class VisualiserScreen extends AbstractScreen {
 				|| Gdx.input.isKeyPressed(Keys.CONTROL_RIGHT);
 
 		if (changeInner || changeOuter) {
-			if (tilePos != null) {
-				Light l = map.getStaticLightAt(tilePos);
+			if (onTile) {
+				Light l = map.getStaticLightAt(tilePos.x, tilePos.y);
 
 				if (l != null) {
 					if (changeInner) {
-						map.changeStaticLightAt(tilePos, l.innerRadius - amount, l.outerRadius);
+						recorder.changeStaticLightAt(tilePos.x, tilePos.y, l.innerRadius - amount, l.outerRadius);
 					} else if (changeOuter) {
-						map.changeStaticLightAt(tilePos, l.innerRadius, l.outerRadius - amount);
+						recorder.changeStaticLightAt(tilePos.x, tilePos.y, l.innerRadius, l.outerRadius - amount);
 					}
 				}
 			}